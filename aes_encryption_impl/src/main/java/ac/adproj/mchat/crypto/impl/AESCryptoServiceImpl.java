@@ -44,6 +44,12 @@ public class AESCryptoServiceImpl implements SymmetricCryptoService {
      */
     private static final int VALID_IV_LENGTH = 16;
 
+    /**
+     * Cipher objects are reused per thread, since Cipher.getInstance() costs more than
+     * encrypting a short message, and instances of this class often live for one message.
+     */
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(AESCryptoServiceImpl::newCipher);
+
     /**
      * Intended for SPI mechanism only.
      *
@@ -85,11 +91,20 @@ public class AESCryptoServiceImpl implements SymmetricCryptoService {
     }
 
     /**
-     * Shortcut of Cipher.getInstance("AES/CFB/PKCS5Padding").
+     * Obtain the Cipher object of current thread, which must be initialized before use.
      *
      * @return The Cipher object.
      */
     private Cipher initCipher() {
+        return CIPHERS.get();
+    }
+
+    /**
+     * Shortcut of Cipher.getInstance("AES/CFB/PKCS5Padding").
+     *
+     * @return The Cipher object.
+     */
+    private static Cipher newCipher() {
         try {
             return Cipher.getInstance("AES/CFB/PKCS5Padding");
         } catch (NoSuchPaddingException | NoSuchAlgorithmException ignored) {
@@ -136,9 +151,9 @@ public class AESCryptoServiceImpl implements SymmetricCryptoService {
         try {
             return StandardCharsets.UTF_8.decode(
                     ByteBuffer.wrap(c1.doFinal(Base64.getDecoder().decode(base64Message)))).toString();
-        } catch (IllegalBlockSizeException ignored) {
-            // Shouldn't happen.
-            throw new AssertionError(ignored);
+        } catch (IllegalBlockSizeException | IllegalArgumentException e) {
+            // Truncated or not Base64, e.g. a corrupted message.
+            throw new BadPaddingException("Malformed message: " + e.getMessage());
         }
     }
 
@@ -0,0 +1,75 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto.impl;
+
+import ac.adproj.mchat.crypto.AbstractAeadCryptoService;
+
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * The AES-GCM implementation of SymmetricCryptoService.
+ *
+ * <p>Unlike {@link AESCryptoServiceImpl}, every message has its own nonce, and is authenticated.
+ * See {@link AbstractAeadCryptoService} for the format.</p>
+ *
+ * <p>This is the default of the module, listed first in its services file. To select the CFB
+ * implementation instead, set system property
+ * <code>acmc.spi.SymmetricCryptoService=AESCryptoServiceImpl</code> on both sides.</p>
+ *
+ * @author Andy Cheung
+ * @implNote The JDK provider runs AES/GCM with AES-NI and carry-less multiplication intrinsics
+ *           where the CPU has them.
+ */
+public class AESGCMCryptoServiceImpl extends AbstractAeadCryptoService {
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /**
+     * Intended for SPI mechanism only.
+     *
+     * <p><b>DO NOT USE IN OTHER PLACE !!!</b></p>
+     */
+    public AESGCMCryptoServiceImpl() {
+        super(TRANSFORMATION, null, null);
+    }
+
+    /**
+     * Initializes this object with specified key, and no associated data.
+     *
+     * @param key The secret key.
+     */
+    public AESGCMCryptoServiceImpl(Key key) {
+        super(TRANSFORMATION, key, null);
+    }
+
+    /**
+     * Initializes this object with specified key and associated data.
+     *
+     * @param key The secret key.
+     * @param iv  The session IV, which is authenticated with every message.
+     */
+    public AESGCMCryptoServiceImpl(Key key, byte[] iv) {
+        super(TRANSFORMATION, key, iv);
+    }
+
+    @Override
+    protected AlgorithmParameterSpec parameterSpec(byte[] nonce) {
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+}
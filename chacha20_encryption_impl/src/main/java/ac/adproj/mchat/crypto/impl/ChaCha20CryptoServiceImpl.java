@@ -0,0 +1,73 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto.impl;
+
+import ac.adproj.mchat.crypto.AbstractAeadCryptoService;
+
+import javax.crypto.spec.IvParameterSpec;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * The ChaCha20-Poly1305 implementation of SymmetricCryptoService, for hosts without AES
+ * instructions, where it is several times faster than AES in software.
+ *
+ * <p>See {@link AbstractAeadCryptoService} for the format. Select it with system properties
+ * <code>acmc.spi.SymmetricCryptoService=ChaCha20CryptoServiceImpl</code> and
+ * <code>acmc.spi.SymmetricKeyService=ChaCha20KeyServiceImpl</code> on both sides.</p>
+ *
+ * @author Andy Cheung
+ * @see ChaCha20KeyServiceImpl
+ */
+public class ChaCha20CryptoServiceImpl extends AbstractAeadCryptoService {
+    private static final String TRANSFORMATION = "ChaCha20-Poly1305";
+
+    /**
+     * Intended for SPI mechanism only.
+     *
+     * <p><b>DO NOT USE IN OTHER PLACE !!!</b></p>
+     */
+    public ChaCha20CryptoServiceImpl() {
+        super(TRANSFORMATION, null, null);
+    }
+
+    /**
+     * Initializes this object with specified key, and no associated data.
+     *
+     * @param key The secret key.
+     */
+    public ChaCha20CryptoServiceImpl(Key key) {
+        super(TRANSFORMATION, key, null);
+    }
+
+    /**
+     * Initializes this object with specified key and associated data.
+     *
+     * @param key The secret key.
+     * @param iv  The session IV, which is authenticated with every message.
+     */
+    public ChaCha20CryptoServiceImpl(Key key, byte[] iv) {
+        super(TRANSFORMATION, key, iv);
+    }
+
+    @Override
+    protected AlgorithmParameterSpec parameterSpec(byte[] nonce) {
+        // The tag length of Poly1305 is fixed.
+        return new IvParameterSpec(nonce);
+    }
+}
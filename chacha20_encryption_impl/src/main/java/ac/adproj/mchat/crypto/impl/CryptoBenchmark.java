@@ -0,0 +1,136 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto.impl;
+
+import ac.adproj.mchat.crypto.AeadCryptoService;
+import ac.adproj.mchat.crypto.SymmetricCryptoService;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of crypto services per message size, to choose a provider for a host.
+ *
+ * <p>Each case is a round trip (encryption and decryption) of one message. AES/CFB only has the
+ * String API, so all services are measured with it; the AEAD services are also measured with the
+ * binary API. Usage: java -cp (jars) ac.adproj.mchat.crypto.impl.CryptoBenchmark [millisPerCase]</p>
+ *
+ * <p>Needs aes_encryption_impl on the class path.</p>
+ *
+ * @author Andy Cheung
+ */
+public final class CryptoBenchmark {
+    private static final int[] MESSAGE_SIZES = {16, 64, 256, 1024, 4096, 16384};
+
+    private CryptoBenchmark() {
+        throw new UnsupportedOperationException("No instance! ");
+    }
+
+    public static void main(String[] args) throws GeneralSecurityException {
+        long millisPerCase = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+
+        Key aesKey = new AESKeyServiceImpl().generateKey();
+        Key chachaKey = new ChaCha20KeyServiceImpl().generateKey();
+        byte[] iv = new byte[16];
+
+        System.out.printf("%-22s %8s %12s %10s%n", "Service", "Size", "ns/msg", "MB/s");
+
+        for (int size : MESSAGE_SIZES) {
+            char[] chars = new char[size];
+            Arrays.fill(chars, 'a');
+            String message = new String(chars);
+
+            report("AES/CFB (String)", size, millisPerCase, new AESCryptoServiceImpl(aesKey, iv), message);
+            report("AES/GCM (String)", size, millisPerCase, new AESGCMCryptoServiceImpl(aesKey, iv), message);
+            report("ChaCha20 (String)", size, millisPerCase, new ChaCha20CryptoServiceImpl(chachaKey, iv), message);
+            report("AES/GCM (ByteBuffer)", size, millisPerCase, new AESGCMCryptoServiceImpl(aesKey, iv));
+            report("ChaCha20 (ByteBuffer)", size, millisPerCase, new ChaCha20CryptoServiceImpl(chachaKey, iv));
+        }
+    }
+
+    private static void report(String name, int size, long millis, SymmetricCryptoService service, String message)
+            throws GeneralSecurityException {
+        // Warm up, so that the JIT compiles the hot paths before measuring.
+        run(service, message, millis / 2);
+
+        long[] result = run(service, message, millis);
+        print(name, size, result);
+    }
+
+    private static long[] run(SymmetricCryptoService service, String message, long millis)
+            throws GeneralSecurityException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long start = System.nanoTime();
+        long count = 0;
+
+        while (System.nanoTime() < deadline) {
+            String decrypted = service.decryptMessageFromBase64String(service.encryptMessageToBase64String(message));
+
+            if (decrypted.length() != message.length()) {
+                throw new IllegalStateException("Round trip failed.");
+            }
+
+            count++;
+        }
+
+        return new long[]{count, System.nanoTime() - start};
+    }
+
+    private static void report(String name, int size, long millis, AeadCryptoService service)
+            throws GeneralSecurityException {
+        ByteBuffer plainText = ByteBuffer.allocateDirect(size);
+        ByteBuffer cipherText = ByteBuffer.allocateDirect(size + service.getOverhead());
+        ByteBuffer decrypted = ByteBuffer.allocateDirect(size);
+
+        run(service, plainText, cipherText, decrypted, millis / 2);
+
+        long[] result = run(service, plainText, cipherText, decrypted, millis);
+        print(name, size, result);
+    }
+
+    private static long[] run(AeadCryptoService service, ByteBuffer plainText, ByteBuffer cipherText,
+                              ByteBuffer decrypted, long millis) throws GeneralSecurityException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long start = System.nanoTime();
+        long count = 0;
+
+        while (System.nanoTime() < deadline) {
+            plainText.clear();
+            cipherText.clear();
+            decrypted.clear();
+
+            service.encrypt(plainText, cipherText);
+            cipherText.flip();
+            service.decrypt(cipherText, decrypted);
+
+            count++;
+        }
+
+        return new long[]{count, System.nanoTime() - start};
+    }
+
+    private static void print(String name, int size, long[] result) {
+        double nanosPerMessage = (double) result[1] / result[0];
+        double megabytesPerSecond = size * 1e3 / nanosPerMessage;
+
+        System.out.printf("%-22s %8d %12.0f %10.1f%n", name, size, nanosPerMessage, megabytesPerSecond);
+    }
+}
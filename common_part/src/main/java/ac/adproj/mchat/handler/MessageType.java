@@ -42,18 +42,47 @@ public enum MessageType {
             message += elements.get(MessageTypeConstants.USERNAME);
             message += CONNECTING_GREET_RIGHT_HALF;
 
+            String cookie = elements.get(MessageTypeConstants.COOKIE);
+
+            if (cookie != null && !cookie.isEmpty()) {
+                message += COOKIE_HEADER + cookie;
+            }
+
+            String capabilities = elements.get(MessageTypeConstants.CAPABILITIES);
+
+            if (capabilities != null && !capabilities.isEmpty()) {
+                message += CAPABILITIES_HEADER + capabilities;
+            }
+
             return message;
         }
 
         @Override
         public Map<String, String> tokenize(String message) {
+            String capabilities = "";
+            int capabilitiesIndex = message.indexOf(CAPABILITIES_HEADER);
+
+            if (capabilitiesIndex != -1) {
+                capabilities = message.substring(capabilitiesIndex + CAPABILITIES_HEADER.length());
+                message = message.substring(0, capabilitiesIndex);
+            }
+
+            String cookie = "";
+            int cookieIndex = message.indexOf(COOKIE_HEADER);
+
+            if (cookieIndex != -1) {
+                cookie = message.substring(cookieIndex + COOKIE_HEADER.length());
+                message = message.substring(0, cookieIndex);
+            }
+
             String[] data = message.replace(CONNECTING_GREET_LEFT_HALF, "")
                     .replace(CONNECTING_GREET_RIGHT_HALF, "").split(CONNECTING_GREET_MIDDLE_HALF);
 
             String uuid = data[0];
             String name = data[1];
 
-            return mapOf(MessageTypeConstants.UUID, uuid, MessageTypeConstants.USERNAME, name);
+            return mapOf(MessageTypeConstants.UUID, uuid, MessageTypeConstants.USERNAME, name,
+                            MessageTypeConstants.CAPABILITIES, capabilities, MessageTypeConstants.COOKIE, cookie);
         }
     },
 
@@ -151,6 +180,51 @@ public enum MessageType {
         }
     },
     
+    /**
+     * Capabilities accepted by the server.
+     */
+    CAPABILITIES {
+        @Override
+        public String generateProtocolMessage(Map<String, String> elements) {
+            return CAPABILITIES_HEADER + elements.get(MessageTypeConstants.CAPABILITIES);
+        }
+
+        @Override
+        public Map<String, String> tokenize(String message) {
+            return mapOf(MessageTypeConstants.CAPABILITIES, message.replace(CAPABILITIES_HEADER, ""));
+        }
+    },
+
+    /**
+     * Registering cookie from the server.
+     */
+    COOKIE {
+        @Override
+        public String generateProtocolMessage(Map<String, String> elements) {
+            return COOKIE_HEADER + elements.get(MessageTypeConstants.COOKIE);
+        }
+
+        @Override
+        public Map<String, String> tokenize(String message) {
+            return mapOf(MessageTypeConstants.COOKIE, message.replace(COOKIE_HEADER, ""));
+        }
+    },
+
+    /**
+     * Heartbeat of client.
+     */
+    HEARTBEAT {
+        @Override
+        public String generateProtocolMessage(Map<String, String> elements) {
+            return HEARTBEAT_HEADER + elements.get(MessageTypeConstants.UUID);
+        }
+
+        @Override
+        public Map<String, String> tokenize(String message) {
+            return mapOf(MessageTypeConstants.UUID, message.replace(HEARTBEAT_HEADER, ""));
+        }
+    },
+
     /**
      * Unknown protocol message.
      */
@@ -185,6 +259,12 @@ public enum MessageType {
             return USERNAME_QUERY_REQUEST;
         } else if (message.startsWith(INVALID_KEY_NOTIFYING_STRING_HEADER)) {
             return INVALID_KEY;
+        } else if (message.startsWith(CAPABILITIES_HEADER)) {
+            return CAPABILITIES;
+        } else if (message.startsWith(HEARTBEAT_HEADER)) {
+            return HEARTBEAT;
+        } else if (message.startsWith(COOKIE_HEADER)) {
+            return COOKIE;
         }
 
         return MessageType.UNKNOWN;
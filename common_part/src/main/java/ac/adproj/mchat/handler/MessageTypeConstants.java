@@ -31,4 +31,6 @@ public class MessageTypeConstants {
     public static final String UUID = "uuid";
     public static final String MESSAGE_TEXT = "messageText";
     public static final String USERNAME = "username";
+    public static final String CAPABILITIES = "capabilities";
+    public static final String COOKIE = "cookie";
 }
@@ -74,6 +74,68 @@ public final class ProtocolStrings {
      */
     public static final String CONNECTING_GREET_RIGHT_HALF = "<< CONNECT >>";
 
+    // << CONNECT >>(UUID)>>>>(Name)<< CONNECT >><< CAPS >>(Capability),(Capability)
+
+    /**
+     * <p>Header of capability list.</p>
+     * <br />
+     * <p>The client appends the capabilities it offers to user registering message,
+     * and the server replies the accepted ones with a message starting with this header.</p>
+     * <br />
+     * <p>Message format: << CAPS >>(Capability),(Capability)</p>
+     */
+    public static final String CAPABILITIES_HEADER = "<< CAPS >>";
+
+    // << CONNECT >>(UUID)>>>>(Name)<< CONNECT >><< COOKIE >>(Cookie)<< CAPS >>(Capability),(Capability)
+
+    /**
+     * <p>Header of registering cookie.</p>
+     * <br />
+     * <p>The server answers a user registering message without valid cookie with a message starting
+     * with this header, and registers the user only when the client repeats the registering message
+     * with the cookie (before the capability list).</p>
+     * <br />
+     * <p>Message format: << COOKIE >>(Cookie)</p>
+     */
+    public static final String COOKIE_HEADER = "<< COOKIE >>";
+
+    /**
+     * Separator of capabilities in capability list.
+     */
+    public static final String CAPABILITIES_SEPARATOR = ",";
+
+    /**
+     * Capability: Reliable delivery (sequence numbers, selective acknowledgements and retransmission).
+     */
+    public static final String CAPABILITY_RELIABLE_DELIVERY = "reliable";
+
+    /**
+     * Capability: Forward error correction (XOR parity datagrams from server).
+     */
+    public static final String CAPABILITY_FEC = "fec";
+
+    /**
+     * Capability: Fragmentation of messages larger than {@link #BUFFER_SIZE}.
+     */
+    public static final String CAPABILITY_FRAGMENTATION = "frag";
+
+    /**
+     * Capability: Coalescing of small frames into one datagram.
+     */
+    public static final String CAPABILITY_BUNDLING = "bundle";
+
+    /**
+     * Capability: Heartbeats from client, the server drops the clients that went silent.
+     */
+    public static final String CAPABILITY_HEARTBEAT = "hb";
+
+    /**
+     * <p>The header of heartbeat message.</p>
+     * <br />
+     * <p>Message format: << HEARTBEAT >>(UUID)</p>
+     */
+    public static final String HEARTBEAT_HEADER = "<< HEARTBEAT >>";
+
     /**
      * <p>The header of user logoff message.</p>
      * <br />
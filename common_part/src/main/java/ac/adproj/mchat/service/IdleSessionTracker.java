@@ -0,0 +1,154 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+import ac.adproj.mchat.util.HashedTimingWheel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Tracks idle sessions, and expires the ones that were silent for too long.
+ *
+ * <p>Touching a session only records the time, it does not reschedule anything. Each session
+ * has one timeout in the timing wheel; when it fires, the session is either expired, or the
+ * timeout is re-armed for the remaining time. So the cost is O(1) per touch, and at most one
+ * timer event per session per idle period, whatever the traffic is.</p>
+ *
+ * @param <K> Type of session key.
+ * @author Andy Cheung
+ * @see HashedTimingWheel
+ */
+public class IdleSessionTracker<K> implements AutoCloseable {
+    private final long idleTimeoutNanos;
+    private final HashedTimingWheel wheel;
+    private final Consumer<K> onExpired;
+    private final Map<K, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs the tracker.
+     *
+     * @param idleTimeoutMillis Time without activity after which a session expires.
+     * @param onExpired         Invoked with the key of expired session, in the timer thread.
+     * @param name              Name of timer thread.
+     */
+    public IdleSessionTracker(long idleTimeoutMillis, Consumer<K> onExpired, String name) {
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.onExpired = onExpired;
+
+        // 100 ms per tick, one round is about 51 seconds.
+        this.wheel = new HashedTimingWheel(100, TimeUnit.MILLISECONDS, 512, name);
+    }
+
+    /**
+     * Starts tracking the session. An existing session with the same key is replaced.
+     *
+     * @param key The session key.
+     */
+    public void track(K key) {
+        Session session = new Session(key);
+        session.arm(idleTimeoutNanos);
+
+        Session old = sessions.put(key, session);
+
+        if (old != null) {
+            old.timeout.cancel();
+        }
+    }
+
+    /**
+     * Records activity of the session. Keys that are not tracked are ignored.
+     *
+     * @param key The session key.
+     */
+    public void touch(K key) {
+        Session session = sessions.get(key);
+
+        if (session != null) {
+            session.lastActive = System.nanoTime();
+        }
+    }
+
+    /**
+     * Stops tracking the session.
+     *
+     * @param key The session key.
+     */
+    public void untrack(K key) {
+        Session session = sessions.remove(key);
+
+        if (session != null) {
+            session.timeout.cancel();
+        }
+    }
+
+    /**
+     * Stops tracking all sessions.
+     */
+    public void clear() {
+        sessions.keySet().forEach(this::untrack);
+    }
+
+    /**
+     * Obtain the number of tracked sessions.
+     *
+     * @return Number of sessions.
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Stops the timer.
+     */
+    @Override
+    public void close() {
+        wheel.close();
+        sessions.clear();
+    }
+
+    private final class Session {
+        private final K key;
+        private volatile long lastActive = System.nanoTime();
+        private volatile HashedTimingWheel.Timeout timeout;
+
+        private Session(K key) {
+            this.key = key;
+        }
+
+        private void arm(long delayNanos) {
+            timeout = wheel.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void check() {
+            if (sessions.get(key) != this) {
+                return;
+            }
+
+            long idle = System.nanoTime() - lastActive;
+
+            if (idle < idleTimeoutNanos) {
+                arm(idleTimeoutNanos - idle);
+            } else if (sessions.remove(key, this)) {
+                onExpired.accept(key);
+            }
+        }
+    }
+}
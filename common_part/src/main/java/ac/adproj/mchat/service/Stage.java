@@ -0,0 +1,476 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of a staged (SEDA) pipeline: a bounded queue with its own threads and metrics.
+ *
+ * <p>Tasks submitted with the same key run one at a time, in submission order; tasks of
+ * different keys run in parallel. So the number of threads can be changed at any time
+ * without reordering the tasks of a key.</p>
+ *
+ * <p>Active keys are served by deficit round-robin on running time: each turn of a key
+ * adds a quantum of time to its deficit, and its tasks run while the deficit lasts. So a
+ * key with expensive or many tasks gets the same share of threads as the others, and the
+ * tasks of a quiet key wait for at most one turn of each active key.</p>
+ *
+ * @author Andy Cheung
+ * @see StageController
+ */
+public class Stage implements AutoCloseable {
+    /**
+     * Running time given to a key per turn, in nanoseconds.
+     */
+    private static final long QUANTUM_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private static final Logger LOG = LoggerFactory.getLogger(Stage.class);
+
+    private final String name;
+    private final int minThreads;
+    private final int maxThreads;
+    private final int capacity;
+    private final int keyLimit;
+    private final ThreadPoolExecutor pool;
+    private final Map<Object, SerialQueue> serials = new ConcurrentHashMap<>();
+
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong serviceNanos = new AtomicLong();
+
+    private long lastSampleNanos = System.nanoTime();
+    private volatile StageMetrics lastMetrics;
+
+    /**
+     * Constructs the stage.
+     *
+     * @param name           Name of stage, also the prefix of thread names.
+     * @param minThreads     Minimum number of threads.
+     * @param maxThreads     Maximum number of threads.
+     * @param initialThreads Initial number of threads.
+     * @param capacity       Maximum number of queued and running tasks.
+     */
+    public Stage(String name, int minThreads, int maxThreads, int initialThreads, int capacity) {
+        this(name, minThreads, maxThreads, initialThreads, capacity, capacity);
+    }
+
+    /**
+     * Constructs the stage.
+     *
+     * @param name           Name of stage, also the prefix of thread names.
+     * @param minThreads     Minimum number of threads.
+     * @param maxThreads     Maximum number of threads.
+     * @param initialThreads Initial number of threads.
+     * @param capacity       Maximum number of queued and running tasks.
+     * @param keyLimit       Maximum number of queued tasks of one key, for low priority tasks
+     *                       (offered with a limit below capacity).
+     */
+    public Stage(String name, int minThreads, int maxThreads, int initialThreads, int capacity, int keyLimit) {
+        if (minThreads <= 0 || maxThreads < minThreads || capacity <= 0 || keyLimit <= 0) {
+            throw new IllegalArgumentException("Invalid thread range or capacity of stage " + name);
+        }
+
+        this.name = name;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.capacity = capacity;
+        this.keyLimit = keyLimit;
+
+        int threads = Math.max(minThreads, Math.min(maxThreads, initialThreads));
+        AtomicInteger threadNumber = new AtomicInteger();
+
+        // The queue is unbounded, since the depth is bounded by "capacity".
+        this.pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, name + " - #" + threadNumber.incrementAndGet()));
+
+        this.lastMetrics = new StageMetrics(name, threads, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Queues a task.
+     *
+     * @param key  The ordering key, e.g. the sender. Tasks with null key are not ordered.
+     * @param task The task.
+     * @throws RejectedExecutionException If the stage is full, or closed.
+     */
+    public void execute(Object key, Runnable task) {
+        if (!offer(key, task, capacity)) {
+            throw new RejectedExecutionException("Stage " + name + " is full.");
+        }
+    }
+
+    /**
+     * Queues a task if the depth is below the limit, for admission control.
+     *
+     * @param key   The ordering key, e.g. the sender. Tasks with null key are not ordered.
+     * @param task  The task.
+     * @param limit Maximum depth for this task, e.g. a high-water mark for low priority tasks. Never exceeds capacity.
+     *              Tasks with a limit below capacity are also bounded by the key limit, so one key cannot
+     *              take the room of others.
+     * @return False if the task is rejected.
+     * @throws RejectedExecutionException If the stage is closed.
+     */
+    public boolean offer(Object key, Runnable task, int limit) {
+        if (depth.incrementAndGet() > Math.min(limit, capacity)
+                || !add(key, task, limit < capacity ? keyLimit : Integer.MAX_VALUE)) {
+            depth.decrementAndGet();
+            rejected.incrementAndGet();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Queues a task that was admitted before (see {@link #hasRoom(Object, int)}), e.g. a message
+     * that is already acknowledged to its sender. It's never rejected for the depth.
+     *
+     * @param key  The ordering key, e.g. the sender. Tasks with null key are not ordered.
+     * @param task The task.
+     * @throws RejectedExecutionException If the stage is closed.
+     */
+    public void enqueue(Object key, Runnable task) {
+        depth.incrementAndGet();
+        add(key, task, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Determines whether a task would be admitted by {@link #offer(Object, Runnable, int)} now,
+     * for admission control before a task can be created.
+     *
+     * @param key   The ordering key.
+     * @param limit Maximum depth for the task.
+     * @return True if there is room.
+     */
+    public boolean hasRoom(Object key, int limit) {
+        if (depth.get() >= Math.min(limit, capacity)) {
+            return false;
+        }
+
+        return key == null || limit >= capacity || getDepth(key) < keyLimit;
+    }
+
+    /**
+     * Adds a counted task to the queue of its key, and schedules the queue if it's idle.
+     *
+     * @return False if the queue of key is full.
+     */
+    private boolean add(Object key, Runnable task, int perKey) {
+        TimedTask timed = new TimedTask(task);
+
+        if (key == null) {
+            submit(timed);
+            return true;
+        }
+
+        boolean[] start = new boolean[1];
+        boolean[] full = new boolean[1];
+
+        SerialQueue queue = serials.compute(key, (k, q) -> {
+            if (q == null) {
+                q = new SerialQueue(k);
+            }
+
+            if (q.tasks.size() >= perKey) {
+                full[0] = true;
+                return q;
+            }
+
+            q.tasks.add(timed);
+
+            if (!q.scheduled) {
+                q.scheduled = true;
+                start[0] = true;
+            }
+
+            return q;
+        });
+
+        if (full[0]) {
+            return false;
+        }
+
+        if (start[0]) {
+            submit(queue::drain);
+        }
+
+        return true;
+    }
+
+    private void submit(Runnable r) {
+        try {
+            pool.execute(r);
+        } catch (RejectedExecutionException e) {
+            // Only happens after close().
+            depth.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Obtain the name of stage.
+     *
+     * @return The name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Obtain the number of queued and running tasks.
+     *
+     * @return The depth.
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Obtain the number of queued tasks of one key.
+     *
+     * @param key The ordering key.
+     * @return The depth of key.
+     */
+    public int getDepth(Object key) {
+        int[] size = new int[1];
+
+        serials.computeIfPresent(key, (k, q) -> {
+            size[0] = q.tasks.size();
+            return q;
+        });
+
+        return size[0];
+    }
+
+    /**
+     * Obtain the maximum number of queued and running tasks.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Obtain the current number of threads.
+     *
+     * @return Number of threads.
+     */
+    public int getThreads() {
+        return pool.getMaximumPoolSize();
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Changes the number of threads, clamped to the range of this stage.
+     *
+     * @param threads New number of threads.
+     * @return The number of threads after changing.
+     */
+    public synchronized int setThreads(int threads) {
+        int n = Math.max(minThreads, Math.min(maxThreads, threads));
+
+        // Core size must never exceed maximum size, so the order depends on direction.
+        if (n > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(n);
+            pool.setCorePoolSize(n);
+        } else {
+            pool.setCorePoolSize(n);
+            pool.setMaximumPoolSize(n);
+        }
+
+        return n;
+    }
+
+    /**
+     * Takes metrics since the last sample. Intended to be invoked by the controller only.
+     *
+     * @return The metrics.
+     */
+    public synchronized StageMetrics sample() {
+        long now = System.nanoTime();
+        long interval = Math.max(1, now - lastSampleNanos);
+        lastSampleNanos = now;
+
+        lastMetrics = new StageMetrics(name, getThreads(), depth.get(), processed.getAndSet(0),
+                                        rejected.getAndSet(0), waitNanos.getAndSet(0),
+                                        serviceNanos.getAndSet(0), interval);
+
+        return lastMetrics;
+    }
+
+    /**
+     * Obtain the metrics of last sample.
+     *
+     * @return The metrics.
+     */
+    public StageMetrics getLastMetrics() {
+        return lastMetrics;
+    }
+
+    /**
+     * Stops the threads. Queued tasks are dropped.
+     */
+    @Override
+    public void close() {
+        pool.shutdownNow();
+        serials.clear();
+    }
+
+    /**
+     * Task with its queuing time.
+     */
+    private final class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long queuedNanos = System.nanoTime();
+
+        private TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.warn("Task of stage {} threw an exception.", name, e);
+            } finally {
+                long end = System.nanoTime();
+
+                waitNanos.addAndGet(start - queuedNanos);
+                serviceNanos.addAndGet(end - start);
+                processed.incrementAndGet();
+                depth.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Tasks of one key. At most one drain of a queue is scheduled at any time.
+     */
+    private final class SerialQueue {
+        private final Object key;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        // Guarded by the map entry (compute).
+        private boolean scheduled;
+
+        // Only accessed by the scheduled drain.
+        private long deficit;
+
+        private SerialQueue(Object key) {
+            this.key = key;
+        }
+
+        private void drain() {
+            if (deficit < 0 && pool.getQueue().isEmpty()) {
+                // No other key is waiting, so there's nobody to pay the debt to.
+                deficit = 0;
+            }
+
+            deficit += QUANTUM_NANOS;
+
+            while (deficit > 0) {
+                Runnable next = poll();
+
+                if (next == null) {
+                    // Idle keys don't save up time.
+                    return;
+                }
+
+                long start = System.nanoTime();
+                next.run();
+                deficit -= System.nanoTime() - start;
+            }
+
+            if (!hasTasks()) {
+                // Out of tasks while in debt: unscheduled like an idle key, and the debt is dropped
+                // (as in deficit round-robin), instead of requeuing empty turns until it's paid.
+                return;
+            }
+
+            // Still has tasks, requeue behind other keys.
+            try {
+                pool.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Stage {} is closed.", name);
+            }
+        }
+
+        /**
+         * Determines whether tasks are queued, otherwise marks the queue as not scheduled and removes it.
+         */
+        private boolean hasTasks() {
+            boolean[] more = new boolean[1];
+
+            serials.computeIfPresent(key, (k, q) -> {
+                if (q.tasks.isEmpty()) {
+                    q.scheduled = false;
+                    return null;
+                }
+
+                more[0] = true;
+                return q;
+            });
+
+            return more[0];
+        }
+
+        private Runnable poll() {
+            Runnable[] next = new Runnable[1];
+
+            serials.computeIfPresent(key, (k, q) -> {
+                next[0] = q.tasks.poll();
+
+                if (next[0] == null) {
+                    q.scheduled = false;
+                    return null;
+                }
+
+                return q;
+            });
+
+            return next[0];
+        }
+    }
+}
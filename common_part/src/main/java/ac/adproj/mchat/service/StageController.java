@@ -0,0 +1,182 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the stages periodically, and shifts threads toward the bottleneck stage.
+ *
+ * <p>The bottleneck is the stage with most backlog per thread. It gets one more thread per
+ * interval, from the shared budget if there is room, otherwise from the least utilized stage.
+ * Stages that stay idle give their threads back, one per interval.</p>
+ *
+ * @author Andy Cheung
+ * @see Stage
+ */
+public class StageController implements AutoCloseable {
+    /**
+     * Average queue waiting time above which a stage counts as backlogged, in milliseconds.
+     */
+    private static final double BACKLOG_WAIT_MILLIS = 5;
+
+    /**
+     * Utilization below which a stage may give a thread away.
+     */
+    private static final double DONOR_UTILIZATION = 0.5;
+
+    /**
+     * Utilization below which an empty stage shrinks.
+     */
+    private static final double IDLE_UTILIZATION = 0.1;
+
+    private static final Logger LOG = LoggerFactory.getLogger(StageController.class);
+
+    private final List<Stage> stages;
+    private final int threadBudget;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Constructs the controller, and starts sampling.
+     *
+     * @param stages         The stages.
+     * @param threadBudget   Maximum total number of threads of all stages.
+     * @param intervalMillis Sampling interval.
+     * @param name           Name of timer thread.
+     */
+    public StageController(List<Stage> stages, int threadBudget, long intervalMillis, String name) {
+        this.stages = Collections.unmodifiableList(new ArrayList<>(stages));
+        this.threadBudget = threadBudget;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        timer.scheduleWithFixedDelay(this::adjust, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Obtain the metrics of last sample of all stages.
+     *
+     * @return The metrics.
+     */
+    public List<StageMetrics> getMetrics() {
+        List<StageMetrics> result = new ArrayList<>();
+
+        for (Stage stage : stages) {
+            result.add(stage.getLastMetrics());
+        }
+
+        return result;
+    }
+
+    private void adjust() {
+        List<StageMetrics> metrics = new ArrayList<>();
+        int used = 0;
+
+        for (Stage stage : stages) {
+            StageMetrics m = stage.sample();
+            metrics.add(m);
+            used += m.getThreads();
+        }
+
+        LOG.debug("Stages: {}", metrics);
+
+        int bottleneck = -1;
+        double maxPressure = 0;
+
+        for (int i = 0; i < stages.size(); i++) {
+            StageMetrics m = metrics.get(i);
+            double pressure = (double) m.getDepth() / m.getThreads();
+            boolean backlogged = m.getDepth() > m.getThreads() || m.getAverageWaitMillis() > BACKLOG_WAIT_MILLIS;
+
+            if (backlogged && pressure > maxPressure && m.getThreads() < stages.get(i).getMaxThreads()) {
+                maxPressure = pressure;
+                bottleneck = i;
+            }
+        }
+
+        if (bottleneck == -1) {
+            shrinkIdleStages(metrics);
+            return;
+        }
+
+        Stage target = stages.get(bottleneck);
+
+        if (used < threadBudget) {
+            grow(target);
+            return;
+        }
+
+        int donor = -1;
+        double minUtilization = DONOR_UTILIZATION;
+
+        for (int i = 0; i < stages.size(); i++) {
+            StageMetrics m = metrics.get(i);
+
+            if (i != bottleneck && m.getThreads() > stages.get(i).getMinThreads()
+                    && m.getUtilization() < minUtilization) {
+                minUtilization = m.getUtilization();
+                donor = i;
+            }
+        }
+
+        if (donor != -1) {
+            Stage from = stages.get(donor);
+            from.setThreads(from.getThreads() - 1);
+            grow(target);
+
+            LOG.info("Moved a thread from stage {} to the bottleneck {}.", from.getName(), target.getName());
+        }
+    }
+
+    private void grow(Stage stage) {
+        int threads = stage.setThreads(stage.getThreads() + 1);
+
+        LOG.debug("Stage {} now has {} thread(s).", stage.getName(), threads);
+    }
+
+    private void shrinkIdleStages(List<StageMetrics> metrics) {
+        for (int i = 0; i < stages.size(); i++) {
+            StageMetrics m = metrics.get(i);
+            Stage stage = stages.get(i);
+
+            if (m.getDepth() == 0 && m.getUtilization() < IDLE_UTILIZATION && m.getThreads() > stage.getMinThreads()) {
+                stage.setThreads(m.getThreads() - 1);
+            }
+        }
+    }
+
+    /**
+     * Stops sampling.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+/**
+ * Metrics of a {@link Stage} during one sampling interval.
+ *
+ * @author Andy Cheung
+ */
+public final class StageMetrics {
+    private final String name;
+    private final int threads;
+    private final int depth;
+    private final long processed;
+    private final long rejected;
+    private final long waitNanos;
+    private final long serviceNanos;
+    private final long intervalNanos;
+
+    StageMetrics(String name, int threads, int depth, long processed, long rejected,
+                 long waitNanos, long serviceNanos, long intervalNanos) {
+        this.name = name;
+        this.threads = threads;
+        this.depth = depth;
+        this.processed = processed;
+        this.rejected = rejected;
+        this.waitNanos = waitNanos;
+        this.serviceNanos = serviceNanos;
+        this.intervalNanos = intervalNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Obtain the number of queued and running tasks at the end of interval.
+     *
+     * @return The depth.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Obtain the average time that tasks waited in queue.
+     *
+     * @return Time in milliseconds, 0 if nothing was processed.
+     */
+    public double getAverageWaitMillis() {
+        return processed == 0 ? 0 : waitNanos / 1e6 / processed;
+    }
+
+    /**
+     * Obtain the average running time of tasks.
+     *
+     * @return Time in milliseconds, 0 if nothing was processed.
+     */
+    public double getAverageServiceMillis() {
+        return processed == 0 ? 0 : serviceNanos / 1e6 / processed;
+    }
+
+    /**
+     * Obtain the processed tasks per second.
+     *
+     * @return The throughput.
+     */
+    public double getThroughput() {
+        return intervalNanos == 0 ? 0 : processed * 1e9 / intervalNanos;
+    }
+
+    /**
+     * Obtain the fraction of time that the threads were busy.
+     *
+     * @return Utilization, between 0 and 1 (roughly).
+     */
+    public double getUtilization() {
+        return intervalNanos == 0 ? 0 : (double) serviceNanos / intervalNanos / threads;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[threads=%d, depth=%d, processed=%d, rejected=%d, wait=%.2fms, service=%.3fms, util=%.0f%%]",
+                name, threads, depth, processed, rejected, getAverageWaitMillis(), getAverageServiceMillis(),
+                getUtilization() * 100);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-key token bucket rate limiter, e.g. per source address.
+ *
+ * <p>Each bucket is two numbers, refilled lazily when it is used, so there is no timer.
+ * Buckets idle long enough to be full again carry no information, they are evicted by a
+ * sweep which runs at most once per idle period, from the calling thread.</p>
+ *
+ * @param <K> Type of key.
+ * @author Andy Cheung
+ */
+public class TokenBucketLimiter<K> {
+    private final double ratePerNano;
+    private final double burst;
+    private final long idleNanos;
+    private final Map<K, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweepNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * Constructs the limiter.
+     *
+     * @param ratePerSecond Tokens added per second.
+     * @param burst         Capacity of a bucket, i.e. the largest burst allowed.
+     * @param idleMillis    Time without use after which a bucket is evicted. At least the time to refill.
+     */
+    public TokenBucketLimiter(double ratePerSecond, double burst, long idleMillis) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive, and burst must be at least 1.");
+        }
+
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.burst = burst;
+
+        long refillNanos = (long) (burst / ratePerNano);
+        this.idleNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(idleMillis), refillNanos);
+    }
+
+    /**
+     * Takes tokens from the bucket of the key.
+     *
+     * @param key    The key.
+     * @param tokens Number of tokens.
+     * @return True if allowed, false if the key is over its rate.
+     */
+    public boolean tryAcquire(K key, double tokens) {
+        long now = System.nanoTime();
+
+        sweepIfDue(now);
+
+        Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket(burst, now));
+
+        return bucket.tryAcquire(tokens, now);
+    }
+
+    /**
+     * Takes one token from the bucket of the key.
+     *
+     * @param key The key.
+     * @return True if allowed, false if the key is over its rate.
+     */
+    public boolean tryAcquire(K key) {
+        return tryAcquire(key, 1);
+    }
+
+    /**
+     * Obtain the number of buckets in the table.
+     *
+     * @return Number of buckets.
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    private void sweepIfDue(long now) {
+        long last = lastSweepNanos.get();
+
+        if (now - last < idleNanos || !lastSweepNanos.compareAndSet(last, now)) {
+            return;
+        }
+
+        buckets.values().removeIf(b -> b.isIdle(now));
+    }
+
+    private final class Bucket {
+        private double tokens;
+        private long lastNanos;
+
+        private Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastNanos = now;
+        }
+
+        private synchronized boolean tryAcquire(double cost, long now) {
+            tokens = Math.min(burst, tokens + (now - lastNanos) * ratePerNano);
+            lastNanos = now;
+
+            if (tokens < cost) {
+                return false;
+            }
+
+            tokens -= cost;
+            return true;
+        }
+
+        private synchronized boolean isIdle(long now) {
+            return now - lastNanos >= idleNanos;
+        }
+    }
+}
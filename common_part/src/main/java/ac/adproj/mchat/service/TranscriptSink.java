@@ -0,0 +1,280 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transcript sink, which writes distributed messages to standard output and / or a rotating file.
+ *
+ * <p>Messages are buffered, and written in batches by a separate thread every flush interval,
+ * so that the Message Distributing service is never blocked by a slow terminal, pipe or disk.</p>
+ *
+ * @author Andy Cheung
+ * @see MessageDistributor
+ */
+public class TranscriptSink implements MessageDistributor.SubscriberCallback, AutoCloseable {
+    /**
+     * Default interval between two flushes, in milliseconds.
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+
+    /**
+     * Default size of transcript file that triggers rotation, in bytes.
+     */
+    public static final long DEFAULT_MAX_FILE_SIZE = 16L * 1024 * 1024;
+
+    /**
+     * Number of rotated transcript files to keep. (transcript.1 ... transcript.N)
+     */
+    public static final int ROTATED_FILES_TO_KEEP = 5;
+
+    /**
+     * Maximum number of buffered messages. Further messages are dropped (and counted) until next flush.
+     */
+    public static final int MAX_BUFFERED_MESSAGES = 65536;
+
+    private static final Logger LOG = LoggerFactory.getLogger(TranscriptSink.class);
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final BlockingQueue<String> buffer = new LinkedBlockingQueue<>(MAX_BUFFERED_MESSAGES);
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final WritableByteChannel stdout;
+    private final Path file;
+    private final long flushIntervalMillis;
+    private final long maxFileSize;
+
+    private FileChannel fileChannel;
+    private final Thread flushThread;
+    private volatile boolean closed;
+
+    /**
+     * Constructs and starts the transcript sink.
+     *
+     * @param toStdout            Whether to write messages to standard output.
+     * @param file                The transcript file, or null if no file is needed.
+     * @param flushIntervalMillis Interval between two flushes, in milliseconds.
+     * @param maxFileSize         Size of transcript file that triggers rotation, in bytes.
+     * @throws IOException If the transcript file can't be opened.
+     */
+    public TranscriptSink(boolean toStdout, Path file, long flushIntervalMillis, long maxFileSize) throws IOException {
+        this.stdout = toStdout ? Channels.newChannel(new FileOutputStream(FileDescriptor.out)) : null;
+        this.file = file;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxFileSize = maxFileSize;
+
+        if (file != null) {
+            openFile();
+        }
+
+        flushThread = new Thread(this::flushLoop, "Transcript Sink");
+        flushThread.setDaemon(true);
+        flushThread.start();
+    }
+
+    @Override
+    public void onMessageReceived(String uiMessage) {
+        if (!buffer.offer(uiMessage)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void flushLoop() {
+        List<String> batch = new ArrayList<>();
+
+        // Not interrupted on close, since an interrupted write would close the file channel.
+        while (!closed) {
+            try {
+                String first = buffer.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                buffer.drainTo(batch);
+
+                write(batch);
+
+                // Let the next batch accumulate.
+                Thread.sleep(flushIntervalMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException e) {
+                LOG.error("Failed to write transcript.", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of messages with one write call per channel.
+     *
+     * @param batch The messages.
+     * @throws IOException If I/O error occurs.
+     */
+    private synchronized void write(List<String> batch) throws IOException {
+        long droppedCount = dropped.getAndSet(0);
+
+        if (droppedCount > 0) {
+            batch.add(String.format("[%d transcript lines dropped]", droppedCount));
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer data = encode(batch);
+
+        if (stdout != null) {
+            writeFully(stdout, data.duplicate());
+        }
+
+        if (fileChannel != null) {
+            if (!fileChannel.isOpen()) {
+                // Reopening failed after the last rotation.
+                openFile();
+            }
+
+            long size = fileChannel.size();
+
+            // A batch larger than the limit goes into the current file if it is empty, instead of an empty rotated one.
+            if (size > 0 && size + data.remaining() > maxFileSize) {
+                rotate();
+            }
+
+            writeFully(fileChannel, data);
+        }
+    }
+
+    private static ByteBuffer encode(List<String> batch) {
+        List<byte[]> encoded = new ArrayList<>(batch.size());
+        int length = 0;
+
+        for (String message : batch) {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            length += bytes.length + LINE_SEPARATOR.length;
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(length);
+
+        for (byte[] bytes : encoded) {
+            data.put(bytes).put(LINE_SEPARATOR);
+        }
+
+        data.flip();
+
+        return data;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private void openFile() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                        StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Rotates the transcript file: transcript -> transcript.1 -> ... -> transcript.N (discarded).
+     *
+     * @throws IOException If I/O error occurs.
+     */
+    private void rotate() throws IOException {
+        fileChannel.close();
+
+        try {
+            Files.deleteIfExists(rotatedFile(ROTATED_FILES_TO_KEEP));
+
+            for (int i = ROTATED_FILES_TO_KEEP - 1; i >= 1; i--) {
+                Path source = rotatedFile(i);
+
+                if (Files.exists(source)) {
+                    Files.move(source, rotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            Files.move(file, rotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // If a move failed, keeps appending to the current file rather than dropping output.
+            openFile();
+        }
+    }
+
+    private Path rotatedFile(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    /**
+     * Stops the sink, and writes the remaining messages.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+
+        try {
+            flushThread.join(flushIntervalMillis * 3);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<String> remaining = new ArrayList<>();
+        buffer.drainTo(remaining);
+        write(remaining);
+
+        synchronized (this) {
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+        }
+    }
+}
@@ -53,6 +53,11 @@ public class UserManager implements Iterable<User> {
      */
     private Map<String, User> userProfile;
 
+    /**
+     * Index of user profile by address.
+     */
+    private Map<SocketAddress, User> userByAddress;
+
     /**
      * User Name storage (with copy of reserved names).
      */
@@ -65,6 +70,7 @@ public class UserManager implements Iterable<User> {
 
     private UserManager() {
         userProfile = new ConcurrentHashMap<>(16);
+        userByAddress = new ConcurrentHashMap<>(16);
         names = Collections.synchronizedSet(new HashSet<>());
         reservedNames = Collections.synchronizedSet(new HashSet<>());
     }
@@ -74,6 +80,7 @@ public class UserManager implements Iterable<User> {
      */
     public void clearAllProfiles() {
         userProfile.clear();
+        userByAddress.clear();
         names.clear();
         names.addAll(reservedNames);
     }
@@ -105,7 +112,10 @@ public class UserManager implements Iterable<User> {
      * @return True if the profile is deleted successfully.
      */
     public User deleteUserProfile(String uuid) {
-        names.remove(lookup(uuid).getName());
+        User user = lookup(uuid);
+
+        names.remove(user.getName());
+        userByAddress.remove(user.getAddress(), user);
         return userProfile.remove(uuid);
     }
 
@@ -148,6 +158,16 @@ public class UserManager implements Iterable<User> {
         return userProfile.get(uuid);
     }
 
+    /**
+     * Obtain the User object registered from the address (IP address and port).
+     *
+     * @param address Remote address.
+     * @return The corresponding User object, or null if none.
+     */
+    public User lookup(SocketAddress address) {
+        return userByAddress.get(address);
+    }
+
     /**
      * 注册用户到用户表。
      * @param uuid UUID 号
@@ -164,6 +184,7 @@ public class UserManager implements Iterable<User> {
      */
     public void register(User u) {
         userProfile.put(u.getUuid(), u);
+        userByAddress.put(u.getAddress(), u);
         names.add(u.getName());
     }
     
@@ -87,4 +87,53 @@ public final class CollectionUtils {
 
         return Collections.unmodifiableMap(hm);
     }
+
+    /**
+     * Returns a read-only Map according to parameters (like Map.of in Java 9).
+     *
+     * @param <K> Type of key.
+     * @param <V> Type of value.
+     * @param k1 The first key.
+     * @param v1 The first value.
+     * @param k2 The second key.
+     * @param v2 The second value.
+     * @param k3 The third key.
+     * @param v3 The third value.
+     * @return An read-only map that contains three elements [(K1, V1), (K2, V2), (K3, V3)].
+     */
+    public static <K, V> Map<K, V> mapOf(K k1, V v1, K k2, V v2, K k3, V v3) {
+        HashMap<K, V> hm = new HashMap<>(3);
+
+        hm.put(k1, v1);
+        hm.put(k2, v2);
+        hm.put(k3, v3);
+
+        return Collections.unmodifiableMap(hm);
+    }
+
+    /**
+     * Returns a read-only Map according to parameters (like Map.of in Java 9).
+     *
+     * @param <K> Type of key.
+     * @param <V> Type of value.
+     * @param k1 The first key.
+     * @param v1 The first value.
+     * @param k2 The second key.
+     * @param v2 The second value.
+     * @param k3 The third key.
+     * @param v3 The third value.
+     * @param k4 The fourth key.
+     * @param v4 The fourth value.
+     * @return An read-only map that contains four elements [(K1, V1), (K2, V2), (K3, V3), (K4, V4)].
+     */
+    public static <K, V> Map<K, V> mapOf(K k1, V v1, K k2, V v2, K k3, V v3, K k4, V v4) {
+        HashMap<K, V> hm = new HashMap<>(4);
+
+        hm.put(k1, v1);
+        hm.put(k2, v2);
+        hm.put(k3, v3);
+        hm.put(k4, v4);
+
+        return Collections.unmodifiableMap(hm);
+    }
 }
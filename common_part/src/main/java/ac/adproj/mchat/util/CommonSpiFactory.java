@@ -3,8 +3,11 @@ package ac.adproj.mchat.util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.Optional;
 import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
 
@@ -20,12 +23,36 @@ public final class CommonSpiFactory {
 
     public static final Logger LOG = LoggerFactory.getLogger(CommonSpiFactory.class);
 
+    /**
+     * Prefix of system properties that select an implementation when more than one is present,
+     * e.g. -Dacmc.spi.SymmetricCryptoService=AESCryptoServiceImpl. The value is the simple
+     * or fully qualified class name of the implementation. Without it, the first implementation
+     * listed in the services file of a module is its default.
+     */
+    public static final String SELECTION_PROPERTY_PREFIX = "acmc.spi.";
+
     public static <T> T getServiceImplementation(Class<T> serviceType, Class<? extends T> nullImplementationClass) {
         ServiceLoader<T> sl = ServiceLoader.load(serviceType);
 
+        String selected = System.getProperty(SELECTION_PROPERTY_PREFIX + serviceType.getSimpleName(), "");
+
+        if (!selected.isEmpty()) {
+            Optional<ServiceLoader.Provider<T>> provider = sl.stream()
+                    .filter(p -> p.type().getName().equals(selected) || p.type().getSimpleName().equals(selected))
+                    .findFirst();
+
+            if (provider.isPresent()) {
+                return provider.get().get();
+            }
+
+            LOG.warn("Selected implementation {} not found, the default one will be used. Service class: {}",
+                    selected, serviceType.getName());
+        }
+
         long count = sl.stream().count();
 
-        if (count > 1) {
+        if (count > 1 && selected.isEmpty() && countServiceFiles(serviceType) > 1) {
+            // Within one services file the first line is the default, across files it depends on the class path.
             LOG.warn("More than one service implementation detected. Only first implementation will be used. Service class: {}",
                     serviceType.getName());
         } else if (count == 0) {
@@ -43,4 +70,24 @@ public final class CommonSpiFactory {
 
         return sl.iterator().next();
     }
+
+    /**
+     * Counts the provider configuration files of the service on the class path, i.e. the modules providing it.
+     *
+     * @param serviceType The service class.
+     * @return Number of files.
+     */
+    private static int countServiceFiles(Class<?> serviceType) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+
+        if (loader == null) {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+
+        try {
+            return Collections.list(loader.getResources("META-INF/services/" + serviceType.getName())).size();
+        } catch (IOException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
 }
@@ -0,0 +1,305 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel, a timer for large numbers of coarse-grained timeouts.
+ *
+ * <p>Timeouts are hashed into buckets by deadline. Scheduling and cancelling are O(1),
+ * and each tick only visits one bucket, so the cost does not grow with the number of
+ * pending timeouts in other buckets. Deadlines are rounded up to the tick duration.</p>
+ *
+ * <p>Tasks run in the single tick thread, so they must be short and must not block.</p>
+ *
+ * @author Andy Cheung
+ */
+public class HashedTimingWheel implements AutoCloseable {
+    /**
+     * Handle of a scheduled task.
+     */
+    public interface Timeout {
+        /**
+         * Cancels the task.
+         *
+         * @return True if the task was cancelled before it ran.
+         */
+        boolean cancel();
+
+        /**
+         * Determines whether the task has run, or is running.
+         *
+         * @return True if expired.
+         */
+        boolean isExpired();
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(HashedTimingWheel.class);
+
+    /**
+     * Maximum number of new timeouts moved into the wheel per tick, so that a burst of
+     * scheduling cannot stall the tick thread.
+     */
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final long tickNanos;
+    private final int mask;
+    private final Bucket[] wheel;
+    private final Queue<WheelTimeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<WheelTimeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long startTime;
+    private final Thread worker;
+    private volatile boolean closed;
+    private long tick;
+
+    /**
+     * Constructs the wheel, and starts the tick thread.
+     *
+     * @param tickDuration  Duration of one tick.
+     * @param unit          Unit of tick duration.
+     * @param ticksPerWheel Number of buckets, rounded up to a power of 2.
+     * @param name          Name of tick thread.
+     */
+    public HashedTimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel, String name) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("Tick duration and ticks per wheel must be positive.");
+        }
+
+        int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.mask = size - 1;
+        this.wheel = new Bucket[size];
+
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task  The task.
+     * @param delay Delay before running the task.
+     * @param unit  Unit of delay.
+     * @return The handle to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (closed) {
+            throw new IllegalStateException("The timing wheel is closed.");
+        }
+
+        WheelTimeout timeout = new WheelTimeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+        pending.add(timeout);
+
+        return timeout;
+    }
+
+    private void run() {
+        while (!closed) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    // Interrupted by close().
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                continue;
+            }
+
+            removeCancelled();
+            transferPending();
+            wheel[(int) (tick & mask)].expire(deadline);
+
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        WheelTimeout timeout;
+
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferPending() {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            WheelTimeout timeout = pending.poll();
+
+            if (timeout == null) {
+                return;
+            }
+
+            if (timeout.state.get() != WheelTimeout.ST_INIT) {
+                continue;
+            }
+
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+
+            // Overdue timeouts go to the current bucket.
+            long ticks = Math.max(calculated, tick);
+
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Stops the tick thread. The pending tasks are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+    }
+
+    /**
+     * Scheduled task, which is also a node of the doubly-linked list of its bucket.
+     */
+    private final class WheelTimeout implements Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+        // Only accessed by the tick thread.
+        private long remainingRounds;
+        private Bucket bucket;
+        private WheelTimeout prev;
+        private WheelTimeout next;
+
+        private WheelTimeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+
+            cancelled.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.warn("Timing wheel task threw an exception.", e);
+            }
+        }
+    }
+
+    /**
+     * Bucket of the wheel, only accessed by the tick thread.
+     */
+    private final class Bucket {
+        private WheelTimeout head;
+        private WheelTimeout tail;
+
+        private void add(WheelTimeout timeout) {
+            timeout.bucket = this;
+
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private void expire(long deadline) {
+            WheelTimeout timeout = head;
+
+            while (timeout != null) {
+                WheelTimeout next = timeout.next;
+
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    }
+                } else if (timeout.state.get() == WheelTimeout.ST_CANCELLED) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+
+                timeout = next;
+            }
+        }
+
+        private void remove(WheelTimeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Stage}.
+ *
+ * @author Andy Cheung
+ */
+public class StageTest {
+    private static final int KEYS = 8;
+    private static final int TASKS_PER_KEY = 500;
+
+    private Stage stage;
+
+    @After
+    public void tearDown() {
+        if (stage != null) {
+            stage.close();
+        }
+    }
+
+    @Test
+    public void testTasksOfOneKeyRunInOrderWhileResizing() throws InterruptedException {
+        stage = new Stage("Test", 1, 8, 4, KEYS * TASKS_PER_KEY);
+
+        List<List<Integer>> runs = new ArrayList<>();
+        List<AtomicInteger> running = new ArrayList<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(KEYS * TASKS_PER_KEY);
+
+        for (int k = 0; k < KEYS; k++) {
+            runs.add(Collections.synchronizedList(new ArrayList<>()));
+            running.add(new AtomicInteger());
+        }
+
+        for (int i = 0; i < TASKS_PER_KEY; i++) {
+            if (i == TASKS_PER_KEY / 3) {
+                stage.setThreads(1);
+            } else if (i == 2 * TASKS_PER_KEY / 3) {
+                stage.setThreads(8);
+            }
+
+            for (int k = 0; k < KEYS; k++) {
+                int key = k;
+                int index = i;
+
+                stage.execute("key-" + key, () -> {
+                    if (running.get(key).incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+
+                    runs.get(key).add(index);
+                    running.get(key).decrementAndGet();
+                    done.countDown();
+                });
+            }
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+
+        for (List<Integer> run : runs) {
+            assertEquals(TASKS_PER_KEY, run.size());
+
+            for (int i = 0; i < TASKS_PER_KEY; i++) {
+                assertEquals(i, (int) run.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testBlockedKeyDoesNotBlockOthers() throws InterruptedException {
+        stage = new Stage("Test", 2, 2, 2, 16);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch other = new CountDownLatch(1);
+
+        stage.execute("slow", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        stage.execute("fast", other::countDown);
+
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+
+        release.countDown();
+    }
+
+    @Test
+    public void testKeyInDebtRunsLaterTasks() throws InterruptedException {
+        stage = new Stage("Test", 1, 1, 1, 16);
+
+        CountDownLatch done = new CountDownLatch(1);
+
+        // Far longer than a quantum, so the key ends up in debt with nothing queued.
+        stage.execute("a", () -> sleep(50));
+        stage.execute("b", () -> sleep(1));
+
+        Thread.sleep(100);
+        assertEquals(0, stage.getDepth());
+
+        stage.execute("a", done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testOfferRespectsLimits() throws InterruptedException {
+        stage = new Stage("Test", 1, 1, 1, 5, 2);
+
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        // Keeps the only thread busy, so that the tasks below stay queued.
+        stage.execute("x", blocked);
+
+        // Low priority: at most 2 queued tasks of one key.
+        assertTrue(stage.offer("a", blocked, 4));
+        assertTrue(stage.offer("a", blocked, 4));
+        assertFalse(stage.offer("a", blocked, 4));
+
+        // Other keys are still admitted up to the limit.
+        assertTrue(stage.offer("b", blocked, 4));
+        assertFalse(stage.offer("c", blocked, 4));
+
+        // Full priority takes the rest of capacity, and then the stage is full.
+        stage.execute("a", blocked);
+
+        try {
+            stage.execute("a", blocked);
+            fail("Stage should be full.");
+        } catch (RejectedExecutionException e) {
+            // Expected.
+        }
+
+        release.countDown();
+    }
+
+    @Test
+    public void testHasRoomMatchesOffer() throws InterruptedException {
+        stage = new Stage("Test", 1, 1, 1, 4, 1);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        stage.execute("x", blocked);
+
+        assertTrue(stage.hasRoom("a", 3));
+        assertTrue(stage.offer("a", blocked, 3));
+        assertEquals(1, stage.getDepth("a"));
+
+        // The key is at its limit for low priority tasks, not for full priority ones.
+        assertFalse(stage.hasRoom("a", 3));
+        assertTrue(stage.hasRoom("a", 4));
+
+        // Admitted tasks are queued beyond the capacity, in order.
+        stage.enqueue("a", blocked);
+        stage.enqueue("a", blocked);
+        stage.enqueue("a", done::countDown);
+
+        assertEquals(5, stage.getDepth());
+        assertFalse(stage.hasRoom("b", 4));
+
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
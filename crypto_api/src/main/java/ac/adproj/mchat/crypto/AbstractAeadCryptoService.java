@@ -0,0 +1,249 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Abstract template implementation of AEAD crypto services with 96-bit nonces and 128-bit tags.
+ *
+ * <p>The IV given by the caller (derived from the UUID) is not used as nonce, but as associated
+ * data, followed by the associated data of the message, so a message only decrypts with the IV
+ * and the header it was sealed with.</p>
+ *
+ * <p>Cipher objects are created once per thread and transformation, and re-initialized per message,
+ * so short-lived instances (one per message or session) don't pay for Cipher.getInstance().
+ * Encryption and decryption have their own, since some providers refuse to re-initialize a
+ * Cipher with the key and nonce it used last. So instances are thread-safe, and can be cached.</p>
+ *
+ * @author Andy Cheung
+ * @implNote Nonces are a random base per instance, XOR a message counter, so they never repeat
+ *           within an instance, and collide across instances only by chance of 96 bits.
+ */
+public abstract class AbstractAeadCryptoService implements AeadCryptoService {
+    /**
+     * Length of nonce, in bytes.
+     */
+    public static final int NONCE_LENGTH = 12;
+
+    /**
+     * Length of authentication tag, in bytes.
+     */
+    public static final int TAG_LENGTH = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Map<String, CipherContext>> CONTEXTS = ThreadLocal.withInitial(HashMap::new);
+
+    private final String transformation;
+    private final Key key;
+    private final byte[] associatedData;
+    private final byte[] nonceBase = new byte[NONCE_LENGTH];
+    private final AtomicLong counter = new AtomicLong();
+
+    /**
+     * Initializes this object.
+     *
+     * @param transformation The transformation of Cipher, e.g. "AES/GCM/NoPadding".
+     * @param key            The secret key, null for SPI placeholder instances.
+     * @param iv             The session IV, which is authenticated with every message.
+     */
+    protected AbstractAeadCryptoService(String transformation, Key key, byte[] iv) {
+        this.transformation = transformation;
+        this.key = key;
+        this.associatedData = iv == null ? new byte[0] : iv.clone();
+
+        RANDOM.nextBytes(nonceBase);
+    }
+
+    /**
+     * Creates the parameters of Cipher for a nonce.
+     *
+     * @param nonce The nonce.
+     * @return The parameters.
+     */
+    protected abstract AlgorithmParameterSpec parameterSpec(byte[] nonce);
+
+    @Override
+    public int getOverhead() {
+        return NONCE_LENGTH + TAG_LENGTH;
+    }
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException(transformation + " is not available.", e);
+        }
+    }
+
+    private byte[] nextNonce() {
+        byte[] nonce = nonceBase.clone();
+        long n = counter.getAndIncrement();
+
+        for (int i = NONCE_LENGTH - 1; i >= NONCE_LENGTH - 8; i--) {
+            nonce[i] ^= (byte) n;
+            n >>>= 8;
+        }
+
+        return nonce;
+    }
+
+    private Cipher init(int mode, byte[] nonce, byte[] messageData) throws InvalidKeyException {
+        CipherContext context = CONTEXTS.get().computeIfAbsent(transformation, CipherContext::new);
+        Cipher c;
+
+        if (mode == Cipher.ENCRYPT_MODE) {
+            c = context.encryptCipher;
+        } else {
+            // A duplicate message (same key and nonce) needs a new Cipher, for the same reason.
+            if (key.equals(context.lastDecryptKey) && Arrays.equals(nonce, context.lastDecryptNonce)) {
+                context.decryptCipher = newCipher(transformation);
+            }
+
+            c = context.decryptCipher;
+            context.lastDecryptKey = key;
+            context.lastDecryptNonce = nonce;
+        }
+
+        try {
+            c.init(mode, key, parameterSpec(nonce));
+        } catch (InvalidAlgorithmParameterException e) {
+            // Shouldn't happen, the nonce is fresh and of fixed length.
+            throw new AssertionError(e);
+        }
+
+        // The IV has a fixed length, so the two parts can't be shifted into each other.
+        c.updateAAD(associatedData);
+        c.updateAAD(messageData);
+
+        return c;
+    }
+
+    @Override
+    public int encrypt(ByteBuffer plainText, ByteBuffer cipherText, byte[] messageData) throws InvalidKeyException {
+        if (cipherText.remaining() < plainText.remaining() + getOverhead()) {
+            throw new IllegalArgumentException("Destination buffer is too small.");
+        }
+
+        byte[] nonce = nextNonce();
+        Cipher c = init(Cipher.ENCRYPT_MODE, nonce, messageData);
+
+        cipherText.put(nonce);
+
+        try {
+            return NONCE_LENGTH + c.doFinal(plainText, cipherText);
+        } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            // Shouldn't happen in encryption, the size is checked.
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public int decrypt(ByteBuffer cipherText, ByteBuffer plainText, byte[] messageData)
+            throws InvalidKeyException, BadPaddingException {
+        if (cipherText.remaining() < getOverhead()) {
+            throw new BadPaddingException("Message is too short.");
+        }
+
+        if (plainText.remaining() < cipherText.remaining() - getOverhead()) {
+            throw new IllegalArgumentException("Destination buffer is too small.");
+        }
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        cipherText.get(nonce);
+
+        Cipher c = init(Cipher.DECRYPT_MODE, nonce, messageData);
+
+        try {
+            // AEADBadTagException is a BadPaddingException.
+            return c.doFinal(cipherText, plainText);
+        } catch (ShortBufferException | IllegalBlockSizeException e) {
+            // Shouldn't happen, the size is checked.
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public String encryptMessageToBase64String(String message) throws InvalidKeyException {
+        return encryptMessageToBase64String(message, "");
+    }
+
+    @Override
+    public String encryptMessageToBase64String(String message, String messageData) throws InvalidKeyException {
+        byte[] plainText = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer cipherText = ByteBuffer.allocate(plainText.length + getOverhead());
+
+        encrypt(ByteBuffer.wrap(plainText), cipherText, messageData.getBytes(StandardCharsets.UTF_8));
+
+        return Base64.getEncoder().encodeToString(cipherText.array());
+    }
+
+    @Override
+    public String decryptMessageFromBase64String(String base64Message) throws InvalidKeyException, BadPaddingException {
+        return decryptMessageFromBase64String(base64Message, "");
+    }
+
+    @Override
+    public String decryptMessageFromBase64String(String base64Message, String messageData)
+            throws InvalidKeyException, BadPaddingException {
+        byte[] cipherText;
+
+        try {
+            cipherText = Base64.getDecoder().decode(base64Message);
+        } catch (IllegalArgumentException e) {
+            throw new BadPaddingException("Not a Base64 message.");
+        }
+
+        ByteBuffer plainText = ByteBuffer.allocate(Math.max(0, cipherText.length - getOverhead()));
+        decrypt(ByteBuffer.wrap(cipherText), plainText, messageData.getBytes(StandardCharsets.UTF_8));
+
+        return StandardCharsets.UTF_8.decode(plainText.flip()).toString();
+    }
+
+    /**
+     * Cipher objects of one thread and transformation.
+     */
+    private static final class CipherContext {
+        private final Cipher encryptCipher;
+        private Cipher decryptCipher;
+        private Key lastDecryptKey;
+        private byte[] lastDecryptNonce;
+
+        private CipherContext(String transformation) {
+            this.encryptCipher = newCipher(transformation);
+            this.decryptCipher = newCipher(transformation);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto;
+
+import javax.crypto.BadPaddingException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+
+/**
+ * Represents a symmetric crypto service with authenticated encryption (AEAD), which also
+ * works on binary payloads directly, without Base64 and String round-trips.
+ *
+ * <p>Sealed format: (nonce)(ciphertext)(tag). The nonce is chosen per message.</p>
+ *
+ * @author Andy Cheung
+ */
+public interface AeadCryptoService extends SymmetricCryptoService {
+    /**
+     * Obtain the number of bytes that sealing adds to a message (nonce and tag).
+     *
+     * @return The overhead.
+     */
+    int getOverhead();
+
+    /**
+     * Encrypts the remaining bytes of plaintext into the ciphertext buffer.
+     *
+     * @param plainText  The plaintext, whose position is advanced to its limit.
+     * @param cipherText Destination, needs plainText.remaining() + getOverhead() bytes remaining.
+     * @return Number of bytes written.
+     * @throws InvalidKeyException If the key belong to the service is invalid.
+     */
+    default int encrypt(ByteBuffer plainText, ByteBuffer cipherText) throws InvalidKeyException {
+        return encrypt(plainText, cipherText, new byte[0]);
+    }
+
+    /**
+     * Encrypts the remaining bytes of plaintext into the ciphertext buffer, and authenticates
+     * the associated data of this message (e.g. its header) with it.
+     *
+     * @param plainText      The plaintext, whose position is advanced to its limit.
+     * @param cipherText     Destination, needs plainText.remaining() + getOverhead() bytes remaining.
+     * @param associatedData Data that is authenticated but not encrypted, nor included in the ciphertext.
+     * @return Number of bytes written.
+     * @throws InvalidKeyException If the key belong to the service is invalid.
+     */
+    int encrypt(ByteBuffer plainText, ByteBuffer cipherText, byte[] associatedData) throws InvalidKeyException;
+
+    /**
+     * Verifies and decrypts the remaining bytes of ciphertext into the plaintext buffer.
+     *
+     * @param cipherText The sealed message, whose position is advanced to its limit.
+     * @param plainText  Destination, needs cipherText.remaining() - getOverhead() bytes remaining.
+     * @return Number of bytes written.
+     * @throws InvalidKeyException If the key belong to the service is invalid.
+     * @throws BadPaddingException If the message is truncated, forged, or sealed with another key
+     *                             or associated data. Nothing is written in this case.
+     */
+    default int decrypt(ByteBuffer cipherText, ByteBuffer plainText) throws InvalidKeyException, BadPaddingException {
+        return decrypt(cipherText, plainText, new byte[0]);
+    }
+
+    /**
+     * Verifies and decrypts the remaining bytes of ciphertext into the plaintext buffer.
+     *
+     * @param cipherText     The sealed message, whose position is advanced to its limit.
+     * @param plainText      Destination, needs cipherText.remaining() - getOverhead() bytes remaining.
+     * @param associatedData The associated data the message was sealed with.
+     * @return Number of bytes written.
+     * @throws InvalidKeyException If the key belong to the service is invalid.
+     * @throws BadPaddingException If the message is truncated, forged, or sealed with another key
+     *                             or associated data. Nothing is written in this case.
+     */
+    int decrypt(ByteBuffer cipherText, ByteBuffer plainText, byte[] associatedData)
+            throws InvalidKeyException, BadPaddingException;
+
+    /**
+     * Encrypts a text message into Base64 string, and authenticates the associated data with it.
+     *
+     * @param message        The message.
+     * @param associatedData Text that is authenticated but not encrypted, e.g. the sender field.
+     * @return Base64 string of the sealed message.
+     * @throws InvalidKeyException If the key belong to the service is invalid.
+     */
+    String encryptMessageToBase64String(String message, String associatedData) throws InvalidKeyException;
+
+    /**
+     * Verifies and decrypts a Base64 string into text message.
+     *
+     * @param base64Message  Base64 string of the sealed message.
+     * @param associatedData The associated data the message was sealed with.
+     * @return The message.
+     * @throws InvalidKeyException If the key belong to the service is invalid.
+     * @throws BadPaddingException If the message is not Base64, truncated, forged, or sealed with
+     *                             another key or associated data.
+     */
+    String decryptMessageFromBase64String(String base64Message, String associatedData)
+            throws InvalidKeyException, BadPaddingException;
+
+    /**
+     * Encrypts the remaining bytes of plaintext.
+     *
+     * @param plainText The plaintext.
+     * @return The sealed message, ready to read.
+     * @throws InvalidKeyException If the key belong to the service is invalid.
+     */
+    default ByteBuffer encrypt(ByteBuffer plainText) throws InvalidKeyException {
+        ByteBuffer cipherText = ByteBuffer.allocate(plainText.remaining() + getOverhead());
+        encrypt(plainText, cipherText);
+
+        return cipherText.flip();
+    }
+
+    /**
+     * Verifies and decrypts the remaining bytes of ciphertext.
+     *
+     * @param cipherText The sealed message.
+     * @return The plaintext, ready to read.
+     * @throws InvalidKeyException If the key belong to the service is invalid.
+     * @throws BadPaddingException If the message is truncated, forged, or sealed with another key
+     *                             or associated data.
+     */
+    default ByteBuffer decrypt(ByteBuffer cipherText) throws InvalidKeyException, BadPaddingException {
+        ByteBuffer plainText = ByteBuffer.allocate(Math.max(0, cipherText.remaining() - getOverhead()));
+        decrypt(cipherText, plainText);
+
+        return plainText.flip();
+    }
+}
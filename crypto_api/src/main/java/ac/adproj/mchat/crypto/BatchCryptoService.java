@@ -0,0 +1,276 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto;
+
+import javax.crypto.BadPaddingException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Encrypts or decrypts many messages at once with the SPI crypto service, splitting the work
+ * across a ForkJoin pool, e.g. one message for all sessions of a room, or the history of a session.
+ *
+ * <p>A session is identified by its UUID. With a plain key, the IV is derived from the UUID;
+ * with a key epoch, the per-session keys of a {@link SessionKeyCache} are used, as the listeners
+ * do. Each subtask obtains one service instance per session it handles, and the implementations
+ * reuse Cipher objects per thread, so the cost per message is the cipher itself.</p>
+ *
+ * <p>Batches too small to be worth splitting run on the calling thread.</p>
+ *
+ * @author Andy Cheung
+ */
+public class BatchCryptoService {
+    /**
+     * Number of messages below which a batch is not split further.
+     */
+    private static final int SPLIT_THRESHOLD = 16;
+
+    private static final int IV_LENGTH = 16;
+
+    private final Function<String, SymmetricCryptoService> sessionServices;
+    private final ForkJoinPool pool;
+
+    /**
+     * The key epoch, null if constructed with a plain key.
+     */
+    private final KeyRing.Epoch epoch;
+
+    /**
+     * Constructs the service, running on the common pool.
+     *
+     * @param key The secret key.
+     */
+    public BatchCryptoService(Key key) {
+        this(key, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructs the service.
+     *
+     * @param key  The secret key.
+     * @param pool The pool to run on.
+     */
+    public BatchCryptoService(Key key, ForkJoinPool pool) {
+        this(session -> SymmetricCryptoService.getInstance(key, ParamUtil.getIVFromString(session, IV_LENGTH)), null, pool);
+    }
+
+    /**
+     * Constructs the service with per-session keys.
+     *
+     * @param epoch       The key epoch.
+     * @param sessionKeys Cache of per-session services.
+     * @param pool        The pool to run on.
+     */
+    public BatchCryptoService(KeyRing.Epoch epoch, SessionKeyCache sessionKeys, ForkJoinPool pool) {
+        this(session -> sessionKeys.get(epoch, session), epoch, pool);
+    }
+
+    private BatchCryptoService(Function<String, SymmetricCryptoService> sessionServices, KeyRing.Epoch epoch,
+                               ForkJoinPool pool) {
+        this.sessionServices = sessionServices;
+        this.epoch = epoch;
+        this.pool = pool;
+    }
+
+    /**
+     * Encrypts one message for many sessions (fan-out).
+     *
+     * @param message    The raw text message.
+     * @param sessionIds UUIDs of the sessions.
+     * @return Encrypted Base64 results by UUID, in the order of sessionIds.
+     * @throws InvalidKeyException If the key is invalid.
+     */
+    public Map<String, String> encryptForSessions(String message, Collection<String> sessionIds)
+            throws InvalidKeyException {
+        String[] sessions = sessionIds.toArray(new String[0]);
+        String[] results = run(sessions.length, i -> sessions[i], (service, i) -> service.encryptMessageToBase64String(message));
+
+        Map<String, String> resultMap = new LinkedHashMap<>();
+
+        for (int i = 0; i < sessions.length; i++) {
+            resultMap.put(sessions[i], results[i]);
+        }
+
+        return resultMap;
+    }
+
+    /**
+     * Seals one message of a sender for many sessions (fan-out), with the key ID and authentication
+     * of the epoch, as {@link KeyRing.Epoch#encrypt(SymmetricCryptoService, String, String)} does.
+     *
+     * @param sender     The sender, authenticated with the message.
+     * @param message    The raw text message.
+     * @param sessionIds UUIDs of the sessions.
+     * @return Sealed results by UUID, in the order of sessionIds.
+     * @throws InvalidKeyException   If the key is invalid.
+     * @throws IllegalStateException If constructed with a plain key.
+     */
+    public Map<String, String> sealForSessions(String sender, String message, Collection<String> sessionIds)
+            throws InvalidKeyException {
+        if (epoch == null) {
+            throw new IllegalStateException("Sealing needs a key epoch.");
+        }
+
+        String[] sessions = sessionIds.toArray(new String[0]);
+        String[] results = run(sessions.length, i -> sessions[i], (service, i) -> epoch.encrypt(service, sender, message));
+
+        Map<String, String> resultMap = new LinkedHashMap<>();
+
+        for (int i = 0; i < sessions.length; i++) {
+            resultMap.put(sessions[i], results[i]);
+        }
+
+        return resultMap;
+    }
+
+    /**
+     * Encrypts many messages of one session.
+     *
+     * @param messages  The raw text messages.
+     * @param sessionId UUID of the session.
+     * @return Encrypted Base64 results, in the same order.
+     * @throws InvalidKeyException If the key is invalid.
+     */
+    public List<String> encryptMessages(List<String> messages, String sessionId) throws InvalidKeyException {
+        String[] input = messages.toArray(new String[0]);
+
+        return Arrays.asList(run(input.length, i -> sessionId,
+                                (service, i) -> service.encryptMessageToBase64String(input[i])));
+    }
+
+    /**
+     * Decrypts many messages of one session, e.g. history replay.
+     *
+     * @param base64Messages The encrypted Base64 messages.
+     * @param sessionId      UUID of the session.
+     * @return Decrypted messages in the same order, null for the messages that can't be decrypted.
+     * @throws InvalidKeyException If the key is invalid.
+     */
+    public List<String> decryptMessages(List<String> base64Messages, String sessionId) throws InvalidKeyException {
+        String[] input = base64Messages.toArray(new String[0]);
+
+        return Arrays.asList(run(input.length, i -> sessionId, (service, i) -> {
+            try {
+                return service.decryptMessageFromBase64String(input[i]);
+            } catch (BadPaddingException e) {
+                return null;
+            }
+        }));
+    }
+
+    private String[] run(int size, IntFunction<String> sessionOf, Operation operation) throws InvalidKeyException {
+        String[] results = new String[size];
+        Batch batch = new Batch(0, size, results, sessionOf, operation);
+
+        try {
+            if (size <= SPLIT_THRESHOLD) {
+                batch.compute();
+            } else {
+                pool.invoke(batch);
+            }
+        } catch (WrappedInvalidKeyException e) {
+            throw e.getCause();
+        }
+
+        return results;
+    }
+
+    /**
+     * Operation on one message.
+     */
+    @FunctionalInterface
+    private interface Operation {
+        String apply(SymmetricCryptoService service, int index) throws InvalidKeyException;
+    }
+
+    /**
+     * Carries the checked exception through the pool.
+     */
+    private static final class WrappedInvalidKeyException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private WrappedInvalidKeyException(InvalidKeyException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized InvalidKeyException getCause() {
+            return (InvalidKeyException) super.getCause();
+        }
+    }
+
+    /**
+     * Messages [from, to) of a batch.
+     */
+    private final class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final String[] results;
+        private final IntFunction<String> sessionOf;
+        private final Operation operation;
+
+        private Batch(int from, int to, String[] results, IntFunction<String> sessionOf, Operation operation) {
+            this.from = from;
+            this.to = to;
+            this.results = results;
+            this.sessionOf = sessionOf;
+            this.operation = operation;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+
+                invokeAll(new Batch(from, middle, results, sessionOf, operation),
+                          new Batch(middle, to, results, sessionOf, operation));
+                return;
+            }
+
+            String session = null;
+            SymmetricCryptoService service = null;
+
+            for (int i = from; i < to; i++) {
+                String current = sessionOf.apply(i);
+
+                // Consecutive messages of the same session share one instance.
+                if (service == null || !current.equals(session)) {
+                    session = current;
+                    service = sessionServices.apply(session);
+                }
+
+                try {
+                    results[i] = operation.apply(service, i);
+                } catch (InvalidKeyException e) {
+                    throw new WrappedInvalidKeyException(e);
+                }
+            }
+        }
+    }
+}
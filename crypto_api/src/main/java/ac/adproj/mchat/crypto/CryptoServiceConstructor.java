@@ -0,0 +1,53 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto;
+
+import ac.adproj.mchat.util.CommonSpiFactory;
+
+import java.lang.reflect.Constructor;
+import java.security.Key;
+
+/**
+ * Holder of the (Key, byte[]) constructor of the selected SymmetricCryptoService implementation,
+ * which is looked up once, instead of loading the services per message.
+ *
+ * @author Andy Cheung
+ */
+final class CryptoServiceConstructor {
+    /**
+     * The constructor, or null if the implementation has none.
+     */
+    static final Constructor<? extends SymmetricCryptoService> CONSTRUCTOR = lookup();
+
+    private CryptoServiceConstructor() {
+        throw new UnsupportedOperationException("No instance! ");
+    }
+
+    private static Constructor<? extends SymmetricCryptoService> lookup() {
+        Class<? extends SymmetricCryptoService> cls = CommonSpiFactory.getServiceImplementation(
+                SymmetricCryptoService.class, NullCryptoServiceImpl.class).getClass();
+
+        try {
+            return cls.getDeclaredConstructor(Key.class, byte[].class);
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key epochs: the current key, and the previous one during a grace period after rotation,
+ * so that sessions survive a key change instead of reconnecting.
+ *
+ * <p>Every sealed message starts with the ID of the key it was sealed with, which is derived from
+ * the key itself, so both sides agree on it without coordination.</p>
+ *
+ * <p>Sealed format: (key ID):(Base64 ciphertext).(Base64url tag). The HMAC tag is left out for
+ * AEAD services (see {@link Epoch#encrypt(SymmetricCryptoService, String, String)}), whose own tag
+ * authenticates the sender as associated data: (key ID):(Base64 ciphertext)</p>
+ *
+ * @author Andy Cheung
+ */
+public class KeyRing {
+    /**
+     * Separator between key ID and the rest, which is not in Base64 alphabet.
+     */
+    public static final String KEY_ID_SEPARATOR = ":";
+
+    /**
+     * Default time the previous key is still accepted after rotation, in milliseconds.
+     * Overridden by system property acmc.key.graceMillis.
+     */
+    public static final long DEFAULT_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final int KEY_ID_LENGTH = 4;
+    private static final byte[] KEY_ID_LABEL = "acmc key id".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SESSION_KEY_SALT = "acmc session key".getBytes(StandardCharsets.US_ASCII);
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final long graceNanos;
+
+    private volatile Epoch current;
+    private volatile Epoch previous;
+    private volatile long previousExpiresNanos;
+
+    /**
+     * Constructs the ring with the default grace period.
+     *
+     * @param key The initial key.
+     */
+    public KeyRing(Key key) {
+        this(key, Long.getLong("acmc.key.graceMillis", DEFAULT_GRACE_MILLIS));
+    }
+
+    /**
+     * Constructs the ring.
+     *
+     * @param key         The initial key.
+     * @param graceMillis Time the previous key is still accepted after rotation.
+     */
+    public KeyRing(Key key, long graceMillis) {
+        this.graceNanos = TimeUnit.MILLISECONDS.toNanos(graceMillis);
+        this.current = new Epoch(key);
+    }
+
+    /**
+     * Derives the ID of a key, a short fingerprint that doesn't reveal the key.
+     *
+     * @param key The key.
+     * @return The ID, 8 hex digits.
+     */
+    public static String keyIdOf(Key key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(KEY_ID_LABEL);
+
+            byte[] hash = digest.digest(key.getEncoded());
+            StringBuilder sb = new StringBuilder();
+
+            for (int i = 0; i < KEY_ID_LENGTH; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Shouldn't happen, SHA-256 is always available.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Obtain the key ID of a sealed message.
+     *
+     * @param sealed Sealed text.
+     * @return The key ID, or null if there is none.
+     */
+    public static String keyIdOfSealed(String sealed) {
+        int separator = sealed == null ? -1 : sealed.indexOf(KEY_ID_SEPARATOR);
+
+        return separator <= 0 ? null : sealed.substring(0, separator);
+    }
+
+    /**
+     * Makes the key current. The current key becomes previous, and is accepted during the grace period.
+     *
+     * @param key The new key.
+     * @return False if the key is already current.
+     */
+    public synchronized boolean rotate(Key key) {
+        Epoch next = new Epoch(key);
+
+        if (next.keyId.equals(current.keyId)) {
+            return false;
+        }
+
+        previous = current;
+        previousExpiresNanos = System.nanoTime() + graceNanos;
+        current = next;
+
+        return true;
+    }
+
+    /**
+     * Obtain the current epoch, for sealing.
+     *
+     * @return The epoch.
+     */
+    public Epoch current() {
+        return current;
+    }
+
+    /**
+     * Finds the epoch of a key ID, for opening.
+     *
+     * @param keyId The key ID.
+     * @return The current epoch, the previous one during the grace period, or null.
+     */
+    public Epoch find(String keyId) {
+        Epoch c = current;
+
+        if (c.keyId.equals(keyId)) {
+            return c;
+        }
+
+        Epoch p = previous;
+
+        if (p != null && p.keyId.equals(keyId) && System.nanoTime() - previousExpiresNanos < 0) {
+            return p;
+        }
+
+        return null;
+    }
+
+    /**
+     * Chooses the epoch to seal for a peer, which is the one the peer used last while it is still
+     * accepted, so that a peer that has not loaded the new key yet can still read.
+     *
+     * @param lastKeyId The key ID the peer used last, may be null.
+     * @return The epoch.
+     */
+    public Epoch forPeer(String lastKeyId) {
+        Epoch e = lastKeyId == null ? null : find(lastKeyId);
+
+        return e == null ? current : e;
+    }
+
+    private static byte[] hmac(byte[] key, byte[]... data) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+
+            for (byte[] d : data) {
+                mac.update(d);
+            }
+
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            // Shouldn't happen, HMAC-SHA256 is always available.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * One key and its authenticator.
+     */
+    public static final class Epoch {
+        private final String keyId;
+        private final Key key;
+        private final MessageAuthenticator authenticator;
+
+        /**
+         * Pseudorandom key of HKDF (RFC 5869) for session keys, extracted once per epoch.
+         */
+        private final byte[] sessionKeyPrk;
+
+        private Epoch(Key key) {
+            this.keyId = keyIdOf(key);
+            this.key = key;
+            this.authenticator = new MessageAuthenticator(key);
+            this.sessionKeyPrk = hmac(SESSION_KEY_SALT, key.getEncoded());
+        }
+
+        /**
+         * Derives the key of a session with HKDF-Expand, which has the length and algorithm of
+         * this key. It is worth caching, see {@link SessionKeyCache}.
+         *
+         * @param sessionId UUID of the session.
+         * @return The session key.
+         */
+        public Key deriveSessionKey(String sessionId) {
+            byte[] info = sessionId.getBytes(StandardCharsets.UTF_8);
+            int length = key.getEncoded().length;
+            byte[] okm = new byte[length];
+            byte[] t = new byte[0];
+
+            for (int i = 0, counter = 1; i < length; counter++) {
+                t = hmac(sessionKeyPrk, t, info, new byte[]{(byte) counter});
+
+                int n = Math.min(t.length, length - i);
+                System.arraycopy(t, 0, okm, i, n);
+                i += n;
+            }
+
+            return new SecretKeySpec(okm, key.getAlgorithm());
+        }
+
+        public String getKeyId() {
+            return keyId;
+        }
+
+        public Key getKey() {
+            return key;
+        }
+
+        /**
+         * Prepends the key ID and appends the tag to the ciphertext.
+         *
+         * @param sender     The sender field of the message (UUID or name).
+         * @param ciphertext Base64 ciphertext.
+         * @return Sealed text.
+         */
+        public String seal(String sender, String ciphertext) {
+            return keyId + KEY_ID_SEPARATOR + authenticator.seal(sender, ciphertext);
+        }
+
+        /**
+         * Verifies the key ID and the tag, and strips them.
+         *
+         * @param sender The sender field of the message (UUID or name).
+         * @param sealed Sealed text.
+         * @return The ciphertext, or null if the key ID or tag is wrong.
+         */
+        public String open(String sender, String sealed) {
+            if (sealed == null || !sealed.startsWith(keyId + KEY_ID_SEPARATOR)) {
+                return null;
+            }
+
+            return authenticator.open(sender, sealed.substring(keyId.length() + KEY_ID_SEPARATOR.length()));
+        }
+
+        /**
+         * Encrypts and seals a message with the crypto service of a session under this key.
+         *
+         * <p>AEAD services authenticate the sender as associated data, so their messages carry no
+         * HMAC tag: one tag and one pass over the message instead of two.</p>
+         *
+         * @param service The crypto service, e.g. from {@link SessionKeyCache}.
+         * @param sender  The sender field of the message (UUID or name).
+         * @param message The plain message.
+         * @return Sealed text.
+         * @throws InvalidKeyException If the key of service is invalid.
+         */
+        public String encrypt(SymmetricCryptoService service, String sender, String message) throws InvalidKeyException {
+            if (service instanceof AeadCryptoService) {
+                return keyId + KEY_ID_SEPARATOR + ((AeadCryptoService) service).encryptMessageToBase64String(message, sender);
+            }
+
+            return seal(sender, service.encryptMessageToBase64String(message));
+        }
+
+        /**
+         * Verifies and decrypts a sealed message, see {@link #encrypt(SymmetricCryptoService, String, String)}.
+         *
+         * @param service The crypto service, e.g. from {@link SessionKeyCache}.
+         * @param sender  The sender field of the message (UUID or name).
+         * @param sealed  Sealed text.
+         * @return The plain message, or null if the key ID or tag is wrong, i.e. forged or corrupted.
+         * @throws InvalidKeyException If the key of service is invalid.
+         * @throws BadPaddingException If the tag is right but decryption fails, e.g. the peer has another cipher.
+         */
+        public String decrypt(SymmetricCryptoService service, String sender, String sealed)
+                throws InvalidKeyException, BadPaddingException {
+            if (!(service instanceof AeadCryptoService)) {
+                String ciphertext = open(sender, sealed);
+
+                return ciphertext == null ? null : service.decryptMessageFromBase64String(ciphertext);
+            }
+
+            if (sealed == null || !sealed.startsWith(keyId + KEY_ID_SEPARATOR)) {
+                return null;
+            }
+
+            try {
+                return ((AeadCryptoService) service).decryptMessageFromBase64String(
+                            sealed.substring(keyId.length() + KEY_ID_SEPARATOR.length()), sender);
+            } catch (BadPaddingException e) {
+                // The AEAD tag is the only authentication.
+                return null;
+            }
+        }
+    }
+}
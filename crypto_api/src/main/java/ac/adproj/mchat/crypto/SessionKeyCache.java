@@ -0,0 +1,183 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto;
+
+import javax.crypto.BadPaddingException;
+import java.security.InvalidKeyException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of per-session crypto services, each with its own key derived from the
+ * master key of an epoch and the session UUID, so that sessions don't share a key, while the
+ * derivation runs once per session instead of per message.
+ *
+ * <p>Entries should be invalidated when the session ends; the bound only limits the memory
+ * of sessions that are not.</p>
+ *
+ * @author Andy Cheung
+ * @see KeyRing.Epoch#deriveSessionKey(String)
+ */
+public class SessionKeyCache {
+    private static final int IV_LENGTH = 16;
+
+    /**
+     * Whether the selected implementation is an AEAD service, which authenticates without HMAC tag.
+     */
+    private static final boolean AEAD = CryptoServiceConstructor.CONSTRUCTOR != null
+            && AeadCryptoService.class.isAssignableFrom(CryptoServiceConstructor.CONSTRUCTOR.getDeclaringClass());
+
+    private final Map<String, Map<String, SymmetricCryptoService>> sessions;
+
+    /**
+     * Constructs the cache.
+     *
+     * @param maxSessions Maximum number of sessions cached.
+     */
+    public SessionKeyCache(int maxSessions) {
+        this.sessions = new LinkedHashMap<String, Map<String, SymmetricCryptoService>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, SymmetricCryptoService>> eldest) {
+                return size() > maxSessions;
+            }
+        };
+    }
+
+    /**
+     * Obtain the crypto service of a session under the key of an epoch, deriving it if not cached.
+     *
+     * @param epoch     The key epoch.
+     * @param sessionId UUID of the session, from which the IV is also derived.
+     * @return The service, which is thread-safe.
+     */
+    public SymmetricCryptoService get(KeyRing.Epoch epoch, String sessionId) {
+        SymmetricCryptoService service = lookup(epoch, sessionId);
+
+        if (service == null) {
+            // Derived outside the lock; a race only derives the same key twice.
+            service = derive(epoch, sessionId);
+            put(epoch, sessionId, service);
+        }
+
+        return service;
+    }
+
+    /**
+     * Verifies and decrypts a sealed message of a session. Nothing is derived or cached for a
+     * message that fails authentication, as far as the cipher allows:
+     *
+     * <ul>
+     *     <li>With encrypt-then-MAC, the tag of the epoch is checked first, so garbage costs one HMAC.</li>
+     *     <li>AEAD services have no tag without the session key. A key that isn't cached is derived
+     *         for this message only, and cached after the message verifies, so forged messages of
+     *         made-up sessions never push real sessions out of the cache.</li>
+     * </ul>
+     *
+     * @param epoch     The key epoch, found by the key ID of the message.
+     * @param sessionId UUID of the session.
+     * @param sender    The sender field of the message (UUID or name).
+     * @param sealed    Sealed text.
+     * @return The plain message, or null if the key ID or tag is wrong.
+     * @throws InvalidKeyException If the key is invalid.
+     * @throws BadPaddingException If the tag is right but decryption fails.
+     */
+    public String decrypt(KeyRing.Epoch epoch, String sessionId, String sender, String sealed)
+            throws InvalidKeyException, BadPaddingException {
+        if (!AEAD) {
+            String ciphertext = epoch.open(sender, sealed);
+
+            return ciphertext == null ? null : get(epoch, sessionId).decryptMessageFromBase64String(ciphertext);
+        }
+
+        SymmetricCryptoService service = lookup(epoch, sessionId);
+
+        if (service != null) {
+            return epoch.decrypt(service, sender, sealed);
+        }
+
+        service = derive(epoch, sessionId);
+
+        String plain = epoch.decrypt(service, sender, sealed);
+
+        if (plain != null) {
+            put(epoch, sessionId, service);
+        }
+
+        return plain;
+    }
+
+    private SymmetricCryptoService lookup(KeyRing.Epoch epoch, String sessionId) {
+        synchronized (sessions) {
+            Map<String, SymmetricCryptoService> epochs = sessions.get(sessionId);
+
+            return epochs == null ? null : epochs.get(epoch.getKeyId());
+        }
+    }
+
+    private static SymmetricCryptoService derive(KeyRing.Epoch epoch, String sessionId) {
+        return SymmetricCryptoService.getInstance(epoch.deriveSessionKey(sessionId),
+                                                  ParamUtil.getIVFromString(sessionId, IV_LENGTH));
+    }
+
+    private void put(KeyRing.Epoch epoch, String sessionId, SymmetricCryptoService service) {
+        synchronized (sessions) {
+            Map<String, SymmetricCryptoService> epochs = sessions.computeIfAbsent(sessionId, k -> new HashMap<>(2));
+
+            // Keeps the current and the previous epoch at most.
+            if (epochs.size() >= 2 && !epochs.containsKey(epoch.getKeyId())) {
+                epochs.clear();
+            }
+
+            epochs.put(epoch.getKeyId(), service);
+        }
+    }
+
+    /**
+     * Removes a session, e.g. on logoff.
+     *
+     * @param sessionId UUID of the session.
+     */
+    public void invalidate(String sessionId) {
+        synchronized (sessions) {
+            sessions.remove(sessionId);
+        }
+    }
+
+    /**
+     * Removes all sessions.
+     */
+    public void clear() {
+        synchronized (sessions) {
+            sessions.clear();
+        }
+    }
+
+    /**
+     * Obtain the number of sessions cached.
+     *
+     * @return The size.
+     */
+    public int size() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+}
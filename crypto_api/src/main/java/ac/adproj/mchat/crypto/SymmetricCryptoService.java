@@ -17,8 +17,6 @@
 
 package ac.adproj.mchat.crypto;
 
-import ac.adproj.mchat.util.CommonSpiFactory;
-
 import javax.crypto.BadPaddingException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -54,16 +52,23 @@ public interface SymmetricCryptoService {
      */
     String decryptMessageFromBase64String(String base64Message) throws InvalidKeyException, BadPaddingException;
 
+    /**
+     * Creates an instance of the implementation selected by SPI.
+     *
+     * @param key The secret key.
+     * @param iv  The initial vector, e.g. derived from the UUID of session.
+     * @return The instance, or the null implementation if it can't be created.
+     */
     static SymmetricCryptoService getInstance(Key key, byte[] iv) {
-        Class<? extends SymmetricCryptoService> cls = CommonSpiFactory.getServiceImplementation(SymmetricCryptoService.class, NullCryptoServiceImpl.class).getClass();
+        Constructor<? extends SymmetricCryptoService> ctor = CryptoServiceConstructor.CONSTRUCTOR;
 
-        Constructor<? extends SymmetricCryptoService> ctor = null;
+        if (ctor == null) {
+            return new NullCryptoServiceImpl();
+        }
 
         try {
-            ctor = cls.getDeclaredConstructor(Key.class, byte[].class);
-
             return ctor.newInstance(key, iv);
-        } catch (InstantiationException | InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
+        } catch (InstantiationException | InvocationTargetException | IllegalAccessException e) {
             e.printStackTrace();
 
             return new NullCryptoServiceImpl();
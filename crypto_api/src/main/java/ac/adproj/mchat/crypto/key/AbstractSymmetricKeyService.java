@@ -17,21 +17,89 @@
 
 package ac.adproj.mchat.crypto.key;
 
+import ac.adproj.mchat.crypto.KeyRing;
+
+import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.security.Key;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Abstract template implementation of Symmetric Key Service.
+ *
+ * <p>Key file format (version 1), big endian:</p>
+ * <pre>
+ *     "ACMK" (4 bytes) | version (1 byte) | key ID (4 bytes) |
+ *     algorithm length (1 byte) | algorithm (ASCII) | key length (2 bytes) | key
+ * </pre>
+ *
+ * <p>The key ID is the one of {@link KeyRing#keyIdOf(Key)}, and is checked when reading, so a
+ * damaged file is detected. Files of the old format (Java serialization of the Key object)
+ * are still read.</p>
+ *
+ * <p>Keys read are cached by path, and read again only if the modification time or size of
+ * the file changed.</p>
  * 
  * @author Andy Cheung
  */
 public abstract class AbstractSymmetricKeyService implements SymmetricKeyService {
+    private static final byte[] MAGIC = "ACMK".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final int KEY_ID_LENGTH = 4;
+
+    /**
+     * First bytes of Java serialization stream, i.e. the old format.
+     */
+    private static final byte[] SERIALIZATION_MAGIC = {(byte) 0xAC, (byte) 0xED};
+
+    private static final Map<Path, CachedKey> CACHE = new ConcurrentHashMap<>();
 
     @Override
     public void storeKeyToFile(Key key, String fileName) throws IOException {
-        try (ObjectOutputStream o = new ObjectOutputStream(new FileOutputStream(fileName))) {
-            o.writeObject(key);
+        byte[] encoded = key.getEncoded();
+        byte[] algorithm = key.getAlgorithm().getBytes(StandardCharsets.US_ASCII);
+
+        if (encoded == null || algorithm.length > 0xFF || encoded.length > 0xFFFF) {
+            throw new IOException("Unsupported key: " + key.getAlgorithm());
         }
+
+        ByteBuffer bb = ByteBuffer.allocate(MAGIC.length + 1 + KEY_ID_LENGTH + 1 + algorithm.length + 2 + encoded.length);
+
+        bb.put(MAGIC)
+          .put(VERSION)
+          .putInt(Integer.parseUnsignedInt(KeyRing.keyIdOf(key), 16))
+          .put((byte) algorithm.length)
+          .put(algorithm)
+          .putShort((short) encoded.length)
+          .put(encoded);
+
+        Path path = Paths.get(fileName).toAbsolutePath();
+        Path parent = path.getParent();
+        Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+
+        // Replaces the file at once, so that a watcher never reads half a key.
+        try {
+            Files.write(temp, bb.array());
+
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        CACHE.remove(path);
     }
 
     @Override
@@ -45,7 +113,61 @@ public abstract class AbstractSymmetricKeyService implements SymmetricKeyService
 
     @Override
     public Key readKeyFromFile(String fileName) throws IOException {
-        try (ObjectInputStream o = new ObjectInputStream(new FileInputStream(fileName))) {
+        Path path = Paths.get(fileName).toAbsolutePath();
+        FileTime modified = Files.getLastModifiedTime(path);
+        long size = Files.size(path);
+
+        CachedKey cached = CACHE.get(path);
+
+        if (cached != null && cached.modified.equals(modified) && cached.size == size) {
+            return cached.key;
+        }
+
+        byte[] content = Files.readAllBytes(path);
+        Key key = startsWith(content, SERIALIZATION_MAGIC) ? readLegacyKey(content) : readKey(content);
+
+        CACHE.put(path, new CachedKey(modified, content.length, key));
+
+        return key;
+    }
+
+    private static Key readKey(byte[] content) throws IOException {
+        if (!startsWith(content, MAGIC)) {
+            throw new IOException("Not a key file.");
+        }
+
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(content, MAGIC.length, content.length - MAGIC.length);
+
+            byte version = bb.get();
+
+            if (version != VERSION) {
+                throw new IOException("Unsupported key file version: " + version);
+            }
+
+            int keyId = bb.getInt();
+
+            byte[] algorithm = new byte[Byte.toUnsignedInt(bb.get())];
+            bb.get(algorithm);
+
+            byte[] encoded = new byte[Short.toUnsignedInt(bb.getShort())];
+            bb.get(encoded);
+
+            Key key = new SecretKeySpec(encoded, new String(algorithm, StandardCharsets.US_ASCII));
+
+            if (Integer.parseUnsignedInt(KeyRing.keyIdOf(key), 16) != keyId) {
+                throw new IOException("Key file is damaged, key ID mismatch.");
+            }
+
+            return key;
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, or empty key etc.
+            throw new IOException("Key file is truncated or damaged.", e);
+        }
+    }
+
+    private static Key readLegacyKey(byte[] content) throws IOException {
+        try (ObjectInputStream o = new ObjectInputStream(new ByteArrayInputStream(content))) {
             return (Key) o.readObject();
         } catch (ClassNotFoundException e) {
             // Shouldn't happen.
@@ -53,4 +175,32 @@ public abstract class AbstractSymmetricKeyService implements SymmetricKeyService
         }
     }
 
+    private static boolean startsWith(byte[] content, byte[] prefix) {
+        if (content.length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (content[i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * A key read, with the state of its file.
+     */
+    private static final class CachedKey {
+        private final FileTime modified;
+        private final long size;
+        private final Key key;
+
+        private CachedKey(FileTime modified, long size, Key key) {
+            this.modified = modified;
+            this.size = size;
+            this.key = key;
+        }
+    }
 }
@@ -0,0 +1,117 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto.key;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.Key;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Polls a key file, and reads it again through SymmetricKeyService when it is modified,
+ * so that a new key can be rolled out without restarting.
+ *
+ * @author Andy Cheung
+ */
+public class KeyFileWatcher implements AutoCloseable {
+    /**
+     * Default polling interval, in milliseconds. Overridden by system property acmc.key.reloadIntervalMillis.
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(KeyFileWatcher.class);
+
+    private final Path file;
+    private final Consumer<Key> onChanged;
+    private final ScheduledExecutorService timer;
+    private FileTime lastModified;
+
+    /**
+     * Constructs the watcher with the default interval, and starts polling.
+     *
+     * @param fileName  Path to the key file.
+     * @param onChanged Callback with the key read, after the file was modified.
+     */
+    public KeyFileWatcher(String fileName, Consumer<Key> onChanged) {
+        this(fileName, onChanged, Long.getLong("acmc.key.reloadIntervalMillis", DEFAULT_INTERVAL_MILLIS));
+    }
+
+    /**
+     * Constructs the watcher, and starts polling.
+     *
+     * @param fileName       Path to the key file.
+     * @param onChanged      Callback with the key read, after the file was modified.
+     * @param intervalMillis Polling interval.
+     */
+    public KeyFileWatcher(String fileName, Consumer<Key> onChanged, long intervalMillis) {
+        this.file = Paths.get(fileName);
+        this.onChanged = onChanged;
+        this.lastModified = modifiedTime();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Key File Watcher");
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        timer.scheduleWithFixedDelay(this::poll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private FileTime modifiedTime() {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void poll() {
+        FileTime modified = modifiedTime();
+
+        if (modified == null || modified.equals(lastModified)) {
+            return;
+        }
+
+        try {
+            Key key = SymmetricKeyService.getInstance().readKeyFromFile(file.toString());
+
+            lastModified = modified;
+            onChanged.accept(key);
+        } catch (IOException | RuntimeException e) {
+            // Maybe still being written, try again next time.
+            LOG.warn("Failed to reload key file {}.", file, e);
+        }
+    }
+
+    /**
+     * Stops polling.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+}
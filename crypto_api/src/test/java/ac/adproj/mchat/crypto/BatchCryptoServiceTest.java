@@ -0,0 +1,85 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto;
+
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link BatchCryptoService}, with the implementation of the class path.
+ *
+ * @author Andy Cheung
+ */
+public class BatchCryptoServiceTest {
+    private static final String SESSION = "6f1c5b0e-2a4d-4c8e-9f6a-1b2c3d4e5f60";
+    private static final String SENDER = "Andy";
+
+    /**
+     * Large enough to be split across the pool.
+     */
+    private static final int SESSIONS = 100;
+
+    private final KeyRing.Epoch epoch = new KeyRing(new SecretKeySpec(new byte[16], "AES")).current();
+    private final SessionKeyCache cache = new SessionKeyCache(SESSIONS);
+    private final BatchCryptoService batch = new BatchCryptoService(epoch, cache, ForkJoinPool.commonPool());
+
+    @Test
+    public void testSealForSessions() throws Exception {
+        List<String> sessions = new ArrayList<>();
+
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions.add(SESSION.substring(0, 34) + String.format("%02d", i));
+        }
+
+        Map<String, String> sealed = batch.sealForSessions(SENDER, "Hello", sessions);
+
+        assertEquals(sessions, new ArrayList<>(sealed.keySet()));
+
+        for (String session : sessions) {
+            assertEquals("Hello", cache.decrypt(epoch, session, SENDER, sealed.get(session)));
+            assertNull(cache.decrypt(epoch, session, "somebody else", sealed.get(session)));
+        }
+    }
+
+    @Test
+    public void testMessagesOfOneSessionRoundTrip() throws Exception {
+        List<String> messages = new ArrayList<>();
+
+        for (int i = 0; i < SESSIONS; i++) {
+            messages.add("Message " + i);
+        }
+
+        List<String> encrypted = batch.encryptMessages(messages, SESSION);
+
+        assertEquals(SESSIONS, encrypted.size());
+        assertEquals(messages, batch.decryptMessages(encrypted, SESSION));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSealingNeedsEpoch() throws Exception {
+        new BatchCryptoService(new SecretKeySpec(new byte[16], "AES"))
+                .sealForSessions(SENDER, "Hello", List.of(SESSION));
+    }
+}
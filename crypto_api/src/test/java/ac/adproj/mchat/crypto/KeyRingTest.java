@@ -0,0 +1,105 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto;
+
+import org.junit.Test;
+
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of sealing with {@link KeyRing.Epoch}.
+ *
+ * @author Andy Cheung
+ */
+public class KeyRingTest {
+    private static final Key KEY = new SecretKeySpec(new byte[16], "AES");
+    private static final Key OTHER_KEY = new SecretKeySpec(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES");
+    private static final String SENDER = "6f1c5b0e-2a4d-4c8e-9f6a-1b2c3d4e5f60";
+
+    /**
+     * AES/GCM from the JDK, as the AEAD implementations are in their own modules.
+     */
+    private static final class GcmService extends AbstractAeadCryptoService {
+        GcmService(Key key) {
+            super("AES/GCM/NoPadding", key, ParamUtil.getIVFromString(SENDER, 16));
+        }
+
+        @Override
+        protected AlgorithmParameterSpec parameterSpec(byte[] nonce) {
+            return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+        }
+    }
+
+    private final KeyRing.Epoch epoch = new KeyRing(KEY).current();
+    private final GcmService aead = new GcmService(epoch.deriveSessionKey(SENDER));
+
+    @Test
+    public void testAeadRoundTripCarriesNoHmacTag() throws Exception {
+        String sealed = epoch.encrypt(aead, SENDER, "Hello, world");
+
+        assertEquals(epoch.getKeyId(), KeyRing.keyIdOfSealed(sealed));
+        assertFalse(sealed.contains(MessageAuthenticator.TAG_SEPARATOR));
+        assertEquals("Hello, world", epoch.decrypt(aead, SENDER, sealed));
+    }
+
+    @Test
+    public void testAeadAuthenticatesSender() throws Exception {
+        String sealed = epoch.encrypt(aead, SENDER, "Hello, world");
+
+        assertNull(epoch.decrypt(aead, "somebody else", sealed));
+    }
+
+    @Test
+    public void testAeadRejectsTamperedMessage() throws Exception {
+        String sealed = epoch.encrypt(aead, SENDER, "Hello, world");
+        String prefix = epoch.getKeyId() + KeyRing.KEY_ID_SEPARATOR;
+        byte[] cipherText = Base64.getDecoder().decode(sealed.substring(prefix.length()));
+
+        cipherText[cipherText.length / 2] ^= 1;
+
+        String tampered = prefix + Base64.getEncoder().encodeToString(cipherText);
+
+        assertNull(epoch.decrypt(aead, SENDER, tampered));
+        assertNull(epoch.decrypt(aead, SENDER, epoch.getKeyId() + KeyRing.KEY_ID_SEPARATOR + "!!"));
+        assertNull(epoch.decrypt(aead, SENDER, null));
+    }
+
+    @Test
+    public void testOtherEpochIsRejected() throws Exception {
+        KeyRing.Epoch other = new KeyRing(OTHER_KEY).current();
+        String sealed = other.encrypt(new GcmService(other.deriveSessionKey(SENDER)), SENDER, "Hello, world");
+
+        assertNull(epoch.decrypt(aead, SENDER, sealed));
+    }
+
+    @Test
+    public void testOtherServicesKeepHmacTag() throws Exception {
+        SymmetricCryptoService plain = new NullCryptoServiceImpl();
+        String sealed = epoch.encrypt(plain, SENDER, "Hello");
+
+        assertTrue(sealed.contains(MessageAuthenticator.TAG_SEPARATOR));
+        assertEquals("Hello", epoch.decrypt(plain, SENDER, sealed));
+        assertNull(epoch.decrypt(plain, "somebody else", sealed));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto;
+
+import org.junit.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link SessionKeyCache}, with the implementation of the class path (encrypt-then-MAC).
+ *
+ * @author Andy Cheung
+ */
+public class SessionKeyCacheTest {
+    private static final String SESSION = "6f1c5b0e-2a4d-4c8e-9f6a-1b2c3d4e5f60";
+
+    private final KeyRing.Epoch epoch = new KeyRing(new SecretKeySpec(new byte[16], "AES")).current();
+    private final SessionKeyCache cache = new SessionKeyCache(4);
+
+    @Test
+    public void testForgedMessageCachesNothing() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertNull(cache.decrypt(epoch, "made-up-" + i, "made-up-" + i, epoch.getKeyId() + ":AAAA.AAAA"));
+        }
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testAuthenticMessageIsDecryptedAndCached() throws Exception {
+        String sealed = epoch.encrypt(cache.get(epoch, SESSION), SESSION, "Hello");
+
+        cache.clear();
+
+        assertEquals("Hello", cache.decrypt(epoch, SESSION, SESSION, sealed));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testLruBound() {
+        for (int i = 0; i < 10; i++) {
+            cache.get(epoch, SESSION.substring(0, 35) + i);
+        }
+
+        assertEquals(4, cache.size());
+    }
+}
@@ -0,0 +1,175 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.crypto.key;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Key;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the key file format of {@link AbstractSymmetricKeyService}.
+ *
+ * @author Andy Cheung
+ */
+public class AbstractSymmetricKeyServiceTest {
+    /**
+     * Size of header before the algorithm name: magic, version, key ID and algorithm length.
+     */
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 1;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AESKeyServiceImpl service = new AESKeyServiceImpl();
+
+    @Test
+    public void testStoreAndRead() throws Exception {
+        Key key = service.generateKey();
+        Path file = folder.getRoot().toPath().resolve("key.acmk");
+
+        service.storeKeyToFile(key, file.toString());
+
+        byte[] content = Files.readAllBytes(file);
+
+        assertEquals("ACMK", new String(content, 0, 4, StandardCharsets.US_ASCII));
+        assertEquals(1, content[4]);
+        assertEquals(HEADER_SIZE + "AES".length() + 2 + key.getEncoded().length, content.length);
+
+        assertSameKey(key, service.readKeyFromFile(file.toString()));
+    }
+
+    @Test
+    public void testGenerateAndStore() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("generated.acmk");
+
+        Key key = service.generateKeyAndStoreToFile(file.toString());
+
+        assertSameKey(key, service.readKeyFromFile(file.toString()));
+    }
+
+    @Test
+    public void testReplacedKeyIsReadAgain() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("rotated.acmk");
+        Key first = service.generateKey();
+        Key second = service.generateKey();
+
+        service.storeKeyToFile(first, file.toString());
+        assertSameKey(first, service.readKeyFromFile(file.toString()));
+
+        service.storeKeyToFile(second, file.toString());
+        assertSameKey(second, service.readKeyFromFile(file.toString()));
+    }
+
+    @Test
+    public void testLegacySerializedKey() throws Exception {
+        Key key = service.generateKey();
+        Path file = folder.getRoot().toPath().resolve("legacy.key");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new SecretKeySpec(key.getEncoded(), key.getAlgorithm()));
+        }
+
+        Files.write(file, bytes.toByteArray());
+
+        assertSameKey(key, service.readKeyFromFile(file.toString()));
+    }
+
+    @Test
+    public void testTruncatedFile() throws Exception {
+        byte[] content = storedKey();
+
+        for (int length : new int[]{0, 3, HEADER_SIZE, content.length - 1}) {
+            Path file = write("truncated-" + length + ".acmk", Arrays.copyOf(content, length));
+
+            assertUnreadable(file);
+        }
+    }
+
+    @Test
+    public void testKeyIdMismatch() throws Exception {
+        byte[] content = storedKey();
+
+        // Last byte of the key itself.
+        content[content.length - 1] ^= 1;
+
+        Path file = write("damaged.acmk", content);
+
+        try {
+            service.readKeyFromFile(file.toString());
+            fail("Damaged key should not be read.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("key ID mismatch"));
+        }
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws Exception {
+        byte[] content = storedKey();
+        content[4] = 2;
+
+        assertUnreadable(write("future.acmk", content));
+    }
+
+    @Test
+    public void testNotAKeyFile() throws Exception {
+        assertUnreadable(write("text.txt", "Hello, world".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private byte[] storedKey() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("original.acmk");
+
+        service.storeKeyToFile(service.generateKey(), file.toString());
+
+        return Files.readAllBytes(file);
+    }
+
+    private Path write(String name, byte[] content) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, content);
+
+        return file;
+    }
+
+    private void assertUnreadable(Path file) {
+        try {
+            service.readKeyFromFile(file.toString());
+            fail("File should not be read: " + file.getFileName());
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private static void assertSameKey(Key expected, Key actual) {
+        assertEquals(expected.getAlgorithm(), actual.getAlgorithm());
+        assertArrayEquals(expected.getEncoded(), actual.getEncoded());
+    }
+}
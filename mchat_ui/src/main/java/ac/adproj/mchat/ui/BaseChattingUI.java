@@ -17,6 +17,7 @@
 
 package ac.adproj.mchat.ui;
 
+import ac.adproj.mchat.service.MessageDistributor.SubscriberCallback;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
@@ -35,24 +36,35 @@ import org.eclipse.swt.widgets.Text;
  */
 public abstract class BaseChattingUI extends Shell {
     protected Text messageToSend;
-    protected Text messageDisplay;
+    protected TranscriptView messageDisplay;
     protected Button logoff;
     protected Button send;
-    
-    private boolean hasReceivedMessage;
-    
+
     /**
      * Appends message to the message display.
      * 
      * @param message The message.
      */
     public void appendMessageDisplay(String message) {
-        if (hasReceivedMessage) {
-            messageDisplay.setText(messageDisplay.getText() + "\r\n" + message);
-        } else {
-            messageDisplay.setText(message);
-            hasReceivedMessage = true;
-        }
+        messageDisplay.append(message);
+    }
+
+    /**
+     * Appends a batch of messages to the message display.
+     *
+     * @param messages The messages.
+     */
+    public void appendMessageDisplay(String[] messages) {
+        messageDisplay.append(messages);
+    }
+
+    /**
+     * Creates the subscriber that shows distributed messages in this UI.
+     *
+     * @return The subscriber callback.
+     */
+    protected SubscriberCallback createUiSubscriber() {
+        return new CoalescingUiSubscriber(this);
     }
 
     /**
@@ -75,10 +87,10 @@ public abstract class BaseChattingUI extends Shell {
      */
     protected void createContents() {
         
-        messageDisplay = new Text(this, SWT.BORDER | SWT.READ_ONLY | SWT.H_SCROLL | SWT.V_SCROLL | SWT.CANCEL | SWT.MULTI);
+        messageDisplay = new TranscriptView(this, TranscriptView.DEFAULT_CAPACITY);
         GridData gd_messageDisplay = new GridData(SWT.FILL, SWT.FILL, true, true, 4, 1);
         gd_messageDisplay.heightHint = 364;
-        messageDisplay.setLayoutData(gd_messageDisplay);
+        messageDisplay.getControl().setLayoutData(gd_messageDisplay);
         
         messageToSend = new Text(this, SWT.BORDER | SWT.H_SCROLL | SWT.V_SCROLL | SWT.CANCEL | SWT.MULTI);
         GridData gd_messageToSend = new GridData(SWT.FILL, SWT.FILL, true, true, 2, 2);
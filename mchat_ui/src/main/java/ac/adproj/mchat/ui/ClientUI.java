@@ -44,9 +44,7 @@ public class ClientUI extends BaseChattingUI {
     
     public void initListener(byte[] ipAddress, int port, String userName, String keyFile) throws IOException {
 
-        MessageDistributor.getInstance().registerSubscriber(s -> {
-            getDisplay().asyncExec(() -> appendMessageDisplay(s));
-        });
+        MessageDistributor.getInstance().registerSubscriber(createUiSubscriber());
 
         if (!ClientListener.checkNameDuplicates(ipAddress, userName)) {
             listener = new ClientListener(ipAddress, port, userName, keyFile);
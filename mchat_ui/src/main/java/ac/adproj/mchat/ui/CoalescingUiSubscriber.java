@@ -0,0 +1,133 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.ui;
+
+import ac.adproj.mchat.service.MessageDistributor.SubscriberCallback;
+import org.eclipse.swt.SWTException;
+import org.eclipse.swt.widgets.Display;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Message subscriber that updates the chatting UI at most once per frame.
+ *
+ * <p>Messages arrived since the last repaint are appended to the transcript in one
+ * {@link Display#asyncExec(Runnable)}. If the UI falls behind, the oldest pending messages
+ * are dropped from view (never from the server), and a notice is shown instead.</p>
+ *
+ * @author Andy Cheung
+ * @see TranscriptView
+ */
+public class CoalescingUiSubscriber implements SubscriberCallback {
+    /**
+     * Minimal interval between two repaints, in milliseconds.
+     */
+    public static final int FRAME_INTERVAL_MILLIS = 33;
+
+    /**
+     * Maximum number of messages waiting for repaint.
+     */
+    public static final int MAX_PENDING_MESSAGES = TranscriptView.DEFAULT_CAPACITY;
+
+    private final BaseChattingUI ui;
+    private final Display display;
+
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    /**
+     * Whether a repaint is scheduled (or the frame interval hasn't elapsed yet).
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public CoalescingUiSubscriber(BaseChattingUI ui) {
+        this.ui = ui;
+        this.display = ui.getDisplay();
+    }
+
+    @Override
+    public void onMessageReceived(String uiMessage) {
+        if (uiMessage == null || uiMessage.isEmpty()) {
+            // Control messages produce nothing to show.
+            return;
+        }
+
+        pending.offer(uiMessage);
+
+        if (pendingCount.incrementAndGet() > MAX_PENDING_MESSAGES && pending.poll() != null) {
+            pendingCount.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            display.asyncExec(this::repaint);
+        } catch (SWTException e) {
+            // The display is disposed, nothing to update.
+        }
+    }
+
+    /**
+     * Appends the pending messages to the transcript. Invoked in UI thread.
+     */
+    private void repaint() {
+        if (ui.isDisposed()) {
+            return;
+        }
+
+        List<String> batch = new ArrayList<>(pendingCount.get() + 1);
+
+        int droppedCount = dropped.getAndSet(0);
+
+        if (droppedCount > 0) {
+            batch.add(String.format("[%d messages dropped from view]", droppedCount));
+        }
+
+        String message;
+
+        while ((message = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            batch.add(message);
+        }
+
+        if (!batch.isEmpty()) {
+            ui.appendMessageDisplay(batch.toArray(new String[0]));
+        }
+
+        display.timerExec(FRAME_INTERVAL_MILLIS, () -> {
+            scheduled.set(false);
+
+            if (!pending.isEmpty() || dropped.get() > 0) {
+                schedule();
+            }
+        });
+    }
+}
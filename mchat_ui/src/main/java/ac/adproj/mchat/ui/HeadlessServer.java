@@ -18,20 +18,64 @@
 package ac.adproj.mchat.ui;
 
 import ac.adproj.mchat.crypto.key.AESKeyServiceImpl;
-import ac.adproj.mchat.crypto.key.SymmetricKeyService;
+import ac.adproj.mchat.crypto.key.KeyFileWatcher;
 import ac.adproj.mchat.listener.ServerListener;
 import ac.adproj.mchat.model.ProtocolStrings;
 import ac.adproj.mchat.service.MessageDistributor;
+import ac.adproj.mchat.service.TranscriptSink;
 import ac.adproj.mchat.web.WebServerStarter;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
  * 无图形界面启动类。
+ *
+ * <p>Transcript options (system properties):</p>
+ * <ul>
+ *     <li>acmc.transcript.stdout - Whether to print messages to standard output. (default: true)</li>
+ *     <li>acmc.transcript.file - Path of the rotating transcript file. (default: none)</li>
+ *     <li>acmc.transcript.flushInterval - Flush interval in milliseconds.</li>
+ *     <li>acmc.transcript.maxFileSize - File size in bytes that triggers rotation.</li>
+ * </ul>
+ *
+ * <p>Key options (system properties):</p>
+ * <ul>
+ *     <li>acmc.key.reloadIntervalMillis - Polling interval of the key file. (default: 5000)</li>
+ *     <li>acmc.key.graceMillis - Time the previous key is still accepted after rotation. (default: 600000)</li>
+ * </ul>
  * 
  * @author Andy Cheung
  */
 public class HeadlessServer {
+    private static TranscriptSink createTranscriptSink() throws IOException {
+        boolean toStdout = Boolean.parseBoolean(System.getProperty("acmc.transcript.stdout", "true"));
+        String fileName = System.getProperty("acmc.transcript.file", "");
+        Path file = fileName.isEmpty() ? null : Paths.get(fileName);
+
+        return new TranscriptSink(toStdout, file,
+                Long.getLong("acmc.transcript.flushInterval", TranscriptSink.DEFAULT_FLUSH_INTERVAL_MILLIS),
+                Long.getLong("acmc.transcript.maxFileSize", TranscriptSink.DEFAULT_MAX_FILE_SIZE));
+    }
+
+    /**
+     * Sets the key, and watches the key file: replacing it rotates the key, without disconnecting clients.
+     *
+     * @param args     Command line arguments, the first one is the key file.
+     * @param listener The server listener.
+     * @return The watcher, null if there is no key file.
+     */
+    private static KeyFileWatcher createKeyWatcher(String[] args, ServerListener listener) throws IOException {
+        if (args.length == 0) {
+            return null;
+        }
+
+        listener.setKeyFile(args[0]);
+
+        return new KeyFileWatcher(args[0], listener::rotateKey);
+    }
+
     public static void main(String[] args) {
         System.out.println("AC Multichat Server (UDP, Headless)");
         System.out.println(String.format(
@@ -40,12 +84,11 @@ public class HeadlessServer {
         System.out.println("Key File: " + (args.length == 0 ? "<No key file>" : args[0]));
         System.out.println();
         
-        try (ServerListener listener = ServerListener.getInstance(); WebServerStarter starter = new WebServerStarter()) {
-            if (args.length != 0) {
-                listener.setKey(SymmetricKeyService.getInstance().readKeyFromFile(args[0]));
-            }
-
-            MessageDistributor.getInstance().registerSubscriber(System.out::println);
+        try (TranscriptSink transcript = createTranscriptSink();
+             ServerListener listener = ServerListener.getInstance();
+             WebServerStarter starter = new WebServerStarter();
+             KeyFileWatcher keyWatcher = createKeyWatcher(args, listener)) {
+            MessageDistributor.getInstance().registerSubscriber(transcript);
             
             starter.start(8090);
             
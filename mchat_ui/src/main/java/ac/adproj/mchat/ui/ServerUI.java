@@ -17,7 +17,7 @@
 
 package ac.adproj.mchat.ui;
 
-import ac.adproj.mchat.crypto.key.AESKeyServiceImpl;
+import ac.adproj.mchat.crypto.key.KeyFileWatcher;
 import ac.adproj.mchat.listener.ServerListener;
 import ac.adproj.mchat.model.ProtocolStrings;
 import ac.adproj.mchat.service.MessageDistributor;
@@ -29,7 +29,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.security.Key;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.logging.ConsoleHandler;
@@ -43,17 +42,19 @@ import java.util.logging.Handler;
  */
 public class ServerUI extends BaseChattingUI {
     private ServerListener listener;
+    private KeyFileWatcher keyWatcher;
 
     private static final Logger LOG = LoggerFactory.getLogger(ServerUI.class);
 
-    private void initListener(Key key) throws IOException {
-        MessageDistributor.getInstance().registerSubscriber(message -> {
-            this.getDisplay().asyncExec(() -> appendMessageDisplay(message));
-        });
+    private void initListener(String keyFile) throws IOException {
+        MessageDistributor.getInstance().registerSubscriber(createUiSubscriber());
         
         listener = ServerListener.getInstance();
 
-        listener.setKey(key);
+        listener.setKeyFile(keyFile);
+
+        // Replacing the key file rotates the key, without disconnecting clients.
+        keyWatcher = new KeyFileWatcher(keyFile, listener::rotateKey);
     }
 
     @Override
@@ -100,7 +101,7 @@ public class ServerUI extends BaseChattingUI {
             System.exit(-1);
         }
         
-        ui.initListener(new AESKeyServiceImpl().readKeyFromFile(cfd.getKeyFile()));
+        ui.initListener(cfd.getKeyFile());
         
         Display d = ui.getDisplay();
         
@@ -117,6 +118,7 @@ public class ServerUI extends BaseChattingUI {
         }
         
         s.close();
+        ui.keyWatcher.close();
         ui.listener.close();
     }
 
@@ -0,0 +1,199 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.ui;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.dnd.Clipboard;
+import org.eclipse.swt.dnd.TextTransfer;
+import org.eclipse.swt.dnd.Transfer;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.TableItem;
+
+/**
+ * Append-only chatting transcript.
+ *
+ * <p>Lines are kept in a bounded ring, the oldest lines are discarded when the ring is full.
+ * The lines are shown by a virtual table, so only the visible rows are materialized, and
+ * appending a line costs the same no matter how long the transcript is.</p>
+ *
+ * @author Andy Cheung
+ * @implNote Implemented by SWT. All methods must be invoked in the UI thread.
+ */
+public class TranscriptView {
+    /**
+     * Default number of lines that the transcript keeps.
+     */
+    public static final int DEFAULT_CAPACITY = 5000;
+
+    private final Table table;
+    private final TableColumn column;
+    private final String[] lines;
+
+    /**
+     * Index of the oldest line in the ring.
+     */
+    private int head;
+
+    /**
+     * Number of lines in the ring.
+     */
+    private int size;
+
+    /**
+     * Creates the transcript view.
+     *
+     * @param parent   The parent composite.
+     * @param capacity Maximum number of lines to keep.
+     */
+    public TranscriptView(Composite parent, int capacity) {
+        lines = new String[capacity];
+
+        table = new Table(parent, SWT.BORDER | SWT.VIRTUAL | SWT.MULTI | SWT.FULL_SELECTION
+                                    | SWT.H_SCROLL | SWT.V_SCROLL);
+        column = new TableColumn(table, SWT.LEFT);
+
+        table.setHeaderVisible(false);
+        table.setLinesVisible(false);
+        table.addListener(SWT.SetData, e -> {
+            TableItem item = (TableItem) e.item;
+            item.setText(lineAt(e.index));
+        });
+        table.addListener(SWT.Resize, e -> column.setWidth(table.getClientArea().width));
+        table.addListener(SWT.KeyDown, e -> {
+            if ((e.stateMask & SWT.MOD1) != 0 && (e.keyCode == 'c' || e.keyCode == 'C')) {
+                copySelection();
+            }
+        });
+    }
+
+    /**
+     * Obtain the underlying SWT control, e.g. to set the layout data.
+     *
+     * @return The table.
+     */
+    public Table getControl() {
+        return table;
+    }
+
+    /**
+     * Appends a message, which may contain multiple lines.
+     *
+     * @param message The message.
+     */
+    public void append(String message) {
+        append(new String[] {message});
+    }
+
+    /**
+     * Appends a batch of messages, and refreshes the view once.
+     *
+     * @param messages The messages.
+     */
+    public void append(String[] messages) {
+        if (table.isDisposed()) {
+            return;
+        }
+
+        boolean followTail = isTailVisible();
+        boolean shifted = false;
+
+        for (String message : messages) {
+            for (String line : message.split("\r?\n", -1)) {
+                shifted |= push(line);
+            }
+        }
+
+        table.setItemCount(size);
+
+        if (shifted) {
+            // Every row maps to another line now, let the visible rows request data again.
+            table.clearAll();
+        }
+
+        if (followTail && size > 0) {
+            table.showItem(table.getItem(size - 1));
+        }
+    }
+
+    /**
+     * Obtain the number of lines kept.
+     *
+     * @return Number of lines.
+     */
+    public int getLineCount() {
+        return size;
+    }
+
+    /**
+     * Puts a line into the ring.
+     *
+     * @param line The line.
+     * @return True if the oldest line was discarded.
+     */
+    private boolean push(String line) {
+        if (size < lines.length) {
+            lines[(head + size) % lines.length] = line;
+            size++;
+
+            return false;
+        }
+
+        lines[head] = line;
+        head = (head + 1) % lines.length;
+
+        return true;
+    }
+
+    private String lineAt(int index) {
+        return index < 0 || index >= size ? "" : lines[(head + index) % lines.length];
+    }
+
+    /**
+     * Determines whether the last line is visible, in which case the view keeps following new lines.
+     */
+    private boolean isTailVisible() {
+        int itemHeight = Math.max(table.getItemHeight(), 1);
+        int visibleRows = table.getClientArea().height / itemHeight;
+
+        return table.getTopIndex() + visibleRows >= size - 1;
+    }
+
+    private void copySelection() {
+        int[] selection = table.getSelectionIndices();
+
+        if (selection.length == 0) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int index : selection) {
+            sb.append(lineAt(index)).append(System.lineSeparator());
+        }
+
+        Clipboard clipboard = new Clipboard(table.getDisplay());
+
+        try {
+            clipboard.setContents(new Object[] {sb.toString()}, new Transfer[] {TextTransfer.getInstance()});
+        } finally {
+            clipboard.dispose();
+        }
+    }
+}
@@ -31,10 +31,36 @@ import static ac.adproj.mchat.handler.MessageType.getMessageType;
  */
 public class ClientMessageHandler implements Handler {
     private Consumer<Boolean> logoffCallback;
+    private Consumer<String> capabilitiesCallback;
+    private Consumer<String> cookieCallback;
 
     public ClientMessageHandler(Consumer<Boolean> logoffCallback) {
+        this(logoffCallback, capabilities -> {});
+    }
+
+    /**
+     * Constructs the handler.
+     *
+     * @param logoffCallback       Invoked when the server closed the connection (true) or the key is invalid (false).
+     * @param capabilitiesCallback Invoked with the capability list accepted by the server.
+     */
+    public ClientMessageHandler(Consumer<Boolean> logoffCallback, Consumer<String> capabilitiesCallback) {
+        this(logoffCallback, capabilitiesCallback, cookie -> {});
+    }
+
+    /**
+     * Constructs the handler.
+     *
+     * @param logoffCallback       Invoked when the server closed the connection (true) or the key is invalid (false).
+     * @param capabilitiesCallback Invoked with the capability list accepted by the server.
+     * @param cookieCallback       Invoked with the registering cookie issued by the server.
+     */
+    public ClientMessageHandler(Consumer<Boolean> logoffCallback, Consumer<String> capabilitiesCallback,
+                                Consumer<String> cookieCallback) {
         super();
         this.logoffCallback = logoffCallback;
+        this.capabilitiesCallback = capabilitiesCallback;
+        this.cookieCallback = cookieCallback;
     }
 
     @Override
@@ -51,6 +77,16 @@ public class ClientMessageHandler implements Handler {
                 message = "";
                 break;
 
+            case CAPABILITIES:
+                capabilitiesCallback.accept(MessageType.CAPABILITIES.tokenize(message).get(MessageTypeConstants.CAPABILITIES));
+                message = "";
+                break;
+
+            case COOKIE:
+                cookieCallback.accept(MessageType.COOKIE.tokenize(message).get(MessageTypeConstants.COOKIE));
+                message = "";
+                break;
+
             case NOTIFY_LOGOFF:
                 logoffCallback.accept(true);
                 message = "Server closed the connection.";
@@ -0,0 +1,151 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.handler;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Stateless cookies of user registration.
+ *
+ * <p>A cookie is the HMAC of the client address, the UUID being registered and the current time
+ * slot, under a secret that only lives in memory of the server. So the server keeps nothing for
+ * a cookie it issued, an address can only present a valid cookie if it received one, i.e. it is
+ * not spoofed, and a cookie registers only the UUID it was issued for.</p>
+ *
+ * <p>Cookie format: (time slot in radix 36).(Base64url of truncated HMAC)</p>
+ *
+ * @author Andy Cheung
+ */
+public class RegistrationCookie {
+    /**
+     * Length of a time slot. A cookie is accepted in its own slot and the next one.
+     */
+    public static final long SLOT_MILLIS = 30000;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 16;
+
+    private final SecretKeySpec secret;
+    private final ThreadLocal<Mac> macs;
+
+    /**
+     * Constructs the cookie service with a random secret.
+     */
+    public RegistrationCookie() {
+        byte[] secretBytes = new byte[32];
+        new SecureRandom().nextBytes(secretBytes);
+
+        this.secret = new SecretKeySpec(secretBytes, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(secret);
+
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HMAC is not available.", e);
+            }
+        });
+    }
+
+    /**
+     * Issues a cookie for the address and UUID.
+     *
+     * @param address Client address.
+     * @param uuid    UUID being registered.
+     * @return The cookie.
+     */
+    public String issue(SocketAddress address, String uuid) {
+        long slot = currentSlot();
+
+        return Long.toString(slot, 36) + "." + Base64.getUrlEncoder().withoutPadding()
+                                                    .encodeToString(mac(address, uuid, slot));
+    }
+
+    /**
+     * Verifies a cookie presented by the address.
+     *
+     * @param cookie  The cookie, may be null or empty.
+     * @param address Client address.
+     * @param uuid    UUID being registered.
+     * @return True if the cookie was issued to this address for this UUID recently.
+     */
+    public boolean verify(String cookie, SocketAddress address, String uuid) {
+        if (cookie == null || uuid == null) {
+            return false;
+        }
+
+        int dot = cookie.indexOf('.');
+
+        if (dot <= 0) {
+            return false;
+        }
+
+        try {
+            long slot = Long.parseLong(cookie.substring(0, dot), 36);
+            long current = currentSlot();
+
+            if (slot != current && slot != current - 1) {
+                return false;
+            }
+
+            byte[] presented = Base64.getUrlDecoder().decode(cookie.substring(dot + 1));
+
+            return MessageDigest.isEqual(presented, mac(address, uuid, slot));
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException.
+            return false;
+        }
+    }
+
+    private byte[] mac(SocketAddress address, String uuid, long slot) {
+        Mac mac = macs.get();
+
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+            InetSocketAddress isa = (InetSocketAddress) address;
+
+            mac.update(isa.getAddress().getAddress());
+            mac.update(ByteBuffer.allocate(4).putInt(isa.getPort()).array());
+        } else {
+            mac.update(String.valueOf(address).getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] uuidBytes = String.valueOf(uuid).getBytes(StandardCharsets.UTF_8);
+
+        // Length-prefixed, so that address and UUID can't be shifted into each other.
+        mac.update(ByteBuffer.allocate(4).putInt(uuidBytes.length).array());
+        mac.update(uuidBytes);
+        mac.update(ByteBuffer.allocate(8).putLong(slot).array());
+
+        return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+    }
+
+    private static long currentSlot() {
+        return System.currentTimeMillis() / SLOT_MILLIS;
+    }
+}
@@ -21,15 +21,21 @@ import ac.adproj.mchat.listener.ServerListener;
 import ac.adproj.mchat.model.ProtocolStrings;
 import ac.adproj.mchat.model.User;
 import ac.adproj.mchat.service.UserManager;
+import ac.adproj.mchat.transport.TransportOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.lang.ref.SoftReference;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static ac.adproj.mchat.handler.MessageType.*;
+import static ac.adproj.mchat.util.CollectionUtils.mapOf;
 
 /**
  * Server message handler.
@@ -41,6 +47,7 @@ public class ServerMessageHandler implements Handler {
     private static final Logger LOG = LoggerFactory.getLogger(ServerMessageHandler.class);
     private final UserManager userManager = UserManager.getInstance();
     private final ServerListener listener;
+    private final RegistrationCookie cookies = new RegistrationCookie();
 
     public ServerMessageHandler(ServerListener listener) {
         super();
@@ -53,6 +60,34 @@ public class ServerMessageHandler implements Handler {
             case REGISTER:
                 // User registration.
                 Map<String, String> data = REGISTER.tokenize(message);
+                String registeringUuid = data.get(MessageTypeConstants.UUID);
+
+                if (TransportOptions.isRegistrationCookieRequired()
+                        && !cookies.verify(data.get(MessageTypeConstants.COOKIE), address, registeringUuid)) {
+                    // Nothing is allocated until the client proves it owns the address.
+                    String challenge = COOKIE.generateProtocolMessage(
+                                            mapOf(MessageTypeConstants.COOKIE, cookies.issue(address, registeringUuid)));
+
+                    listener.sendStateless(challenge, address);
+                    return "";
+                }
+
+                User previous = userManager.lookup(address);
+
+                if (previous != null && previous.getUuid().equals(registeringUuid)) {
+                    // Retransmitted handshake, e.g. the reply was lost: answer again, keeping the session.
+                    LOG.debug("[UDP] Registration of UUID = {} repeated from {}.", registeringUuid, address);
+                    listener.replyCapabilities(previous, data.get(MessageTypeConstants.CAPABILITIES));
+                    return "";
+                } else if (previous != null) {
+                    // One socket is one client, a new registration replaces the old one.
+                    LOG.debug("[UDP] Replacing UUID = {} registered from {}.", previous.getUuid(), address);
+                    logoffQuietly(previous.getUuid());
+                } else if (countUsersOnHost(address) >= TransportOptions.getMaxUsersPerHost()) {
+                    LOG.warn("[UDP] Registration from {} rejected, too many users on the host.", address);
+                    return "";
+                }
+
                 User userObject = new User(data.get(MessageTypeConstants.UUID),
                                             address, data.get(MessageTypeConstants.USERNAME));
 
@@ -60,6 +95,10 @@ public class ServerMessageHandler implements Handler {
 
                 LOG.debug("[UDP] Registering, UUID = {}, Nickname = {}", userObject.getUuid(), userObject.getName());
 
+                Set<String> accepted = listener.negotiateCapabilities(userObject, data.get(MessageTypeConstants.CAPABILITIES));
+
+                LOG.debug("[UDP] Capabilities of UUID = {}: {}", userObject.getUuid(), accepted);
+
                 return "Client: " + data.get(MessageTypeConstants.UUID) +
                             " (" + data.get(MessageTypeConstants.USERNAME) + ") Connected.";
 
@@ -72,12 +111,8 @@ public class ServerMessageHandler implements Handler {
                 // The client was requested for logoff.
                 SoftReference<String> targetUuid = new SoftReference<>(NOTIFY_LOGOFF.tokenize(message).get(MessageTypeConstants.UUID));
 
-                try {
-                    LOG.debug("[UDP] Disconnecting, UUID = {}.", targetUuid.get());
-                    listener.logoff(targetUuid.get());
-                } catch (IOException e) {
-                    LOG.warn(String.format("[UDP] Disconnecting failed, UUID = %s.", targetUuid.get()), e);
-                }
+                LOG.debug("[UDP] Disconnecting, UUID = {}.", targetUuid.get());
+                logoffQuietly(targetUuid.get());
 
                 return "Client: " + message.replace(ProtocolStrings.NOTIFY_LOGOFF_HEADER, "") + " Disconnected.";
 
@@ -100,16 +135,24 @@ public class ServerMessageHandler implements Handler {
 
                 String nameOnlyProtocolMessage = message.replace(fromUuid, userManager.getName(fromUuid));
 
+                List<User> recipients = new ArrayList<>();
+
                 for (User u : userManager.userProfileValueSet()) {
                     if (!fromUuid.equals(u.getUuid())) {
-                        listener.sendCommunicationData(nameOnlyProtocolMessage, u.getUuid());
-                        LOG.debug("Forwarding message to {}, message: {}", u.getUuid(), messageText);
+                        recipients.add(u);
                     }
                 }
 
+                LOG.debug("Forwarding message to {} users, message: {}", recipients.size(), messageText);
+                listener.sendToUsers(nameOnlyProtocolMessage, recipients, fromUuid);
+
                 message = userManager.getName(fromUuid) + ": " + messageText;
                 break;
 
+            case HEARTBEAT:
+                // The session was refreshed when the datagram arrived.
+                return "";
+
             case UNKNOWN:
             default:
                 return message;
@@ -117,4 +160,39 @@ public class ServerMessageHandler implements Handler {
 
         return message;
     }
-}
\ No newline at end of file
+
+    private void logoffQuietly(String uuid) {
+        try {
+            listener.logoff(uuid);
+        } catch (IOException e) {
+            LOG.warn(String.format("[UDP] Disconnecting failed, UUID = %s.", uuid), e);
+        }
+    }
+
+    /**
+     * Counts the users registered from the IP address of the client, on any port.
+     *
+     * @param address Client address.
+     * @return Number of users.
+     */
+    private int countUsersOnHost(SocketAddress address) {
+        Object host = hostOf(address);
+        int count = 0;
+
+        for (User u : userManager.userProfileValueSet()) {
+            if (host.equals(hostOf(u.getAddress()))) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static Object hostOf(SocketAddress address) {
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+            return ((InetSocketAddress) address).getAddress();
+        }
+
+        return String.valueOf(address);
+    }
+}
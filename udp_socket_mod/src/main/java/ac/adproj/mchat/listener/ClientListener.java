@@ -17,8 +17,10 @@
 
 package ac.adproj.mchat.listener;
 
-import ac.adproj.mchat.crypto.ParamUtil;
+import ac.adproj.mchat.crypto.KeyRing;
+import ac.adproj.mchat.crypto.SessionKeyCache;
 import ac.adproj.mchat.crypto.SymmetricCryptoService;
+import ac.adproj.mchat.crypto.key.KeyFileWatcher;
 import ac.adproj.mchat.crypto.key.SymmetricKeyService;
 import ac.adproj.mchat.handler.ClientMessageHandler;
 import ac.adproj.mchat.handler.MessageType;
@@ -27,6 +29,13 @@ import ac.adproj.mchat.model.Listener;
 import ac.adproj.mchat.model.ProtocolStrings;
 import ac.adproj.mchat.service.CommonThreadPool;
 import ac.adproj.mchat.service.MessageDistributor;
+import ac.adproj.mchat.transport.CoalescingTransport;
+import ac.adproj.mchat.transport.FecTransport;
+import ac.adproj.mchat.transport.FragmentingTransport;
+import ac.adproj.mchat.transport.ReliableTransport;
+import ac.adproj.mchat.transport.TransportFrames;
+import ac.adproj.mchat.transport.TransportOptions;
+import ac.adproj.mchat.util.HashedTimingWheel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,13 +43,17 @@ import javax.crypto.BadPaddingException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static ac.adproj.mchat.handler.MessageType.INCOMING_MESSAGE;
 import static ac.adproj.mchat.handler.MessageType.NOTIFY_LOGOFF;
@@ -55,12 +68,56 @@ import static ac.adproj.mchat.util.CollectionUtils.mapOf;
 public class ClientListener implements Listener {
     private static final Logger LOG = LoggerFactory.getLogger(ClientListener.class);
     private final String name;
-    private final Key key;
+    private final String keyFile;
+
+    /**
+     * Key epochs, null if messages are not encrypted.
+     */
+    private final KeyRing keyRing;
+    private final KeyFileWatcher keyWatcher;
+
+    /**
+     * Crypto services with the key of this session, derived from the master key of each epoch.
+     */
+    private final SessionKeyCache sessionKeys = new SessionKeyCache(1);
+    private volatile long lastKeyReloadNanos;
+
+    /**
+     * Key ID the server sealed with last, messages are sealed with it as long as it is accepted,
+     * so that the server can still read them while it has not loaded a new key yet.
+     */
+    private volatile String serverKeyId;
     private DatagramChannel socketChannel;
+    private SocketAddress serverAddress;
+    private CoalescingTransport coalescing;
+    private ReliableTransport transport;
+    private FragmentingTransport fragmenting;
+
+    /**
+     * Decoder of forward error correction, null if not offered.
+     */
+    private FecTransport fec;
+
+    /**
+     * Timer of heartbeats, null if the server didn't accept heartbeats.
+     */
+    private volatile HashedTimingWheel heartbeatTimer;
+    private volatile long lastSentNanos = System.nanoTime();
     private String uuid;
+    private Set<String> offeredCapabilities;
 
     private static final int TIMEOUT = 5000;
 
+    /**
+     * Minimum interval between two reloads of key file triggered by unknown key IDs, in milliseconds.
+     */
+    private static final long KEY_RELOAD_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Maximum time to wait for the acknowledgement of logoff notification, in milliseconds.
+     */
+    private static final long LOGOFF_ACK_TIMEOUT_MILLIS = 1000;
+
     /**
      * Constructs Client Listener with arguments.
      *
@@ -73,7 +130,15 @@ public class ClientListener implements Listener {
     public ClientListener(byte[] address, int port, String username,
                           String keyFile) throws IOException {
         this.name = username;
-        this.key = keyFile.isEmpty() ? null : SymmetricKeyService.getInstance().readKeyFromFile(keyFile);
+        this.keyFile = keyFile;
+
+        if (keyFile.isEmpty()) {
+            this.keyRing = null;
+            this.keyWatcher = null;
+        } else {
+            this.keyRing = new KeyRing(SymmetricKeyService.getInstance().readKeyFromFile(keyFile));
+            this.keyWatcher = new KeyFileWatcher(keyFile, this::rotateKey);
+        }
 
         init(address, port, username);
     }
@@ -134,6 +199,8 @@ public class ClientListener implements Listener {
             throws IOException {
         socketChannel = DatagramChannel.open();
 
+        // Room for bursts from server, e.g. large broadcasts.
+        socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, TransportOptions.getReceiveBufferSize());
         socketChannel.bind(new InetSocketAddress(port));
 
         InetAddress ia = InetAddress.getByAddress(address);
@@ -150,6 +217,13 @@ public class ClientListener implements Listener {
      * @param username  The username.
      */
     private void initNioSocketConnection(InetAddress ia, String username) {
+        serverAddress = new InetSocketAddress(ia, SERVER_PORT);
+
+        coalescing = new CoalescingTransport(this::writeDatagram, TransportOptions.getBundlingDelayMillis(),
+                                                "客户端 UDP 合并线程");
+        transport = new ReliableTransport(coalescing, "客户端 UDP 重传线程");
+        fragmenting = new FragmentingTransport(transport, "客户端 UDP 分片线程");
+
         ClientMessageHandler handler = new ClientMessageHandler(force -> {
             if (Boolean.TRUE.equals(force)) {
                 try {
@@ -164,17 +238,35 @@ public class ClientListener implements Listener {
                     LOG.error("Logoff failed.", e);
                 }
             }
-        });
+        }, this::onCapabilitiesAccepted, this::sendRegister);
 
         try {
-            socketChannel.connect(new InetSocketAddress(ia, SERVER_PORT));
+            socketChannel.connect(serverAddress);
+
+            Set<String> offered = TransportOptions.getEnabledCapabilities();
+            offeredCapabilities = offered;
+
+            if (offered.contains(ProtocolStrings.CAPABILITY_RELIABLE_DELIVERY)) {
+                // The server may send reliably as soon as it accepted.
+                transport.accept(serverAddress);
+            }
 
-            Map<String, String> info = mapOf(MessageTypeConstants.UUID, uuid, MessageTypeConstants.USERNAME, username);
+            if (offered.contains(ProtocolStrings.CAPABILITY_FRAGMENTATION)) {
+                fragmenting.accept(serverAddress);
+            }
 
-            String greetMessage = MessageType.REGISTER.generateProtocolMessage(info);
-            final ByteBuffer greetBuffer = ByteBuffer.wrap(greetMessage.getBytes());
+            if (offered.contains(ProtocolStrings.CAPABILITY_BUNDLING)) {
+                // The server may bundle its replies as soon as it accepted.
+                coalescing.accept(serverAddress);
+            }
+
+            if (offered.contains(ProtocolStrings.CAPABILITY_FEC)) {
+                // Only decodes, the client doesn't protect its datagrams.
+                fec = new FecTransport(this::writeDatagram, TransportOptions.getFecGroupSize(), "客户端 UDP 纠错线程");
+                fec.enableDecoding(serverAddress);
+            }
 
-            socketChannel.write(greetBuffer);
+            sendRegister("");
         } catch (IOException e) {
             LOG.error("Failed to connect.", e);
         }
@@ -190,13 +282,133 @@ public class ClientListener implements Listener {
         CommonThreadPool.execute(() -> readMessage(handler));
     }
 
-    private String encryptMessage(String message) {
-        byte[] ivBytes = ParamUtil.getIVFromString(uuid, 16);
+    /**
+     * Sends the user registering message. The server may answer with a cookie,
+     * which is sent back by invoking this method again.
+     *
+     * @param cookie The registering cookie issued by server, empty for the first attempt.
+     */
+    private void sendRegister(String cookie) {
+        Map<String, String> info = mapOf(MessageTypeConstants.UUID, uuid, MessageTypeConstants.USERNAME, name,
+                                        MessageTypeConstants.CAPABILITIES, TransportOptions.formatCapabilities(offeredCapabilities),
+                                        MessageTypeConstants.COOKIE, cookie);
 
-        SymmetricCryptoService scs = SymmetricCryptoService.getInstance(key, ivBytes);
+        String greetMessage = MessageType.REGISTER.generateProtocolMessage(info);
 
         try {
-            return scs.encryptMessageToBase64String(message);
+            writeDatagram(greetMessage.getBytes(StandardCharsets.UTF_8), serverAddress);
+        } catch (IOException e) {
+            LOG.error("Failed to register.", e);
+        }
+    }
+
+    /**
+     * Writes a datagram to the connected socket.
+     *
+     * @param datagram Content of the datagram.
+     * @param target   The server address (the socket is connected).
+     * @throws IOException If I/O error occurs.
+     */
+    private void writeDatagram(byte[] datagram, SocketAddress target) throws IOException {
+        DatagramChannel channel = socketChannel;
+
+        if (channel != null && channel.isOpen()) {
+            channel.write(ByteBuffer.wrap(datagram));
+            lastSentNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Callback when the server replied the accepted capabilities.
+     *
+     * @param capabilities Capability list accepted by server.
+     */
+    private void onCapabilitiesAccepted(String capabilities) {
+        Set<String> accepted = TransportOptions.parseCapabilities(capabilities);
+
+        LOG.debug("Capabilities accepted by server: {}", accepted);
+
+        if (accepted.contains(ProtocolStrings.CAPABILITY_RELIABLE_DELIVERY)) {
+            transport.enable(serverAddress);
+        }
+
+        if (accepted.contains(ProtocolStrings.CAPABILITY_FRAGMENTATION)) {
+            fragmenting.enable(serverAddress);
+        }
+
+        if (accepted.contains(ProtocolStrings.CAPABILITY_BUNDLING)) {
+            coalescing.enable(serverAddress);
+        }
+
+        if (accepted.contains(ProtocolStrings.CAPABILITY_HEARTBEAT) && heartbeatTimer == null) {
+            // 100 ms per tick is fine enough for heartbeats of seconds.
+            heartbeatTimer = new HashedTimingWheel(100, TimeUnit.MILLISECONDS, 128, "客户端 UDP 心跳线程");
+            scheduleHeartbeat(TransportOptions.getHeartbeatIntervalMillis());
+        }
+    }
+
+    private void scheduleHeartbeat(long delayMillis) {
+        HashedTimingWheel timer = heartbeatTimer;
+
+        if (timer != null && isConnected()) {
+            timer.schedule(this::heartbeat, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends a heartbeat if nothing was sent during the last interval,
+     * since any datagram keeps the session alive on server.
+     */
+    private void heartbeat() {
+        long interval = TransportOptions.getHeartbeatIntervalMillis();
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSentNanos);
+
+        if (idle >= interval) {
+            sendCommunicationData(MessageType.HEARTBEAT.generateProtocolMessage(mapOf(MessageTypeConstants.UUID, uuid)), uuid);
+            idle = 0;
+        }
+
+        scheduleHeartbeat(interval - idle);
+    }
+
+    /**
+     * Changes the encryption key at runtime. Messages with the previous key are still accepted
+     * during the grace period.
+     *
+     * @param key The new encryption key.
+     */
+    public void rotateKey(Key key) {
+        if (keyRing != null && keyRing.rotate(key)) {
+            LOG.info("Key rotated, key ID: {}.", keyRing.current().getKeyId());
+        }
+    }
+
+    /**
+     * Reads the key file again, when a message has a key ID not known yet,
+     * e.g. the server rotated the key before the file watcher noticed.
+     */
+    private void reloadKey() {
+        long now = System.nanoTime();
+
+        if (now - lastKeyReloadNanos < TimeUnit.MILLISECONDS.toNanos(KEY_RELOAD_INTERVAL_MILLIS)) {
+            return;
+        }
+
+        lastKeyReloadNanos = now;
+
+        try {
+            rotateKey(SymmetricKeyService.getInstance().readKeyFromFile(keyFile));
+        } catch (IOException e) {
+            LOG.warn("Failed to reload key file {}.", keyFile, e);
+        }
+    }
+
+    private String encryptMessage(String message) {
+        KeyRing.Epoch epoch = keyRing.forPeer(serverKeyId);
+        SymmetricCryptoService scs = sessionKeys.get(epoch, uuid);
+
+        try {
+            return epoch.encrypt(scs, uuid, message);
         } catch (InvalidKeyException e) {
             LOG.error("Invalid key!", e);
         }
@@ -212,13 +424,27 @@ public class ClientListener implements Listener {
      */
     private String decryptMessage(String rawMessage) {
         try {
-            byte[] ivBytes = ParamUtil.getIVFromString(uuid, 16);
-
-            if (key != null && MessageType.getMessageType(rawMessage) == MessageType.INCOMING_MESSAGE) {
+            if (keyRing != null && MessageType.getMessageType(rawMessage) == MessageType.INCOMING_MESSAGE) {
                 Map<String, String> tokenizeResult = MessageType.INCOMING_MESSAGE.tokenize(rawMessage);
                 String messageUuid = tokenizeResult.get(MessageTypeConstants.UUID);
-                String encryptedText = tokenizeResult.get(MessageTypeConstants.MESSAGE_TEXT);
-                String decryptedMessage = SymmetricCryptoService.getInstance(key, ivBytes).decryptMessageFromBase64String(encryptedText);
+                String sealedText = tokenizeResult.get(MessageTypeConstants.MESSAGE_TEXT);
+                String keyId = KeyRing.keyIdOfSealed(sealedText);
+
+                if (keyId != null && keyRing.find(keyId) == null) {
+                    reloadKey();
+                }
+
+                KeyRing.Epoch epoch = keyRing.find(keyId);
+                String decryptedMessage = epoch == null || messageUuid == null ? null
+                                            : sessionKeys.decrypt(epoch, uuid, messageUuid, sealedText);
+
+                if (decryptedMessage == null) {
+                    // Forged or corrupted.
+                    LOG.debug("Dropped a message with wrong authentication tag: [From = {}]", messageUuid);
+                    return "";
+                }
+
+                serverKeyId = epoch.getKeyId();
 
                 Map<String, String> infoMap = mapOf(MessageTypeConstants.UUID, messageUuid,
                         MessageTypeConstants.MESSAGE_TEXT, decryptedMessage);
@@ -242,7 +468,7 @@ public class ClientListener implements Listener {
 
     private void readMessage(ClientMessageHandler handler) {
         while (socketChannel.isOpen()) {
-            final ByteBuffer buffer = ByteBuffer.allocate(ProtocolStrings.BUFFER_SIZE);
+            final ByteBuffer buffer = ByteBuffer.allocate(TransportFrames.MAX_DATAGRAM_SIZE);
 
             try {
                 if (socketChannel.read(buffer) == -1) {
@@ -251,22 +477,13 @@ public class ClientListener implements Listener {
 
                 buffer.flip();
 
-                StringBuilder sbuffer = new StringBuilder();
+                byte[] datagram = new byte[buffer.remaining()];
+                buffer.get(datagram);
 
-                while (buffer.hasRemaining()) {
-                    sbuffer.append(StandardCharsets.UTF_8.decode(buffer));
-                }
-
-                try {
-                    String rawMessage = decryptMessage(sbuffer.toString());
-
-                    MessageDistributor.getInstance().sendUiMessage(handler.handleMessage(rawMessage, socketChannel.getRemoteAddress()));
-                } catch (IOException exc) {
-                    LOG.error("Failed to get remote address.", exc);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-
-                    LOG.error("Interrupted by other thread. ");
+                if (fec != null) {
+                    fec.receive(datagram, serverAddress, d -> unbundle(handler, d));
+                } else {
+                    unbundle(handler, datagram);
                 }
 
                 buffer.clear();
@@ -285,6 +502,49 @@ public class ClientListener implements Listener {
         }
     }
 
+    /**
+     * Unpacks coalesced frames.
+     *
+     * @param handler  Client message handler.
+     * @param datagram The datagram.
+     */
+    private void unbundle(ClientMessageHandler handler, byte[] datagram) {
+        coalescing.receive(datagram, serverAddress, frame -> receiveFromTransport(handler, frame));
+    }
+
+    /**
+     * Passes a datagram to reliable delivery layer.
+     *
+     * @param handler  Client message handler.
+     * @param datagram The datagram.
+     */
+    private void receiveFromTransport(ClientMessageHandler handler, byte[] datagram) {
+        try {
+            transport.receive(datagram, serverAddress, payload -> fragmenting.receive(payload, serverAddress,
+                                    message -> handlePayload(handler, message)));
+        } catch (IOException e) {
+            LOG.error("Failed to acknowledge server.", e);
+        }
+    }
+
+    /**
+     * Handles a payload delivered by the transport layers.
+     *
+     * @param handler Client message handler.
+     * @param payload The payload.
+     */
+    private void handlePayload(ClientMessageHandler handler, byte[] payload) {
+        try {
+            String rawMessage = decryptMessage(new String(payload, StandardCharsets.UTF_8));
+
+            MessageDistributor.getInstance().sendUiMessage(handler.handleMessage(rawMessage, serverAddress));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+
+            LOG.error("Interrupted by other thread. ");
+        }
+    }
+
     public String getUuid() {
         return uuid;
     }
@@ -300,10 +560,15 @@ public class ClientListener implements Listener {
 
     @Override
     public void sendCommunicationData(String text, String uuid) {
-        final ByteBuffer bb = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        byte[] datagram = text.getBytes(StandardCharsets.UTF_8);
 
         try {
-            socketChannel.write(bb);
+            // Control messages (logoff, heartbeats etc.) never wait behind queued chat.
+            if (MessageType.getMessageType(text) == INCOMING_MESSAGE) {
+                fragmenting.send(datagram, serverAddress);
+            } else {
+                fragmenting.sendControl(datagram, serverAddress);
+            }
         } catch (IOException e) {
             LOG.error("Failed to send message to server.", e);
         }
@@ -320,7 +585,7 @@ public class ClientListener implements Listener {
             return;
         }
 
-        if (key != null) {
+        if (keyRing != null) {
             sendMessage(encryptMessage(message), uuid);
         } else {
             sendMessage(message, uuid);
@@ -342,6 +607,17 @@ public class ClientListener implements Listener {
     public void logoff() throws IOException {
         if (isConnected()) {
             sendCommunicationData(NOTIFY_LOGOFF.generateProtocolMessage(mapOf("uuid", uuid)), uuid);
+
+            if (!transport.awaitAcknowledged(serverAddress, LOGOFF_ACK_TIMEOUT_MILLIS)) {
+                LOG.warn("The server didn't acknowledge logoff notification.");
+            }
+
+            closeHeartbeat();
+            closeKeyWatcher();
+            fragmenting.close();
+            transport.close();
+            coalescing.close();
+            closeFec();
             socketChannel.close();
             socketChannel = null;
         }
@@ -354,11 +630,37 @@ public class ClientListener implements Listener {
      */
     private void onForceLogoff() throws IOException {
         if (isConnected()) {
+            closeHeartbeat();
+            closeKeyWatcher();
+            fragmenting.close();
+            transport.close();
+            coalescing.close();
+            closeFec();
             socketChannel.close();
             socketChannel = null;
         }
     }
 
+    private void closeKeyWatcher() {
+        if (keyWatcher != null) {
+            keyWatcher.close();
+        }
+    }
+
+    private void closeHeartbeat() {
+        HashedTimingWheel timer = heartbeatTimer;
+
+        if (timer != null) {
+            timer.close();
+        }
+    }
+
+    private void closeFec() {
+        if (fec != null) {
+            fec.close();
+        }
+    }
+
     /**
      * Closes connection & resources.
      */
@@ -17,8 +17,11 @@
 
 package ac.adproj.mchat.listener;
 
-import ac.adproj.mchat.crypto.ParamUtil;
+import ac.adproj.mchat.crypto.BatchCryptoService;
+import ac.adproj.mchat.crypto.KeyRing;
+import ac.adproj.mchat.crypto.SessionKeyCache;
 import ac.adproj.mchat.crypto.SymmetricCryptoService;
+import ac.adproj.mchat.crypto.key.SymmetricKeyService;
 import ac.adproj.mchat.handler.Handler;
 import ac.adproj.mchat.handler.MessageType;
 import ac.adproj.mchat.handler.MessageTypeConstants;
@@ -27,29 +30,47 @@ import ac.adproj.mchat.model.Listener;
 import ac.adproj.mchat.model.ProtocolStrings;
 import ac.adproj.mchat.model.User;
 import ac.adproj.mchat.service.CommonThreadPool;
+import ac.adproj.mchat.service.IdleSessionTracker;
 import ac.adproj.mchat.service.MessageDistributor;
+import ac.adproj.mchat.service.Stage;
+import ac.adproj.mchat.service.StageController;
+import ac.adproj.mchat.service.StageMetrics;
+import ac.adproj.mchat.service.TokenBucketLimiter;
 import ac.adproj.mchat.service.UserManager;
 import ac.adproj.mchat.service.UserNameQueryService;
+import ac.adproj.mchat.transport.CoalescingTransport;
+import ac.adproj.mchat.transport.FecTransport;
+import ac.adproj.mchat.transport.FragmentingTransport;
+import ac.adproj.mchat.transport.PacedSender;
+import ac.adproj.mchat.transport.ReliableTransport;
+import ac.adproj.mchat.transport.TransportFrames;
+import ac.adproj.mchat.transport.TransportOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.BadPaddingException;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.Key;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import static ac.adproj.mchat.model.ProtocolStrings.*;
 import static ac.adproj.mchat.util.CollectionUtils.mapOf;
@@ -63,19 +84,119 @@ import static ac.adproj.mchat.util.CollectionUtils.mapOf;
  * @see ThreadPoolExecutor
  * @see ServerMessageHandler
  * @see UserNameQueryService
+ * @see ReliableTransport
+ * @see PacedSender
+ * @see IdleSessionTracker
+ * @see Stage
+ * @see StageController
  */
 public class ServerListener implements Listener {
 
     private DatagramChannel serverDatagramChannel;
+    private FecTransport fec;
+    private CoalescingTransport coalescing;
+    private ReliableTransport transport;
+    private PacedSender pacer;
+    private FragmentingTransport fragmenting;
+    private IdleSessionTracker<SocketAddress> liveness;
     private ExecutorService threadPool;
+
+    /*
+     * Server pipeline: receive (socket thread) -> decrypt -> handle -> encrypt -> send (pacer thread) -> UI.
+     * Each stage keeps the order of one client (decrypt, handle) or one recipient (encrypt).
+     */
+    private Stage decryptStage;
+    private Stage handleStage;
+    private Stage encryptStage;
+    private StageController stageController;
+    private ScheduledExecutorService statusTimer;
     private UserManager userManager = UserManager.getInstance();
     private UserNameQueryService userNameQueryService;
-    private Key key;
+    private volatile KeyRing keyRing;
+
+    /**
+     * Path to the key file, null if the key was not read from a file.
+     */
+    private volatile String keyFile;
+    private volatile long lastKeyReloadNanos;
+
+    /**
+     * Key ID each user sent with last, so that replies use a key the user has.
+     */
+    private final Map<String, String> userKeyIds = new ConcurrentHashMap<>();
+
+    /**
+     * Crypto services with per-user keys derived from the master key, evicted on logoff.
+     */
+    private final SessionKeyCache sessionKeys = new SessionKeyCache(SESSION_KEY_CACHE_SIZE);
+
+    /**
+     * Maximum number of users whose derived keys are cached.
+     */
+    private static final int SESSION_KEY_CACHE_SIZE = 4096;
+
+    /**
+     * Minimum interval between two reloads of key file triggered by unknown key IDs, in milliseconds.
+     */
+    private static final long KEY_RELOAD_INTERVAL_MILLIS = 1000;
 
     private AtomicInteger threadNumber = new AtomicInteger();
 
     private static volatile ServerListener instance;
 
+    /**
+     * Maximum time to wait for the acknowledgements of logoff notifications, in milliseconds.
+     */
+    private static final long LOGOFF_ACK_TIMEOUT_MILLIS = 500;
+
+    /**
+     * Maximum number of queued and running tasks per stage.
+     */
+    private static final int STAGE_CAPACITY = 1024;
+
+    /**
+     * Maximum number of queued chatting messages of one client per stage,
+     * so that heavy senders cannot push out the others.
+     */
+    private static final int STAGE_CLIENT_LIMIT = STAGE_CAPACITY / 8;
+
+    /**
+     * Interval of stage sampling and thread adjustment, in milliseconds.
+     */
+    private static final long STAGE_CONTROL_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Depth of a stage above which chatting messages are shed, so that control messages
+     * (registering, logoff etc.) still have room until the stage is full.
+     */
+    private static final int CHAT_HIGH_WATER_MARK = STAGE_CAPACITY * 3 / 4;
+
+    /**
+     * Minimum interval between two overload warnings, in milliseconds.
+     */
+    private static final long DROP_REPORT_INTERVAL_MILLIS = 1000;
+
+    /*
+     * Drop counters of admission control.
+     */
+    private final LongAdder droppedDatagrams = new LongAdder();
+    private final LongAdder droppedChatMessages = new LongAdder();
+    private final LongAdder droppedControlMessages = new LongAdder();
+    private final LongAdder rateLimitedDatagrams = new LongAdder();
+    private final LongAdder rateLimitedChatMessages = new LongAdder();
+    private final LongAdder forgedMessages = new LongAdder();
+    private final AtomicLong lastDropReportMillis = new AtomicLong();
+
+    /**
+     * Per-address rate limiters, null if disabled. Chatting messages have a separate, lower limit,
+     * since each of them is fanned out to every user.
+     */
+    private TokenBucketLimiter<SocketAddress> datagramLimiter;
+    private TokenBucketLimiter<SocketAddress> chatLimiter;
+
+    private static final byte[] HEARTBEAT_HEADER_BYTES = HEARTBEAT_HEADER.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MESSAGE_HEADER_BYTES = MESSAGE_HEADER_LEFT_HALF.getBytes(StandardCharsets.UTF_8);
+
     private static final Logger LOG = LoggerFactory.getLogger(ServerListener.class);
 
     /**
@@ -97,13 +218,60 @@ public class ServerListener implements Listener {
     }
 
     /**
-     * Sets encryption key. This method can be invoked only once.
+     * Sets encryption key. This method can be invoked only once, use {@link #rotateKey(Key)} to change the key.
      *
      * @param key The encryption key.
      */
-    public void setKey(Key key) {
-        if (this.key == null) {
-            this.key = key;
+    public synchronized void setKey(Key key) {
+        if (this.keyRing == null) {
+            this.keyRing = new KeyRing(key);
+        }
+    }
+
+    /**
+     * Sets encryption key read from the key file. The file is read again when a registered user
+     * sends with a key ID not known yet, i.e. the user loaded a new key before the server did.
+     *
+     * @param keyFile Path to the key file.
+     * @throws IOException If the key file can't be read.
+     */
+    public void setKeyFile(String keyFile) throws IOException {
+        setKey(SymmetricKeyService.getInstance().readKeyFromFile(keyFile));
+        this.keyFile = keyFile;
+    }
+
+    /**
+     * Changes the encryption key at runtime. Messages with the previous key are still accepted
+     * during the grace period, and users are answered with the key they used last, so sessions
+     * go on while clients load the new key.
+     *
+     * @param key The new encryption key.
+     */
+    public synchronized void rotateKey(Key key) {
+        if (this.keyRing == null) {
+            setKey(key);
+        } else if (keyRing.rotate(key)) {
+            LOG.info("Key rotated, key ID: {}.", keyRing.current().getKeyId());
+        }
+    }
+
+    /**
+     * Reads the key file again, rate-limited, as key IDs come from the network.
+     */
+    private void reloadKey() {
+        String fileName = keyFile;
+        long now = System.nanoTime();
+
+        if (fileName == null || now - lastKeyReloadNanos < TimeUnit.MILLISECONDS.toNanos(KEY_RELOAD_INTERVAL_MILLIS)) {
+            return;
+        }
+
+        lastKeyReloadNanos = now;
+
+        try {
+            rotateKey(SymmetricKeyService.getInstance().readKeyFromFile(fileName));
+        } catch (IOException e) {
+            LOG.warn("Failed to reload key file {}.", fileName, e);
         }
     }
 
@@ -117,35 +285,50 @@ public class ServerListener implements Listener {
     }
 
     /**
-     * Read message.
+     * Decrypt stage: reads message, and decrypts chatting message.
      * 
-     * @param bb      Destination byte buffer.
+     * @param payload Payload of the datagram.
      * @param handler Protocol message handler.
      * @param address Client address.
      */
-    private void readMessage(ByteBuffer bb, Handler handler, SocketAddress address) {
+    private void readMessage(byte[] payload, Handler handler, SocketAddress address) {
+        String rawMessage = new String(payload, StandardCharsets.UTF_8);
 
-        bb.flip();
+        KeyRing ring = keyRing;
 
-        StringBuilder sbuffer = new StringBuilder();
+        if (ring != null && MessageType.getMessageType(rawMessage) == MessageType.INCOMING_MESSAGE) {
+            Map<String, String> tokenizeResult = MessageType.INCOMING_MESSAGE.tokenize(rawMessage);
+            String uuid = tokenizeResult.get(MessageTypeConstants.UUID);
+            String sealedText = tokenizeResult.get(MessageTypeConstants.MESSAGE_TEXT);
 
-        while (bb.hasRemaining()) {
-            sbuffer.append(StandardCharsets.UTF_8.decode(bb));
-        }
+            String keyId = KeyRing.keyIdOfSealed(sealedText);
+            KeyRing.Epoch epoch = ring.find(keyId);
 
-        String rawMessage = sbuffer.toString();
+            if (epoch == null && keyId != null && isRegisteredAt(uuid, address)) {
+                // The user loaded a new key before the file watcher noticed, not a wrong key.
+                reloadKey();
+                epoch = keyRing.find(keyId);
 
-        if (key != null && MessageType.getMessageType(rawMessage) == MessageType.INCOMING_MESSAGE) {
-            Map<String, String> tokenizeResult = MessageType.INCOMING_MESSAGE.tokenize(rawMessage);
-            String uuid = tokenizeResult.get(MessageTypeConstants.UUID);
-            String encryptedText = tokenizeResult.get(MessageTypeConstants.MESSAGE_TEXT);
+                if (epoch == null) {
+                    LOG.debug("Dropped a message with unknown key ID {}: [UUID = {}]", keyId, uuid);
+                    return;
+                }
+            }
 
             try {
-                byte[] ivBytes = ParamUtil.getIVFromString(uuid, 16);
-                
                 // << MESSAGE >>> <<<< (UUID) >>>> << MESSAGE >> (messageContent)
-                
-                String decryptedMessage = SymmetricCryptoService.getInstance(key, ivBytes).decryptMessageFromBase64String(encryptedText);
+
+                String decryptedMessage = epoch == null || uuid == null ? null
+                                            : sessionKeys.decrypt(epoch, uuid, uuid, sealedText);
+
+                if (decryptedMessage == null) {
+                    rejectForgedMessage(uuid, address);
+                    return;
+                }
+
+                if (userManager.containsUuid(uuid)) {
+                    userKeyIds.put(uuid, epoch.getKeyId());
+                }
 
                 Map<String, String> info = mapOf(MessageTypeConstants.UUID,
                                                 uuid,
@@ -159,13 +342,56 @@ public class ServerListener implements Listener {
                 String ps = MessageType.INVALID_KEY.generateProtocolMessage(mapOf(MessageTypeConstants.UUID, uuid));
                 sendCommunicationData(ps, uuid);
             } catch (BadPaddingException e) {
-                bb.clear();
                 LOG.warn(String.format("Incorrect Key: [UUID = %s]", uuid), e);
                 sendCommunicationData(ProtocolStrings.INVALID_KEY_NOTIFYING_STRING_HEADER + uuid, uuid);
                 return;
             }
         }
 
+        final String decryptedMessage = rawMessage;
+
+        try {
+            // Admitted on receiving already.
+            handleStage.enqueue(address, () -> handleMessage(decryptedMessage, handler, address));
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Handle stage is closed.");
+        }
+    }
+
+    /**
+     * Drops a chatting message whose authentication tag is missing or wrong, without decrypting it.
+     *
+     * <p>Only a registered user at its own address is told about the key mismatch,
+     * replying to anyone else would turn forged datagrams into traffic to a third party.</p>
+     *
+     * @param uuid    UUID field of the message.
+     * @param address Source address.
+     */
+    private void rejectForgedMessage(String uuid, SocketAddress address) {
+        forgedMessages.increment();
+
+        if (isRegisteredAt(uuid, address)) {
+            LOG.warn("Incorrect Key: [UUID = {}]", uuid);
+            sendCommunicationData(ProtocolStrings.INVALID_KEY_NOTIFYING_STRING_HEADER + uuid, uuid);
+        } else {
+            LOG.debug("Dropped a forged message from {}.", address);
+        }
+    }
+
+    private boolean isRegisteredAt(String uuid, SocketAddress address) {
+        User user = uuid == null ? null : userManager.lookup(uuid);
+
+        return user != null && address.equals(user.getAddress());
+    }
+
+    /**
+     * Handle stage: handles message, and sends the result to UI.
+     *
+     * @param rawMessage Decrypted protocol message.
+     * @param handler    Protocol message handler.
+     * @param address    Client address.
+     */
+    private void handleMessage(String rawMessage, Handler handler, SocketAddress address) {
         String message = handler.handleMessage(rawMessage, address);
 
         try {
@@ -174,8 +400,6 @@ public class ServerListener implements Listener {
             Thread.currentThread().interrupt();
             LOG.warn("Sending message, but the process was interrupted by other thread.", e);
         }
-
-        bb.clear();
     }
 
     /**
@@ -186,18 +410,72 @@ public class ServerListener implements Listener {
     private void init() throws IOException {
         ServerMessageHandler handler = new ServerMessageHandler(this);
 
-        BlockingQueue<Runnable> bq = new LinkedBlockingQueue<>(16);
-
         ThreadFactory threadFactory = r -> new Thread(r, "服务器 UDP 监听线程 - #" + threadNumber.incrementAndGet());
 
-        threadPool = new ThreadPoolExecutor(4, 16, 2, TimeUnit.MINUTES, bq, threadFactory);
+        // Only the receive loop and the user name query service run here, messages are handled by the stages.
+        threadPool = Executors.newFixedThreadPool(2, threadFactory);
+
+        // Two threads per stage at first, the controller moves them to where they are needed.
+        int threadBudget = Math.max(6, Runtime.getRuntime().availableProcessors() * 2);
+
+        decryptStage = new Stage("服务器 UDP 解密阶段", 1, threadBudget - 2, 2, STAGE_CAPACITY, STAGE_CLIENT_LIMIT);
+        handleStage = new Stage("服务器 UDP 处理阶段", 1, threadBudget - 2, 2, STAGE_CAPACITY, STAGE_CLIENT_LIMIT);
+        encryptStage = new Stage("服务器 UDP 加密阶段", 1, threadBudget - 2, 2, STAGE_CAPACITY);
+
+        stageController = new StageController(Arrays.asList(decryptStage, handleStage, encryptStage), threadBudget,
+                                                STAGE_CONTROL_INTERVAL_MILLIS, "服务器 UDP 阶段调度线程");
 
         userNameQueryService = new UserNameQueryService();
         threadPool.submit(userNameQueryService);
 
         serverDatagramChannel = DatagramChannel.open();
+        serverDatagramChannel.setOption(StandardSocketOptions.SO_RCVBUF, TransportOptions.getReceiveBufferSize());
         serverDatagramChannel.bind(new InetSocketAddress(ProtocolStrings.SERVER_PORT));
 
+        fec = new FecTransport((datagram, target) -> serverDatagramChannel.send(ByteBuffer.wrap(datagram), target),
+                                TransportOptions.getFecGroupSize(), "服务器 UDP 纠错线程");
+        coalescing = new CoalescingTransport(fec, TransportOptions.getBundlingDelayMillis(), "服务器 UDP 合并线程");
+        transport = new ReliableTransport(coalescing, "服务器 UDP 重传线程");
+
+        fragmenting = new FragmentingTransport(transport, "服务器 UDP 分片线程");
+
+        // Outbound path: queues & pacing -> fragmenting -> reliable delivery -> coalescing -> FEC -> socket.
+        if (TransportOptions.isPacingEnabled()) {
+            pacer = new PacedSender(fragmenting, TransportOptions.getPacingInitialRate(),
+                                    TransportOptions.getPacingMaxRate(), TransportOptions.getChatTtlMillis(),
+                                    "服务器 UDP 发送线程");
+            transport.setFeedback(pacer);
+        } else {
+            pacer = new PacedSender(fragmenting, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                                    TransportOptions.getChatTtlMillis(), "服务器 UDP 发送线程");
+        }
+
+        if (TransportOptions.getDatagramRateLimit() > 0) {
+            datagramLimiter = new TokenBucketLimiter<>(TransportOptions.getDatagramRateLimit(),
+                                    TransportOptions.getDatagramBurstLimit(), TransportOptions.getRateLimitIdleMillis());
+        }
+
+        if (TransportOptions.getChatRateLimit() > 0) {
+            chatLimiter = new TokenBucketLimiter<>(TransportOptions.getChatRateLimit(),
+                                    TransportOptions.getChatBurstLimit(), TransportOptions.getRateLimitIdleMillis());
+        }
+
+        liveness = new IdleSessionTracker<>(TransportOptions.getHeartbeatTimeoutMillis(), this::onSessionExpired,
+                                            "服务器 UDP 心跳线程");
+
+        long statusInterval = TransportOptions.getStatusReportIntervalMillis();
+
+        if (statusInterval > 0) {
+            statusTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "服务器 UDP 状态报告线程");
+                t.setDaemon(true);
+
+                return t;
+            });
+
+            statusTimer.scheduleWithFixedDelay(this::reportStatus, statusInterval, statusInterval, TimeUnit.MILLISECONDS);
+        }
+
         // Runnable to accept UDP connection.
         Runnable connectionReceivingRunnable = () -> receiveConnection(handler);
 
@@ -210,53 +488,298 @@ public class ServerListener implements Listener {
      * @param handler Server message handler.
      */
     private void receiveConnection(ServerMessageHandler handler) {
-        // In order to make the the socket address mutable.
-        List<SocketAddress> ll = Collections.synchronizedList(new LinkedList<>());
-
         Thread currentThread = Thread.currentThread();
 
-        final ByteBuffer bb = ByteBuffer.allocate(ProtocolStrings.BUFFER_SIZE);
+        final ByteBuffer bb = ByteBuffer.allocate(TransportFrames.MAX_DATAGRAM_SIZE);
 
         while (!currentThread.isInterrupted()) {
+            SocketAddress address = null;
+
             try {
-                SocketAddress address = serverDatagramChannel.receive(bb);
+                bb.clear();
+                address = serverDatagramChannel.receive(bb);
+
+                if (datagramLimiter != null && !datagramLimiter.tryAcquire(address)) {
+                    // Over the rate of this address, dropped before any decoding.
+                    rateLimitedDatagrams.increment();
+                    reportDrops();
+                    continue;
+                }
+
+                bb.flip();
 
-                threadPool.execute(() -> {
-                    ll.add(address);
+                // Copy the datagram out, since the buffer is reused by next receiving.
+                byte[] datagram = new byte[bb.remaining()];
+                bb.get(datagram);
 
-                    readMessage(bb, handler, ll.get(0));
+                final SocketAddress from = address;
 
-                    ll.clear();
-                });
+                // Any datagram proves the client is alive, not only heartbeats.
+                liveness.touch(from);
 
+                coalescing.receive(datagram, from, frame -> receiveFrame(frame, from, handler));
+
+            } catch (ClosedChannelException exc) {
+                // Occurs when program is going to exit, ignore.
+                return;
             } catch (Exception exc) {
-                if (exc.getClass() == ClosedByInterruptException.class) {
-                    // Occurs when program is going to exit, ignore.
-                    return;
-                }
+                // A bad datagram or an overloaded stage never tears down sessions,
+                // silent clients are expired by heartbeats instead.
+                LOG.warn("Got exception when receiving message from {}.", address, exc);
+            }
+        }
+    }
+
+    /**
+     * Passes a frame to the upper transport layers.
+     *
+     * <p>Messages are admitted here, before the reliable layer acknowledges them: an acknowledged
+     * message is never sent again by the client, so nothing may be shed after this point.</p>
+     *
+     * @param frame   The frame.
+     * @param from    Client address.
+     * @param handler Server message handler.
+     */
+    private void receiveFrame(byte[] frame, SocketAddress from, ServerMessageHandler handler) {
+        int offset = ReliableTransport.payloadOffset(frame);
 
-                SoftReference<User> sr = null;
+        if (offset >= 0 && !admitFrame(frame, offset, from)) {
+            return;
+        }
 
-                for (User user : userManager.userProfileValueSet()) {
-                    if (user.getAddress().equals(ll.get(0))) {
-                        sr = new SoftReference<>(user);
-                    }
+        try {
+            // Ordering and acknowledgements are handled in this thread, the messages by the stages.
+            transport.receive(frame, from, payload -> fragmenting.receive(payload, from, message -> {
+                if (!isHeartbeat(message)) {
+                    decryptStage.enqueue(from, () -> readMessage(message, handler, from));
                 }
+            }));
+        } catch (RejectedExecutionException e) {
+            // Closed.
+        } catch (IOException e) {
+            LOG.error("Failed to acknowledge {}.", from, e);
+        }
+    }
 
-                if (sr != null && sr.get() != null) {
-                    userManager.deleteUserProfile(sr.get().getUuid());
+    /**
+     * Admission control of a received frame, classified by its payload.
+     *
+     * <p>Chatting messages (and fragments, which only large chatting messages need) are admitted
+     * within the chat rate of the client, below the high-water mark and the per-client limit.
+     * Control messages (registering, logoff etc.) are admitted until the stages are full, so they
+     * keep the room above the high-water mark.</p>
+     *
+     * @param frame  The frame.
+     * @param offset Where the payload starts in the frame.
+     * @param from   Client address.
+     * @return True if admitted.
+     */
+    private boolean admitFrame(byte[] frame, int offset, SocketAddress from) {
+        int fragmentIndex = FragmentingTransport.fragmentIndexOf(frame, offset);
+        boolean chat = fragmentIndex >= 0 || startsWith(frame, offset, MESSAGE_HEADER_BYTES);
+
+        // A large message takes one token, at its first fragment.
+        if (chat && fragmentIndex <= 0 && chatLimiter != null && !chatLimiter.tryAcquire(from)) {
+            rateLimitedChatMessages.increment();
+            reportDrops();
+            return false;
+        }
 
-                    LOG.warn(String.format("Got exception when receiving message. UUID: %s", sr.get().getUuid()), exc);
+        int limit = chat ? CHAT_HIGH_WATER_MARK : STAGE_CAPACITY;
 
-                    sr.clear();
+        if (decryptStage.hasRoom(from, limit) && handleStage.hasRoom(from, limit)
+                && encryptStage.hasRoom(null, limit)) {
+            return true;
+        }
 
-                    // Clear the reference for garbage collection.
-                    sr = null;
-                }
+        if (offset > 0) {
+            // Not acknowledged, so the client retransmits it after the overload.
+            droppedDatagrams.increment();
+        } else {
+            (chat ? droppedChatMessages : droppedControlMessages).increment();
+        }
+
+        reportDrops();
+        return false;
+    }
+
+    /**
+     * Queues a task into a stage, if admitted. Chatting messages are admitted below the high-water mark,
+     * control messages until the stage is full.
+     *
+     * @param stage The stage.
+     * @param key   The ordering key.
+     * @param task  The task.
+     * @param chat  Whether the task carries a chatting message.
+     */
+    private void admit(Stage stage, Object key, Runnable task, boolean chat) {
+        boolean admitted;
+
+        try {
+            admitted = stage.offer(key, task, chat ? CHAT_HIGH_WATER_MARK : STAGE_CAPACITY);
+        } catch (RejectedExecutionException e) {
+            // Closed.
+            return;
+        }
 
-                ll.clear();
+        if (!admitted) {
+            (chat ? droppedChatMessages : droppedControlMessages).increment();
+            reportDrops();
+        }
+    }
+
+    private void reportDrops() {
+        long now = System.currentTimeMillis();
+        long last = lastDropReportMillis.get();
+
+        if (now - last >= DROP_REPORT_INTERVAL_MILLIS && lastDropReportMillis.compareAndSet(last, now)) {
+            LOG.warn("Dropped so far: overload {} datagram(s), {} chat message(s), {} control message(s); "
+                            + "rate limited {} datagram(s), {} chat message(s).",
+                    droppedDatagrams.sum(), droppedChatMessages.sum(), droppedControlMessages.sum(),
+                    rateLimitedDatagrams.sum(), rateLimitedChatMessages.sum());
+        }
+    }
+
+    /**
+     * Logs the stage metrics and the drop counters, so that overload shows up without a debugger.
+     */
+    private void reportStatus() {
+        LOG.info("Stages: {}", getStageMetrics());
+        LOG.info("{} user(s) online. Dropped so far: overload {} datagram(s), {} chat message(s), "
+                        + "{} control message(s); rate limited {} datagram(s), {} chat message(s); "
+                        + "forged {} message(s); reliable delivery given up {}, rejected {}.",
+                userManager.userProfileValueSet().size(), getDroppedDatagramCount(), getDroppedChatMessageCount(),
+                getDroppedControlMessageCount(), getRateLimitedDatagramCount(), getRateLimitedChatMessageCount(),
+                getForgedMessageCount(), transport.getGivenUpCount(), transport.getRejectedCount());
+    }
+
+    /**
+     * Obtain the number of reliable datagrams dropped before acknowledging, due to overload.
+     *
+     * @return The count.
+     */
+    public long getDroppedDatagramCount() {
+        return droppedDatagrams.sum();
+    }
+
+    /**
+     * Obtain the number of chatting messages (received or forwarding) dropped due to overload.
+     *
+     * @return The count.
+     */
+    public long getDroppedChatMessageCount() {
+        return droppedChatMessages.sum();
+    }
+
+    /**
+     * Obtain the number of control messages dropped due to overload.
+     *
+     * @return The count.
+     */
+    public long getDroppedControlMessageCount() {
+        return droppedControlMessages.sum();
+    }
+
+    /**
+     * Obtain the number of datagrams dropped by per-address rate limiting.
+     *
+     * @return The count.
+     */
+    public long getRateLimitedDatagramCount() {
+        return rateLimitedDatagrams.sum();
+    }
+
+    /**
+     * Obtain the number of chatting messages dropped by per-address rate limiting.
+     *
+     * @return The count.
+     */
+    public long getRateLimitedChatMessageCount() {
+        return rateLimitedChatMessages.sum();
+    }
+
+    /**
+     * Obtain the number of chatting messages dropped due to wrong authentication tag.
+     *
+     * @return The count.
+     */
+    public long getForgedMessageCount() {
+        return forgedMessages.sum();
+    }
+
+    /**
+     * Obtain the metrics of server stages during last sampling interval.
+     *
+     * @return The metrics.
+     */
+    public List<StageMetrics> getStageMetrics() {
+        return stageController.getMetrics();
+    }
+
+    /**
+     * Determines whether the payload is a heartbeat, which needs no further handling.
+     *
+     * @param payload The payload.
+     * @return True if it is a heartbeat.
+     */
+    private static boolean isHeartbeat(byte[] payload) {
+        return startsWith(payload, HEARTBEAT_HEADER_BYTES);
+    }
+
+    private static boolean startsWith(byte[] payload, byte[] prefix) {
+        return startsWith(payload, 0, prefix);
+    }
+
+    private static boolean startsWith(byte[] payload, int offset, byte[] prefix) {
+        if (payload.length - offset < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (payload[offset + i] != prefix[i]) {
+                return false;
             }
         }
+
+        return true;
+    }
+
+    /**
+     * Callback when a client sending heartbeats went silent, e.g. crashed.
+     *
+     * @param address Client address.
+     */
+    private void onSessionExpired(SocketAddress address) {
+        // Timing wheel thread, logoff is handed over to the handle stage, after the messages of the client.
+        try {
+            handleStage.enqueue(address, () -> expireSession(address));
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Handle stage is closed.");
+        }
+    }
+
+    /**
+     * Handle stage: logs off the user of a timed out session.
+     *
+     * @param address Client address.
+     */
+    private void expireSession(SocketAddress address) {
+        User user = userManager.lookup(address);
+
+        if (user == null) {
+            return;
+        }
+
+        LOG.info("[UDP] Session timed out, UUID = {}.", user.getUuid());
+
+        try {
+            logoff(user.getUuid());
+            MessageDistributor.getInstance().sendUiMessage("Client: " + user.getUuid() + " (" + user.getName() + ") Timed out.");
+        } catch (IOException e) {
+            LOG.warn(String.format("[UDP] Disconnecting failed, UUID = %s.", user.getUuid()), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
@@ -271,32 +794,138 @@ public class ServerListener implements Listener {
 
             sendServerBroadcast(text, uuid);
         } else {
-            if (key != null) {
-                byte[] ivBytes = ParamUtil.getIVFromString(uuid, 16);
+            User user = userManager.lookup(uuid);
 
-                SymmetricCryptoService scs = SymmetricCryptoService.getInstance(key, ivBytes);
+            if (user == null) {
+                return;
+            }
 
-                String rawMessage = MessageType.INCOMING_MESSAGE.tokenize(text).get(MessageTypeConstants.MESSAGE_TEXT);
-                String nickname = MessageType.INCOMING_MESSAGE.tokenize(text).get(MessageTypeConstants.UUID);
+            admit(encryptStage, user.getAddress(), () -> sendToUser(text, user),
+                    MessageType.getMessageType(text) == MessageType.INCOMING_MESSAGE);
+        }
+    }
+
+    /**
+     * Encrypt stage: encrypts the message to a user, and queues it for sending.
+     *
+     * @param text The protocol message.
+     * @param user The recipient.
+     */
+    private void sendToUser(String text, User user) {
+        // Only chatting messages are encrypted, control messages are sent as-is.
+        KeyRing ring = keyRing;
 
-                try {
-                    String message = scs.encryptMessageToBase64String(rawMessage);
-                    text = MESSAGE_HEADER_LEFT_HALF + nickname + MESSAGE_HEADER_MIDDLE_HALF
-                            + MESSAGE_HEADER_RIGHT_HALF + message;
+        if (ring != null && MessageType.getMessageType(text) == MessageType.INCOMING_MESSAGE) {
+            KeyRing.Epoch epoch = ring.forPeer(userKeyIds.get(user.getUuid()));
+            SymmetricCryptoService scs = sessionKeys.get(epoch, user.getUuid());
 
-                } catch (InvalidKeyException e) {
-                    LOG.error("Invalid key!", e);
-                }
-            }
-            
-            final ByteBuffer bb = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+            String rawMessage = MessageType.INCOMING_MESSAGE.tokenize(text).get(MessageTypeConstants.MESSAGE_TEXT);
+            String nickname = MessageType.INCOMING_MESSAGE.tokenize(text).get(MessageTypeConstants.UUID);
 
             try {
-                serverDatagramChannel.send(bb, userManager.lookup(uuid).getAddress());
-            } catch (IOException e) {
-                LOG.error("Error in sending message.", e);
+                String message = epoch.encrypt(scs, nickname, rawMessage);
+                text = MESSAGE_HEADER_LEFT_HALF + nickname + MESSAGE_HEADER_MIDDLE_HALF
+                        + MESSAGE_HEADER_RIGHT_HALF + message;
+
+            } catch (InvalidKeyException e) {
+                LOG.error("Invalid key!", e);
             }
         }
+
+        sendDatagram(text, user.getAddress());
+    }
+
+    /**
+     * Sends protocol message directly to the socket, bypassing the queues and transport layers,
+     * so that nothing is kept for the address, e.g. a client not verified yet.
+     *
+     * @param text    The protocol message.
+     * @param address Client address.
+     */
+    public void sendStateless(String text, SocketAddress address) {
+        try {
+            serverDatagramChannel.send(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), address);
+        } catch (IOException e) {
+            LOG.debug("Failed to send message to {}.", address, e);
+        }
+    }
+
+    /**
+     * Queues protocol message to the client, which is sent through the transport layers.
+     *
+     * @param text    The protocol message.
+     * @param address Client address.
+     */
+    private void sendDatagram(String text, SocketAddress address) {
+        // Control messages (logoff, key errors etc.) never wait behind chat.
+        PacedSender.Lane lane = MessageType.getMessageType(text) == MessageType.INCOMING_MESSAGE
+                                    ? PacedSender.Lane.CHAT : PacedSender.Lane.CONTROL;
+
+        pacer.send(text.getBytes(StandardCharsets.UTF_8), address, lane);
+    }
+
+    /**
+     * Negotiates the transport capabilities offered by the registering client,
+     * and replies the accepted ones. Clients offered nothing get no reply.
+     *
+     * @param user    The registering user.
+     * @param offered Capability list offered by client.
+     * @return Accepted capabilities.
+     */
+    public Set<String> negotiateCapabilities(User user, String offered) {
+        // The address may be reused by a new client, forget the old session.
+        liveness.untrack(user.getAddress());
+        transport.disable(user.getAddress());
+        fec.disable(user.getAddress());
+        fragmenting.disable(user.getAddress());
+        coalescing.disable(user.getAddress());
+
+        Set<String> accepted = TransportOptions.negotiate(offered);
+
+        if (accepted.contains(ProtocolStrings.CAPABILITY_RELIABLE_DELIVERY)) {
+            transport.enable(user.getAddress());
+        }
+
+        if (accepted.contains(ProtocolStrings.CAPABILITY_FRAGMENTATION)) {
+            fragmenting.enable(user.getAddress());
+        }
+
+        if (accepted.contains(ProtocolStrings.CAPABILITY_BUNDLING)) {
+            coalescing.enable(user.getAddress());
+        }
+
+        if (accepted.contains(ProtocolStrings.CAPABILITY_FEC)) {
+            fec.enableEncoding(user.getAddress());
+        }
+
+        if (accepted.contains(ProtocolStrings.CAPABILITY_HEARTBEAT)) {
+            // Clients without heartbeats may be silent for long, they are never expired.
+            liveness.track(user.getAddress());
+        }
+
+        sendCapabilities(user, offered, accepted);
+
+        return accepted;
+    }
+
+    /**
+     * Replies the accepted capabilities again to a client that repeated its registration,
+     * without resetting the state of its session.
+     *
+     * @param user    The registered user.
+     * @param offered Capability list offered by client.
+     */
+    public void replyCapabilities(User user, String offered) {
+        sendCapabilities(user, offered, TransportOptions.negotiate(offered));
+    }
+
+    private void sendCapabilities(User user, String offered, Set<String> accepted) {
+        if (!offered.isEmpty()) {
+            String reply = MessageType.CAPABILITIES.generateProtocolMessage(
+                                mapOf(MessageTypeConstants.CAPABILITIES, TransportOptions.formatCapabilities(accepted)));
+
+            sendDatagram(reply, user.getAddress());
+        }
     }
 
     private void sendServerBroadcast(String text, String uuid) {
@@ -311,36 +940,68 @@ public class ServerListener implements Listener {
             }
         }
 
-        String encryptedText = text;
+        // Encrypted broadcasts are sent as "uuid", which the per-user encryption keeps in the header.
+        String broadcastText = keyRing == null ? text
+                : MESSAGE_HEADER_LEFT_HALF + uuid + MESSAGE_HEADER_MIDDLE_HALF + MESSAGE_HEADER_RIGHT_HALF
+                    + MessageType.INCOMING_MESSAGE.tokenize(text).get(MessageTypeConstants.MESSAGE_TEXT);
 
-        for (User u : userManager.userProfileValueSet()) {
-            if (key != null) {
-                byte[] ivBytes = ParamUtil.getIVFromString(u.getUuid(), 16);
+        sendToUsers(broadcastText, userManager.userProfileValueSet(), uuid);
+    }
 
-                SymmetricCryptoService scs = SymmetricCryptoService.getInstance(key, ivBytes);
+    /**
+     * Sends one chatting message to many users. With a key, the message is sealed for all of them
+     * in one task of the encrypt stage, which splits the batch across the ForkJoin pool,
+     * instead of one task per recipient.
+     *
+     * @param text       The protocol message.
+     * @param recipients The recipients.
+     * @param key        Ordering key of the batch, e.g. UUID of the sender, so that the messages of a sender keep their order.
+     */
+    public void sendToUsers(String text, Collection<User> recipients, Object key) {
+        if (keyRing == null) {
+            for (User u : recipients) {
+                admit(encryptStage, u.getAddress(), () -> sendDatagram(text, u.getAddress()), true);
+            }
 
-                String rawMessage = MessageType.INCOMING_MESSAGE.tokenize(text).get(MessageTypeConstants.MESSAGE_TEXT);
+            return;
+        }
 
-                try {
-                    String message = scs.encryptMessageToBase64String(rawMessage);
-                    encryptedText = MESSAGE_HEADER_LEFT_HALF + uuid + MESSAGE_HEADER_MIDDLE_HALF
-                            + MESSAGE_HEADER_RIGHT_HALF + message;
+        List<User> snapshot = new ArrayList<>(recipients);
 
-                } catch (InvalidKeyException e) {
-                    LOG.error("Invalid key!", e);
-                }
-            }
+        admit(encryptStage, key, () -> sealForUsers(text, snapshot), true);
+    }
 
-            final ByteBuffer bb = ByteBuffer.wrap(encryptedText.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Encrypt stage: seals the message for each recipient with the key epoch it used last, and queues it for sending.
+     *
+     * @param text       The protocol message.
+     * @param recipients The recipients.
+     */
+    private void sealForUsers(String text, List<User> recipients) {
+        KeyRing ring = keyRing;
+        Map<String, String> fields = MessageType.INCOMING_MESSAGE.tokenize(text);
+        String nickname = fields.get(MessageTypeConstants.UUID);
+        String rawMessage = fields.get(MessageTypeConstants.MESSAGE_TEXT);
+
+        // Usually one epoch, two while clients load a new key.
+        Map<KeyRing.Epoch, List<String>> sessionsByEpoch = new LinkedHashMap<>();
+        Map<String, SocketAddress> addresses = new HashMap<>();
+
+        for (User u : recipients) {
+            sessionsByEpoch.computeIfAbsent(ring.forPeer(userKeyIds.get(u.getUuid())), e -> new ArrayList<>())
+                            .add(u.getUuid());
+            addresses.put(u.getUuid(), u.getAddress());
+        }
 
+        for (Map.Entry<KeyRing.Epoch, List<String>> entry : sessionsByEpoch.entrySet()) {
             try {
-                bb.rewind();
+                Map<String, String> sealed = new BatchCryptoService(entry.getKey(), sessionKeys, ForkJoinPool.commonPool())
+                                                .sealForSessions(nickname, rawMessage, entry.getValue());
 
-                while (bb.hasRemaining()) {
-                    serverDatagramChannel.send(bb, u.getAddress());
-                }
-            } catch (IOException e) {
-                LOG.error("Error in sending message.", e);
+                sealed.forEach((uuid, message) -> sendDatagram(MESSAGE_HEADER_LEFT_HALF + nickname
+                        + MESSAGE_HEADER_MIDDLE_HALF + MESSAGE_HEADER_RIGHT_HALF + message, addresses.get(uuid)));
+            } catch (InvalidKeyException e) {
+                LOG.error("Invalid key!", e);
             }
         }
     }
@@ -359,7 +1020,22 @@ public class ServerListener implements Listener {
      * @throws IOException If I/O error occurs.
      */
     public void logoff(String uuid) throws IOException {
+        User user = userManager.lookup(uuid);
+
+        if (user == null) {
+            return;
+        }
+
         userManager.deleteUserProfile(uuid);
+        userKeyIds.remove(uuid);
+        sessionKeys.invalidate(uuid);
+        liveness.untrack(user.getAddress());
+        fragmenting.disable(user.getAddress());
+        transport.disable(user.getAddress());
+        coalescing.disable(user.getAddress());
+        fec.disable(user.getAddress());
+
+        pacer.remove(user.getAddress());
     }
 
     /**
@@ -368,18 +1044,28 @@ public class ServerListener implements Listener {
      * @throws IOException If I/O error occurs.
      */
     public void logoffAll() throws IOException {
-        userManager.userProfileValueSet().forEach(v -> {
-            try {
-                final ByteBuffer bb = ByteBuffer
-                        .wrap((ProtocolStrings.NOTIFY_LOGOFF_HEADER + "SERVER").getBytes(StandardCharsets.UTF_8));
+        userManager.userProfileValueSet().forEach(v ->
+                sendDatagram(ProtocolStrings.NOTIFY_LOGOFF_HEADER + "SERVER", v.getAddress()));
 
-                serverDatagramChannel.send(bb, v.getAddress());
-            } catch (IOException e) {
-                // Ignore
-            }
-        });
+        // Give the notifications a chance to be retransmitted.
+        long deadline = System.currentTimeMillis() + LOGOFF_ACK_TIMEOUT_MILLIS;
+
+        for (User v : userManager.userProfileValueSet()) {
+            pacer.awaitSent(v.getAddress(), Math.max(0, deadline - System.currentTimeMillis()));
+
+            transport.awaitAcknowledged(v.getAddress(), Math.max(0, deadline - System.currentTimeMillis()));
+        }
 
         userManager.clearAllProfiles();
+        userKeyIds.clear();
+        sessionKeys.clear();
+        liveness.clear();
+        fragmenting.clear();
+        transport.clear();
+        coalescing.clear();
+        fec.clear();
+
+        pacer.clear();
     }
 
     /**
@@ -389,6 +1075,23 @@ public class ServerListener implements Listener {
     public void close() throws Exception {
         userNameQueryService.stopSelf();
         threadPool.shutdownNow();
+
+        if (statusTimer != null) {
+            statusTimer.shutdownNow();
+        }
+
+        stageController.close();
+        decryptStage.close();
+        handleStage.close();
+        encryptStage.close();
+        liveness.close();
+        fragmenting.close();
+
+        pacer.close();
+
+        transport.close();
+        coalescing.close();
+        fec.close();
         userManager.clearAllProfiles();
         serverDatagramChannel.close();
 
@@ -0,0 +1,296 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static ac.adproj.mchat.transport.TransportFrames.*;
+
+/**
+ * Optional coalescing layer (Nagle-style batching).
+ *
+ * <p>Frames to a peer are held for a short delay, and the frames pending together are packed into
+ * one BUNDLE datagram, up to {@link #MAX_BUNDLE_SIZE} and {@link #MAX_BUNDLE_FRAMES}. A lone frame
+ * is sent as-is, so that the receiver only pays for unpacking when there's something to unpack.</p>
+ *
+ * <p>Bundles are only unpacked from peers that negotiated bundling, and a malformed bundle (empty
+ * entries, too many frames) is dropped as a whole. So one datagram never turns into more work than
+ * {@link #MAX_BUNDLE_FRAMES} frames, whatever per-datagram rate limit is applied before.</p>
+ *
+ * @author Andy Cheung
+ */
+public class CoalescingTransport implements DatagramSender, AutoCloseable {
+    /**
+     * Maximum size of BUNDLE datagram, leaving room for the header of forward error correction.
+     */
+    public static final int MAX_BUNDLE_SIZE = MAX_DATAGRAM_SIZE - 16;
+
+    /**
+     * Maximum number of frames in one BUNDLE datagram.
+     */
+    public static final int MAX_BUNDLE_FRAMES = 32;
+
+    private static final int LENGTH_SIZE = Short.BYTES;
+
+    private static final Logger LOG = LoggerFactory.getLogger(CoalescingTransport.class);
+
+    private final DatagramSender lower;
+    private final long delayMillis;
+
+    private final Map<SocketAddress, Pending> peers = new ConcurrentHashMap<>();
+    private final Set<SocketAddress> accepted = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Frames waiting for one peer.
+     */
+    private static final class Pending {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_BUNDLE_SIZE);
+        byte[] first;
+        int frames;
+        boolean flushScheduled;
+
+        Pending() {
+            reset();
+        }
+
+        void reset() {
+            buffer.clear();
+            buffer.put(MAGIC).put(TYPE_BUNDLE);
+            first = null;
+            frames = 0;
+        }
+
+        boolean fits(byte[] frame) {
+            return frames < MAX_BUNDLE_FRAMES && buffer.remaining() >= LENGTH_SIZE + frame.length;
+        }
+
+        void add(byte[] frame) {
+            if (frames == 0) {
+                first = frame;
+            }
+
+            buffer.putShort((short) frame.length).put(frame);
+            frames++;
+        }
+
+        /**
+         * Takes the datagram to send: the frame itself if it's alone, otherwise the bundle.
+         */
+        byte[] take() {
+            byte[] datagram = null;
+
+            if (frames == 1) {
+                datagram = first;
+            } else if (frames > 1) {
+                datagram = new byte[buffer.position()];
+                System.arraycopy(buffer.array(), 0, datagram, 0, datagram.length);
+            }
+
+            reset();
+
+            return datagram;
+        }
+    }
+
+    /**
+     * Constructs the layer.
+     *
+     * @param lower       The layer that datagrams are handed to.
+     * @param delayMillis Time to wait for more frames, in milliseconds.
+     * @param name        Name of timer thread.
+     */
+    public CoalescingTransport(DatagramSender lower, long delayMillis, String name) {
+        this.lower = lower;
+        this.delayMillis = Math.max(0, delayMillis);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+
+            return t;
+        });
+    }
+
+    /**
+     * Unpacks the bundles from the peer. Outgoing frames are still sent one by one.
+     *
+     * @param peer The peer address.
+     */
+    public void accept(SocketAddress peer) {
+        accepted.add(peer);
+    }
+
+    /**
+     * Coalesces the frames sent to the peer, and unpacks the bundles from it.
+     *
+     * @param peer The peer address.
+     */
+    public void enable(SocketAddress peer) {
+        accepted.add(peer);
+        peers.computeIfAbsent(peer, k -> new Pending());
+    }
+
+    /**
+     * Stops coalescing for the peer, the pending frames are sent at once.
+     *
+     * @param peer The peer address.
+     */
+    public void disable(SocketAddress peer) {
+        accepted.remove(peer);
+
+        Pending pending = peers.remove(peer);
+
+        if (pending != null) {
+            flush(peer, pending);
+        }
+    }
+
+    /**
+     * Drops all peers, the pending frames are sent at once.
+     */
+    public void clear() {
+        peers.keySet().forEach(this::disable);
+        accepted.clear();
+    }
+
+    @Override
+    public void send(byte[] frame, SocketAddress target) throws IOException {
+        Pending pending = peers.get(target);
+
+        if (pending == null || delayMillis == 0) {
+            lower.send(frame, target);
+            return;
+        }
+
+        boolean schedule = false;
+
+        // Sent while holding the lock, so that a concurrent flush can't overtake.
+        synchronized (pending) {
+            if (!pending.fits(frame)) {
+                // Keep the order: what is pending goes first.
+                byte[] full = pending.take();
+
+                if (full != null) {
+                    lower.send(full, target);
+                }
+            }
+
+            if (!pending.fits(frame)) {
+                lower.send(frame, target);
+                return;
+            }
+
+            pending.add(frame);
+
+            if (!pending.flushScheduled) {
+                pending.flushScheduled = true;
+                schedule = true;
+            }
+        }
+
+        if (schedule) {
+            try {
+                timer.schedule(() -> flush(target, pending), delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closed.
+                flush(target, pending);
+            }
+        }
+    }
+
+    private void flush(SocketAddress target, Pending pending) {
+        synchronized (pending) {
+            pending.flushScheduled = false;
+
+            byte[] datagram = pending.take();
+
+            if (datagram == null) {
+                return;
+            }
+
+            try {
+                lower.send(datagram, target);
+            } catch (IOException e) {
+                LOG.error("Error in sending message.", e);
+            }
+        }
+    }
+
+    /**
+     * Handles a received datagram, unpacking it if it's a BUNDLE from an accepted peer.
+     *
+     * @param datagram The datagram.
+     * @param from     The peer address.
+     * @param deliver  Receiver of frames, invoked in order in the current thread.
+     */
+    public void receive(byte[] datagram, SocketAddress from, Consumer<byte[]> deliver) {
+        if (!isTransportFrame(datagram) || typeOf(datagram) != TYPE_BUNDLE) {
+            deliver.accept(datagram);
+            return;
+        }
+
+        if (!accepted.contains(from)) {
+            LOG.debug("Dropped a bundle from {}, bundling isn't negotiated.", from);
+            return;
+        }
+
+        List<byte[]> frames = new ArrayList<>();
+        ByteBuffer bb = ByteBuffer.wrap(datagram, FRAME_HEADER_SIZE, datagram.length - FRAME_HEADER_SIZE);
+
+        // Checked as a whole before delivering anything.
+        while (bb.hasRemaining()) {
+            int length = bb.remaining() >= LENGTH_SIZE ? bb.getShort() & 0xFFFF : 0;
+
+            if (length == 0 || length > bb.remaining() || frames.size() >= MAX_BUNDLE_FRAMES) {
+                LOG.debug("Dropped a malformed bundle from {}.", from);
+                return;
+            }
+
+            byte[] frame = new byte[length];
+            bb.get(frame);
+
+            frames.add(frame);
+        }
+
+        frames.forEach(deliver);
+    }
+
+    /**
+     * Sends the pending frames, and stops the timer.
+     */
+    @Override
+    public void close() {
+        clear();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * Represents the lower layer that datagrams are handed to.
+ *
+ * @author Andy Cheung
+ */
+@FunctionalInterface
+public interface DatagramSender {
+    /**
+     * Sends a datagram.
+     *
+     * @param datagram Content of the datagram.
+     * @param target   The remote address.
+     * @throws IOException If I/O error occurs.
+     */
+    void send(byte[] datagram, SocketAddress target) throws IOException;
+
+    /**
+     * Sends a control datagram (logoff, key errors etc.), which layers with queues serve before chat.
+     *
+     * @param datagram Content of the datagram.
+     * @param target   The remote address.
+     * @throws IOException If I/O error occurs.
+     */
+    default void sendControl(byte[] datagram, SocketAddress target) throws IOException {
+        send(datagram, target);
+    }
+}
@@ -0,0 +1,447 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static ac.adproj.mchat.transport.TransportFrames.*;
+
+/**
+ * Optional forward error correction layer.
+ *
+ * <p>Datagrams to a peer are grouped by K, and an XOR parity datagram is sent after every group
+ * (or after a short idle time, for a partial group). The receiver rebuilds a single lost datagram
+ * of a group without waiting for retransmission.</p>
+ *
+ * <p>Only one direction is protected: the sender encodes for the peers enabled by
+ * {@link #enableEncoding(SocketAddress)}, the receiver decodes from the peers enabled by
+ * {@link #enableDecoding(SocketAddress)}.</p>
+ *
+ * @author Andy Cheung
+ */
+public class FecTransport implements DatagramSender, AutoCloseable {
+    /**
+     * Maximum number of datagrams in one group.
+     */
+    public static final int MAX_GROUP_SIZE = 16;
+
+    /**
+     * Idle time before the parity of a partial group is sent, in milliseconds.
+     */
+    public static final long FLUSH_MILLIS = 30;
+
+    /**
+     * Number of recent groups kept by receiver for each peer.
+     */
+    static final int MAX_PENDING_GROUPS = 64;
+
+    private static final int DATA_HEADER_SIZE = FRAME_HEADER_SIZE + Integer.BYTES + 1;
+    private static final int PARITY_HEADER_SIZE = FRAME_HEADER_SIZE + Integer.BYTES + 1 + Short.BYTES;
+
+    private static final Logger LOG = LoggerFactory.getLogger(FecTransport.class);
+
+    private final DatagramSender lower;
+    private final int groupSize;
+
+    private final Map<SocketAddress, Encoder> encoders = new ConcurrentHashMap<>();
+    private final Map<SocketAddress, Decoder> decoders = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Parity of the group being sent to one peer.
+     */
+    private static final class Encoder {
+        int group;
+        int count;
+        int lengthXor;
+        byte[] parity = new byte[MAX_DATAGRAM_SIZE];
+        int parityLength;
+        long lastSent;
+
+        byte[] wrap(byte[] datagram, long now) {
+            byte[] frame = ByteBuffer.allocate(DATA_HEADER_SIZE + datagram.length)
+                                .put(MAGIC).put(TYPE_FEC_DATA).putInt(group).put((byte) count).put(datagram).array();
+
+            for (int i = 0; i < datagram.length; i++) {
+                parity[i] ^= datagram[i];
+            }
+
+            parityLength = Math.max(parityLength, datagram.length);
+            lengthXor ^= datagram.length;
+            count++;
+            lastSent = now;
+
+            return frame;
+        }
+
+        byte[] takeParity() {
+            byte[] frame = ByteBuffer.allocate(PARITY_HEADER_SIZE + parityLength)
+                                .put(MAGIC).put(TYPE_FEC_PARITY).putInt(group).put((byte) count)
+                                .putShort((short) lengthXor).put(parity, 0, parityLength).array();
+
+            group++;
+            count = 0;
+            lengthXor = 0;
+            parity = new byte[MAX_DATAGRAM_SIZE];
+            parityLength = 0;
+
+            return frame;
+        }
+    }
+
+    /**
+     * Datagrams received in one group.
+     */
+    private static final class Group {
+        byte[][] datagrams = new byte[MAX_GROUP_SIZE][];
+
+        /**
+         * Bit mask of the indexes received or rebuilt, used to drop late duplicates.
+         */
+        int seen;
+        int received;
+        byte[] parity;
+        int count;
+        int lengthXor;
+        boolean complete;
+
+        void complete() {
+            complete = true;
+            datagrams = null;
+            parity = null;
+        }
+    }
+
+    /**
+     * Recent groups received from one peer.
+     */
+    private static final class Decoder {
+        final Map<Integer, Group> groups = new LinkedHashMap<Integer, Group>(16, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Group> eldest) {
+                return size() > MAX_PENDING_GROUPS;
+            }
+        };
+
+        long recovered;
+    }
+
+    /**
+     * Constructs the layer, and starts the flushing timer.
+     *
+     * @param lower     The layer that datagrams are handed to.
+     * @param groupSize Number of datagrams protected by one parity datagram.
+     * @param name      Name of timer thread.
+     */
+    public FecTransport(DatagramSender lower, int groupSize, String name) {
+        this.lower = lower;
+        this.groupSize = Math.max(2, Math.min(MAX_GROUP_SIZE, groupSize));
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        timer.scheduleWithFixedDelay(this::flushIdleGroups, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Protects datagrams sent to the peer.
+     *
+     * @param peer The peer address.
+     */
+    public void enableEncoding(SocketAddress peer) {
+        encoders.computeIfAbsent(peer, k -> new Encoder());
+    }
+
+    /**
+     * Decodes protected datagrams from the peer.
+     *
+     * @param peer The peer address.
+     */
+    public void enableDecoding(SocketAddress peer) {
+        decoders.computeIfAbsent(peer, k -> new Decoder());
+    }
+
+    /**
+     * Stops encoding and decoding for the peer.
+     *
+     * @param peer The peer address.
+     */
+    public void disable(SocketAddress peer) {
+        encoders.remove(peer);
+        decoders.remove(peer);
+    }
+
+    /**
+     * Drops all peers.
+     */
+    public void clear() {
+        encoders.clear();
+        decoders.clear();
+    }
+
+    @Override
+    public void send(byte[] datagram, SocketAddress target) throws IOException {
+        Encoder encoder = encoders.get(target);
+
+        // Acknowledgements are cumulative and sent again anyway, not worth protecting.
+        if (encoder == null || (isTransportFrame(datagram) && typeOf(datagram) == TYPE_RELIABLE_ACK)) {
+            lower.send(datagram, target);
+            return;
+        }
+
+        byte[] frame;
+        byte[] parity = null;
+
+        synchronized (encoder) {
+            frame = encoder.wrap(datagram, now());
+
+            if (encoder.count >= groupSize) {
+                parity = encoder.takeParity();
+            }
+        }
+
+        lower.send(frame, target);
+
+        if (parity != null) {
+            lower.send(parity, target);
+        }
+    }
+
+    /**
+     * Handles a received datagram.
+     *
+     * @param datagram The datagram.
+     * @param from     The peer address.
+     * @param deliver  Receiver of datagrams (including the rebuilt ones), invoked in the current thread.
+     */
+    public void receive(byte[] datagram, SocketAddress from, Consumer<byte[]> deliver) {
+        if (!isTransportFrame(datagram)
+                || (typeOf(datagram) != TYPE_FEC_DATA && typeOf(datagram) != TYPE_FEC_PARITY)) {
+            deliver.accept(datagram);
+            return;
+        }
+
+        Decoder decoder = decoders.get(from);
+
+        if (decoder == null) {
+            return;
+        }
+
+        List<byte[]> output = new ArrayList<>(2);
+
+        synchronized (decoder) {
+            if (typeOf(datagram) == TYPE_FEC_DATA) {
+                onData(decoder, datagram, output);
+            } else {
+                onParity(decoder, datagram, output);
+            }
+        }
+
+        output.forEach(deliver);
+    }
+
+    /**
+     * Records a FEC_DATA frame. Late duplicates of rebuilt datagrams are dropped.
+     */
+    private void onData(Decoder decoder, byte[] frame, List<byte[]> output) {
+        if (frame.length < DATA_HEADER_SIZE) {
+            return;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(frame, FRAME_HEADER_SIZE, frame.length - FRAME_HEADER_SIZE);
+        int groupId = bb.getInt();
+        int index = bb.get() & 0xFF;
+
+        if (index >= MAX_GROUP_SIZE) {
+            return;
+        }
+
+        Group group = decoder.groups.computeIfAbsent(groupId, k -> new Group());
+
+        if (group.complete || (group.seen & (1 << index)) != 0) {
+            return;
+        }
+
+        byte[] datagram = new byte[bb.remaining()];
+        bb.get(datagram);
+
+        group.seen |= 1 << index;
+        group.datagrams[index] = datagram;
+        group.received++;
+
+        output.add(datagram);
+
+        tryComplete(decoder, group, groupId, output);
+    }
+
+    /**
+     * Records a FEC_PARITY frame.
+     */
+    private void onParity(Decoder decoder, byte[] frame, List<byte[]> output) {
+        if (frame.length < PARITY_HEADER_SIZE) {
+            return;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(frame, FRAME_HEADER_SIZE, frame.length - FRAME_HEADER_SIZE);
+        int groupId = bb.getInt();
+        int count = bb.get() & 0xFF;
+        int lengthXor = bb.getShort() & 0xFFFF;
+
+        if (count > MAX_GROUP_SIZE) {
+            return;
+        }
+
+        Group group = decoder.groups.computeIfAbsent(groupId, k -> new Group());
+
+        if (group.complete || group.parity != null) {
+            return;
+        }
+
+        group.count = count;
+        group.lengthXor = lengthXor;
+        group.parity = new byte[bb.remaining()];
+        bb.get(group.parity);
+
+        tryComplete(decoder, group, groupId, output);
+    }
+
+    /**
+     * Completes the group if all datagrams are received, or rebuilds the only missing one from parity.
+     * If more than one is missing, the group is kept in case the others arrive late.
+     */
+    private void tryComplete(Decoder decoder, Group group, int groupId, List<byte[]> output) {
+        if (group.parity == null || group.received < group.count - 1) {
+            return;
+        }
+
+        if (group.received >= group.count) {
+            group.complete();
+            return;
+        }
+
+        int missing = -1;
+        int length = group.lengthXor;
+        byte[] rebuilt = group.parity.clone();
+
+        for (int i = 0; i < group.count; i++) {
+            byte[] datagram = group.datagrams[i];
+
+            if (datagram == null) {
+                missing = i;
+                continue;
+            }
+
+            length ^= datagram.length;
+
+            for (int j = 0; j < datagram.length; j++) {
+                rebuilt[j] ^= datagram[j];
+            }
+        }
+
+        group.complete();
+
+        if (missing < 0 || length > rebuilt.length) {
+            return;
+        }
+
+        group.seen |= 1 << missing;
+        decoder.recovered++;
+
+        LOG.debug("Rebuilt datagram {} of group {} from parity.", missing, groupId);
+
+        output.add(Arrays.copyOf(rebuilt, length));
+    }
+
+    /**
+     * Obtain the number of datagrams rebuilt from parity.
+     *
+     * @param peer The peer address.
+     * @return Number of datagrams rebuilt.
+     */
+    public long getRecoveredCount(SocketAddress peer) {
+        Decoder decoder = decoders.get(peer);
+
+        if (decoder == null) {
+            return 0;
+        }
+
+        synchronized (decoder) {
+            return decoder.recovered;
+        }
+    }
+
+    private void flushIdleGroups() {
+        long now = now();
+
+        for (Iterator<Map.Entry<SocketAddress, Encoder>> it = encoders.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<SocketAddress, Encoder> entry = it.next();
+            Encoder encoder = entry.getValue();
+            byte[] parity = null;
+
+            synchronized (encoder) {
+                if (encoder.count > 0 && now - encoder.lastSent >= FLUSH_MILLIS) {
+                    parity = encoder.takeParity();
+                }
+            }
+
+            if (parity == null) {
+                continue;
+            }
+
+            try {
+                lower.send(parity, entry.getKey());
+            } catch (IOException e) {
+                LOG.debug("Failed to send parity to {}.", entry.getKey(), e);
+            }
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Stops the flushing timer.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        clear();
+    }
+}
@@ -0,0 +1,381 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import ac.adproj.mchat.model.ProtocolStrings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static ac.adproj.mchat.transport.TransportFrames.*;
+
+/**
+ * Optional fragmentation layer.
+ *
+ * <p>Messages larger than {@link ProtocolStrings#BUFFER_SIZE} are split into numbered fragments,
+ * so that every datagram (with the headers of lower layers) fits in the receiving buffers and the
+ * path MTU, without IP-level fragmentation. Smaller messages pass through unchanged.</p>
+ *
+ * <p>Reassembly memory is bounded per peer (number of messages and bytes), and incomplete
+ * messages are discarded after {@link #REASSEMBLY_TIMEOUT_MILLIS}.</p>
+ *
+ * @author Andy Cheung
+ */
+public class FragmentingTransport implements DatagramSender, AutoCloseable {
+    /**
+     * Size of FRAGMENT header.
+     */
+    static final int FRAGMENT_HEADER_SIZE = FRAME_HEADER_SIZE + Integer.BYTES + 2 * Short.BYTES;
+
+    /**
+     * Size of message part in one fragment, so that the fragment is no larger than BUFFER_SIZE.
+     */
+    public static final int FRAGMENT_PAYLOAD_SIZE = ProtocolStrings.BUFFER_SIZE - FRAGMENT_HEADER_SIZE;
+
+    /**
+     * Maximum number of fragments of one message.
+     */
+    public static final int MAX_FRAGMENTS = 64;
+
+    /**
+     * Maximum size of one message.
+     */
+    public static final int MAX_MESSAGE_SIZE = FRAGMENT_PAYLOAD_SIZE * MAX_FRAGMENTS;
+
+    /**
+     * Maximum number of incomplete messages from one peer. The oldest one is discarded when exceeded.
+     */
+    static final int MAX_PENDING_MESSAGES = 16;
+
+    /**
+     * Maximum bytes of incomplete messages from one peer. The oldest one is discarded when exceeded.
+     */
+    static final int MAX_PENDING_BYTES = 4 * MAX_MESSAGE_SIZE;
+
+    /**
+     * Time after which an incomplete message is discarded, in milliseconds.
+     */
+    public static final long REASSEMBLY_TIMEOUT_MILLIS = 10_000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(FragmentingTransport.class);
+
+    private final DatagramSender lower;
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+
+    private final Map<SocketAddress, Peer> peers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Message being reassembled.
+     */
+    private static final class Partial {
+        final byte[][] parts;
+        final long created;
+        int received;
+        int bytes;
+
+        Partial(int count, long created) {
+            this.parts = new byte[count][];
+            this.created = created;
+        }
+    }
+
+    /**
+     * Fragmentation state of one peer.
+     */
+    private static final class Peer {
+        volatile boolean outbound;
+
+        /**
+         * Incomplete messages, in arrival order.
+         */
+        final Map<Integer, Partial> pending = new LinkedHashMap<>();
+        int pendingBytes;
+
+        Peer(boolean outbound) {
+            this.outbound = outbound;
+        }
+
+        void discard(Iterator<Partial> it, Partial partial) {
+            it.remove();
+            pendingBytes -= partial.bytes;
+        }
+    }
+
+    /**
+     * Constructs the layer, and starts the timer discarding stale messages.
+     *
+     * @param lower The layer that datagrams are handed to.
+     * @param name  Name of timer thread.
+     */
+    public FragmentingTransport(DatagramSender lower, String name) {
+        this.lower = lower;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        timer.scheduleWithFixedDelay(this::discardStale, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reassembles the fragments from the peer. Outgoing messages are still sent as-is.
+     *
+     * @param peer The peer address.
+     */
+    public void accept(SocketAddress peer) {
+        peers.computeIfAbsent(peer, k -> new Peer(false));
+    }
+
+    /**
+     * Enables fragmentation in both directions.
+     *
+     * @param peer The peer address.
+     */
+    public void enable(SocketAddress peer) {
+        peers.computeIfAbsent(peer, k -> new Peer(true)).outbound = true;
+    }
+
+    /**
+     * Disables fragmentation, and discards incomplete messages.
+     *
+     * @param peer The peer address.
+     */
+    public void disable(SocketAddress peer) {
+        peers.remove(peer);
+    }
+
+    /**
+     * Drops all peers.
+     */
+    public void clear() {
+        peers.clear();
+    }
+
+    /**
+     * Sends a message, split into fragments if it's larger than BUFFER_SIZE.
+     *
+     * @param message The message.
+     * @param target  The peer address.
+     * @throws IOException If I/O error occurs.
+     */
+    @Override
+    public void send(byte[] message, SocketAddress target) throws IOException {
+        Peer peer = peers.get(target);
+
+        if (message.length <= ProtocolStrings.BUFFER_SIZE || peer == null || !peer.outbound) {
+            if (message.length > ProtocolStrings.BUFFER_SIZE) {
+                LOG.warn("Message of {} bytes to {} may be truncated, fragmentation isn't negotiated.",
+                            message.length, target);
+            }
+
+            lower.send(message, target);
+            return;
+        }
+
+        if (message.length > MAX_MESSAGE_SIZE) {
+            throw new IOException(String.format("Message too large: %d bytes, at most %d bytes.",
+                                                message.length, MAX_MESSAGE_SIZE));
+        }
+
+        int id = nextMessageId.getAndIncrement();
+        int count = (message.length + FRAGMENT_PAYLOAD_SIZE - 1) / FRAGMENT_PAYLOAD_SIZE;
+
+        for (int i = 0; i < count; i++) {
+            int offset = i * FRAGMENT_PAYLOAD_SIZE;
+            int length = Math.min(FRAGMENT_PAYLOAD_SIZE, message.length - offset);
+
+            byte[] fragment = ByteBuffer.allocate(FRAGMENT_HEADER_SIZE + length)
+                                .put(MAGIC).put(TYPE_FRAGMENT).putInt(id).putShort((short) i).putShort((short) count)
+                                .put(message, offset, length).array();
+
+            lower.send(fragment, target);
+        }
+    }
+
+    /**
+     * Sends a control message. Control messages are small, they are only fragmented (as chat) if they don't fit.
+     *
+     * @param message The message.
+     * @param target  The peer address.
+     * @throws IOException If I/O error occurs.
+     */
+    @Override
+    public void sendControl(byte[] message, SocketAddress target) throws IOException {
+        if (message.length <= ProtocolStrings.BUFFER_SIZE) {
+            lower.sendControl(message, target);
+        } else {
+            send(message, target);
+        }
+    }
+
+    /**
+     * Handles a received payload.
+     *
+     * @param payload The payload from lower layer.
+     * @param from    The peer address.
+     * @param deliver Receiver of complete messages, invoked in the current thread.
+     */
+    public void receive(byte[] payload, SocketAddress from, Consumer<byte[]> deliver) {
+        if (!isTransportFrame(payload) || typeOf(payload) != TYPE_FRAGMENT) {
+            deliver.accept(payload);
+            return;
+        }
+
+        Peer peer = peers.get(from);
+
+        if (peer == null || payload.length < FRAGMENT_HEADER_SIZE) {
+            return;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(payload, FRAME_HEADER_SIZE, payload.length - FRAME_HEADER_SIZE);
+        int id = bb.getInt();
+        int index = bb.getShort() & 0xFFFF;
+        int count = bb.getShort() & 0xFFFF;
+
+        if (count == 0 || count > MAX_FRAGMENTS || index >= count) {
+            return;
+        }
+
+        byte[] message;
+
+        synchronized (peer) {
+            Partial partial = peer.pending.get(id);
+
+            if (partial == null) {
+                partial = new Partial(count, now());
+                peer.pending.put(id, partial);
+            }
+
+            if (partial.parts.length != count || partial.parts[index] != null) {
+                // Inconsistent or duplicate.
+                return;
+            }
+
+            byte[] part = new byte[bb.remaining()];
+            bb.get(part);
+
+            partial.parts[index] = part;
+            partial.received++;
+            partial.bytes += part.length;
+            peer.pendingBytes += part.length;
+
+            if (partial.received < count) {
+                enforceLimits(peer, from);
+                return;
+            }
+
+            peer.pending.remove(id);
+            peer.pendingBytes -= partial.bytes;
+
+            message = join(partial);
+        }
+
+        deliver.accept(message);
+    }
+
+    /**
+     * Obtain the index of a fragment, without receiving it.
+     *
+     * @param payload The payload, e.g. a reliable frame.
+     * @param offset  Where the fragment starts in the payload.
+     * @return Index of fragment, -1 if it's not a fragment.
+     */
+    public static int fragmentIndexOf(byte[] payload, int offset) {
+        if (payload.length < offset + FRAGMENT_HEADER_SIZE || payload[offset] != MAGIC
+                || payload[offset + 1] != TYPE_FRAGMENT) {
+            return -1;
+        }
+
+        return ByteBuffer.wrap(payload, offset + FRAME_HEADER_SIZE + Integer.BYTES, Short.BYTES).getShort() & 0xFFFF;
+    }
+
+    private static byte[] join(Partial partial) {
+        ByteBuffer bb = ByteBuffer.allocate(partial.bytes);
+
+        for (byte[] part : partial.parts) {
+            bb.put(part);
+        }
+
+        return bb.array();
+    }
+
+    /**
+     * Discards the oldest incomplete messages if the peer exceeds the limits.
+     */
+    private void enforceLimits(Peer peer, SocketAddress from) {
+        Iterator<Partial> it = peer.pending.values().iterator();
+
+        while ((peer.pending.size() > MAX_PENDING_MESSAGES || peer.pendingBytes > MAX_PENDING_BYTES) && it.hasNext()) {
+            peer.discard(it, it.next());
+
+            LOG.warn("Incomplete message from {} discarded, too many pending fragments.", from);
+        }
+    }
+
+    private void discardStale() {
+        long now = now();
+
+        peers.forEach((address, peer) -> {
+            synchronized (peer) {
+                Iterator<Partial> it = peer.pending.values().iterator();
+
+                while (it.hasNext()) {
+                    Partial partial = it.next();
+
+                    if (now - partial.created < REASSEMBLY_TIMEOUT_MILLIS) {
+                        // In arrival order, the rest are newer.
+                        break;
+                    }
+
+                    peer.discard(it, partial);
+
+                    LOG.warn("Incomplete message from {} timed out, {} of {} fragments received.",
+                                address, partial.received, partial.parts.length);
+                }
+            }
+        });
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Stops the timer.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        clear();
+    }
+}
@@ -0,0 +1,490 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-destination outbound queues, with send pacing and AIMD rate adaptation.
+ *
+ * <p>Every destination has its own queues and sending rate. A short burst is sent at once, further
+ * messages are spread out according to the rate, so that a large broadcast doesn't overrun the
+ * socket buffers of clients.</p>
+ *
+ * <p>Each destination has two lanes: The control lane (logoff, key errors etc.) is always served
+ * first, so it never waits behind a backlog of chat. The chat lane drops its oldest messages when
+ * it's full, and the messages queued longer than the TTL, since a stale chat line is worth less than
+ * the bandwidth to catch up.</p>
+ *
+ * <p>When the lower layer has too many messages waiting ({@link QueueFullException}), a control
+ * message is held back at the head of its lane and tried again later, a chat message is dropped.</p>
+ *
+ * <p>The rate is adapted by the feedback from the reliable delivery layer: It increases additively
+ * while frames are acknowledged, and is halved (at most once per {@link #DECREASE_HOLD_MILLIS})
+ * when a loss is detected. Destinations without reliable delivery keep the initial rate.</p>
+ *
+ * @author Andy Cheung
+ * @see ReliableTransport#setFeedback(TransportFeedback)
+ */
+public class PacedSender implements DatagramSender, TransportFeedback, AutoCloseable {
+    /**
+     * Number of messages that can be sent back-to-back to an idle destination.
+     */
+    public static final int BURST = 8;
+
+    /**
+     * Maximum number of control messages waiting for one destination. The oldest one is dropped when exceeded.
+     */
+    public static final int MAX_CONTROL_QUEUED = 256;
+
+    /**
+     * Maximum number of chat messages waiting for one destination. The oldest one is dropped when exceeded.
+     */
+    public static final int MAX_CHAT_QUEUED = 1024;
+
+    /**
+     * Priority lane of outbound messages.
+     */
+    public enum Lane {
+        /**
+         * Control messages, served first.
+         */
+        CONTROL,
+
+        /**
+         * Chatting messages, bounded by depth and TTL.
+         */
+        CHAT
+    }
+
+    /**
+     * Rate increment (messages per second) for every second worth of acknowledged frames.
+     */
+    static final double ADDITIVE_INCREASE = 50;
+
+    static final double MULTIPLICATIVE_DECREASE = 0.5;
+
+    /**
+     * Losses within this period after a decrease are considered as the same congestion event.
+     */
+    static final long DECREASE_HOLD_MILLIS = 200;
+
+    static final double MIN_RATE = 50;
+
+    /**
+     * Time to wait before a control message rejected by the lower layer is tried again, in milliseconds.
+     */
+    static final long HOLD_BACK_MILLIS = 20;
+
+    private static final Logger LOG = LoggerFactory.getLogger(PacedSender.class);
+
+    private final DatagramSender lower;
+    private final double initialRate;
+    private final double maxRate;
+    private final long chatTtlNanos;
+
+    private final Map<SocketAddress, Destination> destinations = new ConcurrentHashMap<>();
+    private final DelayQueue<Destination> schedule = new DelayQueue<>();
+    private final Thread senderThread;
+
+    private volatile boolean closed;
+
+    /**
+     * Message waiting in a lane.
+     */
+    private static final class Queued {
+        final byte[] datagram;
+        final long enqueued;
+        final Lane lane;
+
+        Queued(byte[] datagram, long enqueued, Lane lane) {
+            this.datagram = datagram;
+            this.enqueued = enqueued;
+            this.lane = lane;
+        }
+    }
+
+    /**
+     * Queues and rate of one destination.
+     */
+    private static final class Destination implements Delayed {
+        final SocketAddress address;
+        final Deque<Queued> control = new ArrayDeque<>();
+        final Deque<Queued> chat = new ArrayDeque<>();
+
+        double rate;
+
+        /**
+         * Theoretical time of next sending, in nanoseconds (GCRA).
+         */
+        long theoreticalTime = System.nanoTime();
+
+        /**
+         * Time that the destination is eligible for sending, valid while it is in the schedule.
+         */
+        long eligibleTime;
+
+        long lastDecrease = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(DECREASE_HOLD_MILLIS);
+        boolean scheduled;
+        int dropped;
+        int expired;
+
+        Destination(SocketAddress address, double rate) {
+            this.address = address;
+            this.rate = rate;
+        }
+
+        long intervalNanos() {
+            return (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+
+        boolean isEmpty() {
+            return control.isEmpty() && chat.isEmpty();
+        }
+
+        void clear() {
+            control.clear();
+            chat.clear();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(eligibleTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(eligibleTime, ((Destination) o).eligibleTime);
+        }
+    }
+
+    /**
+     * Constructs the sender, and starts the sending thread.
+     *
+     * @param lower         The layer that messages are handed to.
+     * @param initialRate   Initial sending rate of every destination, in messages per second.
+     *                      {@link Double#POSITIVE_INFINITY} disables pacing, only the lanes are kept.
+     * @param maxRate       Maximum sending rate of every destination, in messages per second.
+     * @param chatTtlMillis Time after which a queued chat message is dropped, in milliseconds.
+     * @param name          Name of sending thread.
+     */
+    public PacedSender(DatagramSender lower, double initialRate, double maxRate, long chatTtlMillis, String name) {
+        this.lower = lower;
+        this.initialRate = Math.max(MIN_RATE, initialRate);
+        this.maxRate = Math.max(this.initialRate, maxRate);
+        this.chatTtlNanos = TimeUnit.MILLISECONDS.toNanos(chatTtlMillis);
+
+        senderThread = new Thread(this::sendLoop, name);
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    /**
+     * Queues a chat message. It is sent at once if the destination is idle.
+     *
+     * @param datagram The message.
+     * @param target   The remote address.
+     */
+    @Override
+    public void send(byte[] datagram, SocketAddress target) {
+        send(datagram, target, Lane.CHAT);
+    }
+
+    /**
+     * Queues a control message. It is sent at once if the destination is idle.
+     *
+     * @param datagram The message.
+     * @param target   The remote address.
+     */
+    @Override
+    public void sendControl(byte[] datagram, SocketAddress target) {
+        send(datagram, target, Lane.CONTROL);
+    }
+
+    /**
+     * Queues a message in the lane. It is sent at once if the destination is idle.
+     *
+     * @param datagram The message.
+     * @param target   The remote address.
+     * @param lane     The lane.
+     */
+    public void send(byte[] datagram, SocketAddress target, Lane lane) {
+        Destination d = destinations.computeIfAbsent(target, k -> new Destination(k, initialRate));
+
+        synchronized (d) {
+            Deque<Queued> queue = lane == Lane.CONTROL ? d.control : d.chat;
+            int limit = lane == Lane.CONTROL ? MAX_CONTROL_QUEUED : MAX_CHAT_QUEUED;
+
+            if (queue.size() >= limit) {
+                queue.pollFirst();
+                d.dropped++;
+            }
+
+            queue.addLast(new Queued(datagram, System.nanoTime(), lane));
+
+            if (!d.scheduled) {
+                d.scheduled = true;
+                d.eligibleTime = d.theoreticalTime - BURST * d.intervalNanos();
+                schedule.offer(d);
+            }
+        }
+    }
+
+    private void sendLoop() {
+        // Not interrupted on close, since an interrupted channel operation would close the socket.
+        while (!closed) {
+            Destination d;
+
+            try {
+                d = schedule.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (d == null) {
+                continue;
+            }
+
+            Queued next;
+            int dropped;
+            int expired;
+
+            synchronized (d) {
+                next = next(d);
+                dropped = d.dropped;
+                expired = d.expired;
+                d.dropped = 0;
+                d.expired = 0;
+
+                long interval = d.intervalNanos();
+                d.theoreticalTime = Math.max(d.theoreticalTime, System.nanoTime()) + interval;
+
+                if (d.isEmpty()) {
+                    d.scheduled = false;
+                } else {
+                    d.eligibleTime = d.theoreticalTime - BURST * interval;
+                    schedule.offer(d);
+                }
+            }
+
+            if (dropped > 0) {
+                LOG.warn("{} message(s) to {} dropped, the destination can't keep up.", dropped, d.address);
+            }
+
+            if (expired > 0) {
+                LOG.debug("{} stale chat message(s) to {} dropped.", expired, d.address);
+            }
+
+            if (next == null) {
+                continue;
+            }
+
+            try {
+                if (next.lane == Lane.CONTROL) {
+                    lower.sendControl(next.datagram, d.address);
+                } else {
+                    lower.send(next.datagram, d.address);
+                }
+            } catch (QueueFullException e) {
+                if (next.lane == Lane.CONTROL) {
+                    holdBack(d, next);
+                } else {
+                    // Reported with the other drops of the destination.
+                    synchronized (d) {
+                        d.dropped++;
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Error in sending message.", e);
+            }
+        }
+    }
+
+    /**
+     * Puts a control message rejected by the lower layer back to the head of its lane,
+     * and delays the destination for a while.
+     */
+    private void holdBack(Destination d, Queued q) {
+        synchronized (d) {
+            d.control.addFirst(q);
+            d.theoreticalTime = Math.max(d.theoreticalTime, System.nanoTime())
+                                    + TimeUnit.MILLISECONDS.toNanos(HOLD_BACK_MILLIS);
+
+            if (!d.scheduled) {
+                d.scheduled = true;
+                d.eligibleTime = d.theoreticalTime;
+                schedule.offer(d);
+            }
+        }
+    }
+
+    /**
+     * Takes the next message: control lane first, then the chat lane skipping the stale messages.
+     */
+    private Queued next(Destination d) {
+        Queued q = d.control.pollFirst();
+
+        if (q != null) {
+            return q;
+        }
+
+        long now = System.nanoTime();
+
+        while ((q = d.chat.pollFirst()) != null) {
+            if (now - q.enqueued <= chatTtlNanos) {
+                return q;
+            }
+
+            d.expired++;
+        }
+
+        return null;
+    }
+
+    @Override
+    public void onAcknowledged(SocketAddress peer, int count) {
+        Destination d = destinations.get(peer);
+
+        if (d == null) {
+            return;
+        }
+
+        synchronized (d) {
+            d.rate = Math.min(maxRate, d.rate + ADDITIVE_INCREASE * count / d.rate);
+        }
+    }
+
+    @Override
+    public void onLost(SocketAddress peer) {
+        Destination d = destinations.get(peer);
+
+        if (d == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+
+        synchronized (d) {
+            if (now - d.lastDecrease < TimeUnit.MILLISECONDS.toNanos(DECREASE_HOLD_MILLIS)) {
+                return;
+            }
+
+            d.lastDecrease = now;
+            d.rate = Math.max(MIN_RATE, d.rate * MULTIPLICATIVE_DECREASE);
+        }
+
+        LOG.debug("Congestion to {}, sending rate decreased.", peer);
+    }
+
+    /**
+     * Obtain the current sending rate to the destination.
+     *
+     * @param target The remote address.
+     * @return Sending rate in messages per second.
+     */
+    public double getRate(SocketAddress target) {
+        Destination d = destinations.get(target);
+
+        if (d == null) {
+            return initialRate;
+        }
+
+        synchronized (d) {
+            return d.rate;
+        }
+    }
+
+    /**
+     * Waits until the messages queued for the destination are handed to the lower layer.
+     *
+     * @param target        The remote address.
+     * @param timeoutMillis Maximum time to wait.
+     * @return True if nothing is queued.
+     */
+    public boolean awaitSent(SocketAddress target, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        while (true) {
+            Destination d = destinations.get(target);
+
+            if (d == null) {
+                return true;
+            }
+
+            synchronized (d) {
+                if (!d.scheduled) {
+                    return true;
+                }
+            }
+
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Drops the queue and rate of the destination.
+     *
+     * @param target The remote address.
+     */
+    public void remove(SocketAddress target) {
+        Destination d = destinations.remove(target);
+
+        if (d != null) {
+            synchronized (d) {
+                d.clear();
+            }
+        }
+    }
+
+    /**
+     * Drops all destinations.
+     */
+    public void clear() {
+        destinations.keySet().forEach(this::remove);
+    }
+
+    /**
+     * Stops the sending thread. Queued messages are discarded.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        clear();
+    }
+}
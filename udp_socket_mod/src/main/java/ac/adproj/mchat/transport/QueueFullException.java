@@ -0,0 +1,44 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * Thrown when a payload can't be queued for the peer, since too many payloads are waiting already.
+ *
+ * <p>Nothing queued before is dropped for it. The caller decides whether to hold the payload back
+ * and try again later (e.g. control messages), or to drop it (e.g. chat).</p>
+ *
+ * @author Andy Cheung
+ * @see ReliableTransport#send(byte[], SocketAddress)
+ */
+public class QueueFullException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param peer   The peer address.
+     * @param queued Number of payloads waiting for the peer.
+     */
+    public QueueFullException(SocketAddress peer, int queued) {
+        super(String.format("%d payload(s) are waiting for %s already.", queued, peer));
+    }
+}
@@ -0,0 +1,479 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static ac.adproj.mchat.transport.TransportFrames.*;
+
+/**
+ * State of reliable delivery between this endpoint and one peer.
+ *
+ * <p>Send side: Every payload gets a sequence number when it enters the window, and is kept until
+ * it is acknowledged. At most {@link #RECEIVE_WINDOW} sequence numbers are in flight, later payloads
+ * wait in two queues: control payloads are released first, so a logoff never waits behind a backlog
+ * of chat, only for a free slot in the window.
+ * Unacknowledged frames are retransmitted when the retransmission timeout (estimated from
+ * round-trip time, RFC 6298 style) expires, or as soon as three later frames are selectively
+ * acknowledged (fast retransmit).</p>
+ *
+ * <p>Receive side: Frames are delivered in sequence order. Frames arriving early are kept in a
+ * bounded window until the gap is filled, duplicates are dropped.</p>
+ *
+ * <p>A frame retransmitted too many times is given up. Every DATA frame carries the lowest sequence
+ * number the sender still tracks, so the receiver skips the given up frames instead of waiting forever.</p>
+ *
+ * <p>Sequence numbers start from zero for every session and are not expected to wrap.</p>
+ *
+ * @author Andy Cheung
+ * @see ReliableTransport
+ */
+final class ReliableSession {
+    /**
+     * Number of sequence numbers in flight, which is also the number of frames the receiver buffers.
+     */
+    static final int RECEIVE_WINDOW = 256;
+
+    /**
+     * Maximum number of payloads waiting for the window. Further payloads are rejected,
+     * the queued ones are never dropped for them.
+     */
+    static final int MAX_QUEUED = 1024;
+
+    /**
+     * Maximum number of retransmissions of one frame.
+     */
+    static final int MAX_RETRIES = 8;
+
+    /**
+     * Maximum number of selectively acknowledged sequence numbers in one ACK frame.
+     */
+    static final int MAX_SACK_COUNT = 32;
+
+    /**
+     * Number of later frames acknowledged that triggers fast retransmission.
+     */
+    static final int FAST_RETRANSMIT_THRESHOLD = 3;
+
+    static final long INITIAL_RTO_MILLIS = 300;
+    static final long MIN_RTO_MILLIS = 100;
+    static final long MAX_RTO_MILLIS = 3000;
+
+    static final int DATA_HEADER_SIZE = FRAME_HEADER_SIZE + 2 * Integer.BYTES;
+
+    /**
+     * Payload with sequence number, queued or sent but not acknowledged yet.
+     */
+    private static final class Outstanding {
+        final int seq;
+        final byte[] payload;
+        long firstSent;
+        long lastSent;
+        int retries;
+        int laterAcked;
+
+        Outstanding(int seq, byte[] payload) {
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+
+    private final SocketAddress peer;
+
+    /**
+     * Whether the payloads to the peer are sent reliably.
+     */
+    private boolean outbound;
+
+    private int nextSendSeq;
+    private final Deque<byte[]> controlQueued = new ArrayDeque<>();
+    private final Deque<byte[]> queued = new ArrayDeque<>();
+    private final TreeMap<Integer, Outstanding> unacked = new TreeMap<>();
+
+    private long smoothedRtt = -1;
+    private long rttVariance;
+    private long rto = INITIAL_RTO_MILLIS;
+
+    private int nextExpected;
+    private final TreeMap<Integer, byte[]> outOfOrder = new TreeMap<>();
+    private boolean ackPending;
+
+    private long givenUp;
+    private int acknowledgedCount;
+    private int lossCount;
+
+    ReliableSession(SocketAddress peer, boolean outbound) {
+        this.peer = peer;
+        this.outbound = outbound;
+    }
+
+    synchronized boolean isOutbound() {
+        return outbound;
+    }
+
+    synchronized void setOutbound(boolean outbound) {
+        this.outbound = outbound;
+    }
+
+    /**
+     * Queues the payload, and keeps it until acknowledged.
+     *
+     * @param payload The payload.
+     * @param now     Current time in milliseconds.
+     * @param control Whether it is a control payload, which is released before the chat payloads
+     *                and never rejected.
+     * @return DATA frames that can be sent now, may be empty if the window is full.
+     * @throws QueueFullException If {@link #MAX_QUEUED} chat payloads are waiting, the chat payload is rejected.
+     */
+    synchronized List<byte[]> send(byte[] payload, long now, boolean control) throws QueueFullException {
+        if (control) {
+            // Control payloads are rare, they are never refused.
+            controlQueued.addLast(payload);
+        } else if (queued.size() >= MAX_QUEUED) {
+            throw new QueueFullException(peer, queued.size());
+        } else {
+            queued.addLast(payload);
+        }
+
+        return release(now);
+    }
+
+    /**
+     * Assigns sequence numbers to the queued payloads that fit in the window, control payloads first.
+     */
+    private List<byte[]> release(long now) {
+        List<byte[]> frames = new ArrayList<>();
+
+        while (nextSendSeq - floor() < RECEIVE_WINDOW) {
+            byte[] payload = controlQueued.isEmpty() ? queued.pollFirst() : controlQueued.pollFirst();
+
+            if (payload == null) {
+                break;
+            }
+
+            Outstanding o = new Outstanding(nextSendSeq++, payload);
+
+            o.firstSent = now;
+            o.lastSent = now;
+            unacked.put(o.seq, o);
+
+            frames.add(frameOf(o));
+        }
+
+        return frames;
+    }
+
+    /**
+     * Obtain the lowest sequence number that is neither acknowledged nor given up.
+     */
+    private int floor() {
+        return unacked.isEmpty() ? nextSendSeq : unacked.firstKey();
+    }
+
+    private byte[] frameOf(Outstanding o) {
+        return ByteBuffer.allocate(DATA_HEADER_SIZE + o.payload.length)
+                    .put(MAGIC).put(TYPE_RELIABLE_DATA).putInt(o.seq).putInt(floor()).put(o.payload).array();
+    }
+
+    /**
+     * Handles a DATA frame.
+     *
+     * @param frame The DATA frame.
+     * @return Payloads that can be delivered now, in order.
+     */
+    synchronized List<byte[]> onData(byte[] frame) {
+        if (frame.length < DATA_HEADER_SIZE) {
+            return Collections.emptyList();
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(frame, FRAME_HEADER_SIZE, frame.length - FRAME_HEADER_SIZE);
+        int seq = bb.getInt();
+        int senderFloor = bb.getInt();
+
+        List<byte[]> deliverable = new ArrayList<>();
+
+        if (senderFloor - nextExpected > 0) {
+            // The sender gave up the frames below its floor, skip them.
+            Iterator<byte[]> it = outOfOrder.headMap(senderFloor).values().iterator();
+
+            while (it.hasNext()) {
+                deliverable.add(it.next());
+                it.remove();
+            }
+
+            nextExpected = senderFloor;
+            drainInOrder(deliverable);
+        }
+
+        int offset = seq - nextExpected;
+
+        if (offset >= RECEIVE_WINDOW) {
+            // Too far ahead, the peer will retransmit it later.
+            return deliverable;
+        }
+
+        // Acknowledge duplicates too, the previous ACK may be lost.
+        ackPending = true;
+
+        if (offset < 0 || outOfOrder.containsKey(seq)) {
+            return deliverable;
+        }
+
+        byte[] payload = new byte[bb.remaining()];
+        bb.get(payload);
+
+        if (offset > 0) {
+            outOfOrder.put(seq, payload);
+            return deliverable;
+        }
+
+        deliverable.add(payload);
+        nextExpected++;
+        drainInOrder(deliverable);
+
+        return deliverable;
+    }
+
+    private void drainInOrder(List<byte[]> deliverable) {
+        byte[] next;
+
+        while ((next = outOfOrder.remove(nextExpected)) != null) {
+            deliverable.add(next);
+            nextExpected++;
+        }
+    }
+
+    /**
+     * Determines whether frames after a gap are buffered, in which case the ACK shouldn't be delayed.
+     *
+     * @return True if there is a gap.
+     */
+    synchronized boolean hasGap() {
+        return !outOfOrder.isEmpty();
+    }
+
+    /**
+     * Builds an ACK frame if any DATA frame is received since last ACK.
+     *
+     * @return The ACK frame, or null if nothing to acknowledge.
+     */
+    synchronized byte[] takeAck() {
+        if (!ackPending) {
+            return null;
+        }
+
+        ackPending = false;
+
+        int sackCount = Math.min(outOfOrder.size(), MAX_SACK_COUNT);
+        ByteBuffer bb = ByteBuffer.allocate(FRAME_HEADER_SIZE + Integer.BYTES + 1 + sackCount * Integer.BYTES);
+
+        bb.put(MAGIC).put(TYPE_RELIABLE_ACK).putInt(nextExpected).put((byte) sackCount);
+
+        Iterator<Integer> it = outOfOrder.keySet().iterator();
+
+        for (int i = 0; i < sackCount; i++) {
+            bb.putInt(it.next());
+        }
+
+        return bb.array();
+    }
+
+    /**
+     * Handles an ACK frame.
+     *
+     * @param frame The ACK frame.
+     * @param now   Current time in milliseconds.
+     * @return Frames to send immediately: fast retransmissions, and the queued ones fitting in the window.
+     */
+    synchronized List<byte[]> onAck(byte[] frame, long now) {
+        if (frame.length < FRAME_HEADER_SIZE + Integer.BYTES + 1) {
+            return Collections.emptyList();
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(frame, FRAME_HEADER_SIZE, frame.length - FRAME_HEADER_SIZE);
+        int cumulative = bb.getInt();
+        int sackCount = Math.min(bb.get() & 0xFF, bb.remaining() / Integer.BYTES);
+
+        Iterator<Map.Entry<Integer, Outstanding>> it = unacked.headMap(cumulative).entrySet().iterator();
+
+        while (it.hasNext()) {
+            acknowledged(it.next().getValue(), now);
+            it.remove();
+        }
+
+        int highestSacked = Integer.MIN_VALUE;
+
+        for (int i = 0; i < sackCount; i++) {
+            int seq = bb.getInt();
+            Outstanding o = unacked.remove(seq);
+
+            if (o != null) {
+                acknowledged(o, now);
+            }
+
+            highestSacked = Math.max(highestSacked, seq);
+        }
+
+        List<byte[]> frames = new ArrayList<>();
+
+        if (highestSacked != Integer.MIN_VALUE) {
+            for (Outstanding o : unacked.headMap(highestSacked).values()) {
+                if (++o.laterAcked == FAST_RETRANSMIT_THRESHOLD) {
+                    lossCount++;
+                    o.retries++;
+                    o.lastSent = now;
+                    frames.add(frameOf(o));
+                }
+            }
+        }
+
+        frames.addAll(release(now));
+
+        return frames;
+    }
+
+    private void acknowledged(Outstanding o, long now) {
+        acknowledgedCount++;
+
+        if (o.retries == 0) {
+            // Karn's algorithm: only samples from frames that were never retransmitted.
+            updateRto(now - o.firstSent);
+        }
+    }
+
+    private void updateRto(long sample) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = sample;
+            rttVariance = sample / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - sample)) / 4;
+            smoothedRtt = (7 * smoothedRtt + sample) / 8;
+        }
+
+        rto = Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, smoothedRtt + 4 * rttVariance));
+    }
+
+    /**
+     * Collects the frames whose retransmission timer expired, and gives up the frames
+     * retransmitted too many times.
+     *
+     * @param now Current time in milliseconds.
+     * @return Frames to retransmit, and the queued ones fitting in the window.
+     */
+    synchronized List<byte[]> collectRetransmissions(long now) {
+        if (unacked.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<byte[]> frames = new ArrayList<>();
+        List<Outstanding> retransmissions = new ArrayList<>();
+        Iterator<Outstanding> it = unacked.values().iterator();
+
+        while (it.hasNext()) {
+            Outstanding o = it.next();
+
+            // Exponential backoff.
+            long timeout = Math.min(MAX_RTO_MILLIS, rto << Math.min(o.retries, 5));
+
+            if (now - o.lastSent < timeout) {
+                continue;
+            }
+
+            lossCount++;
+
+            if (o.retries >= MAX_RETRIES) {
+                it.remove();
+                givenUp++;
+                continue;
+            }
+
+            o.retries++;
+            o.lastSent = now;
+            retransmissions.add(o);
+        }
+
+        // Built after giving up, so that the frames carry the new floor.
+        for (Outstanding o : retransmissions) {
+            frames.add(frameOf(o));
+        }
+
+        frames.addAll(release(now));
+
+        return frames;
+    }
+
+    /**
+     * Determines whether all frames sent are acknowledged (or given up).
+     *
+     * @return True if nothing is outstanding.
+     */
+    synchronized boolean isIdle() {
+        return unacked.isEmpty() && controlQueued.isEmpty() && queued.isEmpty();
+    }
+
+    /**
+     * Obtain and reset the number of frames given up.
+     *
+     * @return Number of frames given up since last invocation.
+     */
+    synchronized long takeGivenUpCount() {
+        long count = givenUp;
+        givenUp = 0;
+
+        return count;
+    }
+
+    /**
+     * Obtain and reset the number of frames acknowledged.
+     *
+     * @return Number of frames acknowledged since last invocation.
+     */
+    synchronized int takeAcknowledgedCount() {
+        int count = acknowledgedCount;
+        acknowledgedCount = 0;
+
+        return count;
+    }
+
+    /**
+     * Obtain and reset the number of frames considered lost (retransmitted or given up).
+     *
+     * @return Number of losses since last invocation.
+     */
+    synchronized int takeLossCount() {
+        int count = lossCount;
+        lossCount = 0;
+
+        return count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReliableSession [outbound=" + outbound + ", nextSendSeq=" + nextSendSeq + ", controlQueued=" + controlQueued.size() + ", queued=" + queued.size() + ", unacked=" + unacked.size()
+                + ", nextExpected=" + nextExpected + ", buffered=" + outOfOrder.size() + ", rto=" + rto + "]";
+    }
+}
@@ -0,0 +1,380 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static ac.adproj.mchat.transport.TransportFrames.*;
+
+/**
+ * Optional reliable delivery layer.
+ *
+ * <p>Reliable delivery is negotiated per peer when the user registers. Payloads to peers without
+ * a reliable session, and datagrams that are not transport frames, pass through unchanged, so
+ * that endpoints without this layer are still understood.</p>
+ *
+ * <p>Each peer has its own sequence space, so a lost datagram only holds back later messages
+ * from the same peer, never the others. Control payloads ({@link #sendControl(byte[], SocketAddress)})
+ * take the next free sequence numbers before any queued chat payload.</p>
+ *
+ * @author Andy Cheung
+ * @see ReliableSession
+ */
+public class ReliableTransport implements DatagramSender, AutoCloseable {
+    /**
+     * Interval of retransmission timer and delayed acknowledgements, in milliseconds.
+     */
+    public static final long TICK_MILLIS = 20;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReliableTransport.class);
+
+    private final DatagramSender lower;
+    private final Map<SocketAddress, ReliableSession> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private volatile TransportFeedback feedback;
+
+    private final LongAdder givenUp = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Constructs the layer, and starts the retransmission timer.
+     *
+     * @param lower The layer that datagrams are handed to.
+     * @param name  Name of timer thread.
+     */
+    public ReliableTransport(DatagramSender lower, String name) {
+        this.lower = lower;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+
+            return t;
+        });
+
+        timer.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the receiver of delivery feedback.
+     *
+     * @param feedback The feedback receiver.
+     */
+    public void setFeedback(TransportFeedback feedback) {
+        this.feedback = feedback;
+    }
+
+    /**
+     * Accepts reliable frames from the peer. Outgoing payloads are still sent as-is,
+     * until the peer is known to support reliable delivery.
+     *
+     * @param peer The peer address.
+     */
+    public void accept(SocketAddress peer) {
+        sessions.computeIfAbsent(peer, k -> new ReliableSession(k, false));
+    }
+
+    /**
+     * Enables reliable delivery in both directions.
+     *
+     * @param peer The peer address.
+     */
+    public void enable(SocketAddress peer) {
+        sessions.computeIfAbsent(peer, k -> new ReliableSession(k, true)).setOutbound(true);
+    }
+
+    /**
+     * Disables reliable delivery, and drops the session state. The pending acknowledgement is sent before that.
+     *
+     * @param peer The peer address.
+     */
+    public void disable(SocketAddress peer) {
+        ReliableSession session = sessions.remove(peer);
+
+        if (session != null) {
+            sendAck(session, peer);
+        }
+    }
+
+    /**
+     * Determines whether payloads to the peer are sent reliably.
+     *
+     * @param peer The peer address.
+     * @return True if reliable delivery is enabled.
+     */
+    public boolean isEnabled(SocketAddress peer) {
+        ReliableSession session = sessions.get(peer);
+
+        return session != null && session.isOutbound();
+    }
+
+    /**
+     * Drops all sessions.
+     */
+    public void clear() {
+        sessions.keySet().forEach(this::disable);
+    }
+
+    /**
+     * Sends a payload.
+     *
+     * @param payload The payload.
+     * @param target  The peer address.
+     * @throws QueueFullException If too many payloads are waiting for the peer, the payload is not sent.
+     * @throws IOException        If I/O error occurs.
+     */
+    @Override
+    public void send(byte[] payload, SocketAddress target) throws IOException {
+        send(payload, target, false);
+    }
+
+    /**
+     * Sends a control payload, which never waits behind the queued chat payloads and is never rejected.
+     *
+     * @param payload The payload.
+     * @param target  The peer address.
+     * @throws IOException If I/O error occurs.
+     */
+    @Override
+    public void sendControl(byte[] payload, SocketAddress target) throws IOException {
+        send(payload, target, true);
+    }
+
+    private void send(byte[] payload, SocketAddress target, boolean control) throws IOException {
+        ReliableSession session = sessions.get(target);
+
+        if (session == null || !session.isOutbound()) {
+            lower.send(payload, target);
+            return;
+        }
+
+        List<byte[]> frames;
+
+        try {
+            frames = session.send(payload, now(), control);
+        } catch (QueueFullException e) {
+            rejected.increment();
+            throw e;
+        }
+
+        for (byte[] frame : frames) {
+            lower.send(frame, target);
+        }
+    }
+
+    /**
+     * Handles a received datagram.
+     *
+     * @param datagram The datagram.
+     * @param from     The peer address.
+     * @param deliver  Receiver of payloads, invoked in order in the current thread.
+     * @throws IOException If I/O error occurs when sending acknowledgements or retransmissions.
+     */
+    public void receive(byte[] datagram, SocketAddress from, Consumer<byte[]> deliver) throws IOException {
+        if (!isTransportFrame(datagram)) {
+            deliver.accept(datagram);
+            return;
+        }
+
+        ReliableSession session = sessions.get(from);
+
+        if (session == null) {
+            // Not negotiated, or already logged off.
+            return;
+        }
+
+        switch (typeOf(datagram)) {
+            case TYPE_RELIABLE_DATA:
+                // The peer sends reliably, so it understands our frames too.
+                session.setOutbound(true);
+
+                List<byte[]> payloads = session.onData(datagram);
+
+                if (session.hasGap()) {
+                    // Let the sender retransmit as soon as possible.
+                    sendAck(session, from);
+                }
+
+                payloads.forEach(deliver);
+                break;
+
+            case TYPE_RELIABLE_ACK:
+                List<byte[]> frames = session.onAck(datagram, now());
+
+                reportFeedback(session, from);
+
+                for (byte[] frame : frames) {
+                    lower.send(frame, from);
+                }
+
+                break;
+
+            default:
+                LOG.debug("Unknown transport frame type {} from {}.", typeOf(datagram), from);
+                break;
+        }
+    }
+
+    /**
+     * Obtain where the payload starts in a received datagram, so that it can be classified
+     * (e.g. for admission control) before it's acknowledged.
+     *
+     * @param datagram The datagram.
+     * @return Size of header for reliable data, 0 for datagrams that are not transport frames,
+     *         -1 for other transport frames.
+     */
+    public static int payloadOffset(byte[] datagram) {
+        if (!isTransportFrame(datagram)) {
+            return 0;
+        }
+
+        return typeOf(datagram) == TYPE_RELIABLE_DATA && datagram.length >= ReliableSession.DATA_HEADER_SIZE
+                ? ReliableSession.DATA_HEADER_SIZE : -1;
+    }
+
+    /**
+     * Waits until all payloads sent to the peer are acknowledged, e.g. before closing the socket.
+     *
+     * @param peer          The peer address.
+     * @param timeoutMillis Maximum time to wait.
+     * @return True if all payloads are acknowledged.
+     */
+    public boolean awaitAcknowledged(SocketAddress peer, long timeoutMillis) {
+        long deadline = now() + timeoutMillis;
+
+        while (true) {
+            ReliableSession session = sessions.get(peer);
+
+            if (session == null || session.isIdle()) {
+                return true;
+            }
+
+            if (now() >= deadline) {
+                return false;
+            }
+
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private void tick() {
+        long now = now();
+
+        sessions.forEach((peer, session) -> {
+            sendAck(session, peer);
+
+            try {
+                List<byte[]> frames = session.collectRetransmissions(now);
+
+                reportFeedback(session, peer);
+
+                for (byte[] frame : frames) {
+                    lower.send(frame, peer);
+                }
+            } catch (IOException e) {
+                LOG.debug("Failed to retransmit to {}.", peer, e);
+            }
+
+            long count = session.takeGivenUpCount();
+
+            if (count > 0) {
+                givenUp.add(count);
+                LOG.warn("{} message(s) to {} were not acknowledged, given up.", count, peer);
+            }
+        });
+    }
+
+    /**
+     * Obtain the number of payloads given up after too many retransmissions, since the layer was constructed.
+     *
+     * @return The count.
+     */
+    public long getGivenUpCount() {
+        return givenUp.sum();
+    }
+
+    /**
+     * Obtain the number of payloads rejected since too many payloads were waiting for the peer.
+     *
+     * @return The count.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    private void reportFeedback(ReliableSession session, SocketAddress peer) {
+        int acknowledged = session.takeAcknowledgedCount();
+        int lost = session.takeLossCount();
+        TransportFeedback f = feedback;
+
+        if (f == null) {
+            return;
+        }
+
+        if (lost > 0) {
+            f.onLost(peer);
+        }
+
+        if (acknowledged > 0) {
+            f.onAcknowledged(peer, acknowledged);
+        }
+    }
+
+    private void sendAck(ReliableSession session, SocketAddress peer) {
+        byte[] ack = session.takeAck();
+
+        if (ack == null) {
+            return;
+        }
+
+        try {
+            lower.send(ack, peer);
+        } catch (IOException e) {
+            LOG.debug("Failed to acknowledge {}.", peer, e);
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Stops the retransmission timer.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        sessions.clear();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import java.net.SocketAddress;
+
+/**
+ * Receives delivery feedback from the reliable delivery layer, e.g. for congestion control.
+ *
+ * @author Andy Cheung
+ * @see ReliableTransport#setFeedback(TransportFeedback)
+ */
+public interface TransportFeedback {
+    /**
+     * Invoked when frames to the peer are acknowledged.
+     *
+     * @param peer  The peer address.
+     * @param count Number of frames acknowledged.
+     */
+    void onAcknowledged(SocketAddress peer, int count);
+
+    /**
+     * Invoked when a frame to the peer is considered lost, and is retransmitted or given up.
+     *
+     * @param peer The peer address.
+     */
+    void onLost(SocketAddress peer);
+}
@@ -0,0 +1,114 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import ac.adproj.mchat.model.ProtocolStrings;
+
+/**
+ * Constants of transport frames.
+ *
+ * <p>A transport frame starts with {@link #MAGIC}, followed by one byte of frame type.
+ * Since 0xAC is never the first byte of an UTF-8 string, transport frames and plain
+ * protocol messages can share the same socket.</p>
+ *
+ * <pre>
+ * RELIABLE_DATA: MAGIC, type, sequence (int), lowest sequence still tracked by sender (int), payload
+ * RELIABLE_ACK:  MAGIC, type, next expected sequence (int), count (byte), count * received sequence (int)
+ * FRAGMENT:      MAGIC, type, message id (int), index (short), count (short), part of message
+ * BUNDLE:        MAGIC, type, (length (short), frame) ...
+ * FEC_DATA:      MAGIC, type, group (int), index in group (byte), datagram
+ * FEC_PARITY:    MAGIC, type, group (int), count (byte), XOR of lengths (short), XOR of datagrams
+ * </pre>
+ *
+ * @author Andy Cheung
+ */
+public final class TransportFrames {
+    private TransportFrames() {
+        throw new UnsupportedOperationException("No instance! ");
+    }
+
+    /**
+     * The first byte of every transport frame.
+     */
+    public static final byte MAGIC = (byte) 0xAC;
+
+    /**
+     * Frame type: Data with sequence number.
+     */
+    public static final byte TYPE_RELIABLE_DATA = 0x01;
+
+    /**
+     * Frame type: Cumulative and selective acknowledgement.
+     */
+    public static final byte TYPE_RELIABLE_ACK = 0x02;
+
+    /**
+     * Frame type: Part of a message larger than {@link ProtocolStrings#BUFFER_SIZE}.
+     */
+    public static final byte TYPE_FRAGMENT = 0x05;
+
+    /**
+     * Frame type: Several frames coalesced into one datagram.
+     */
+    public static final byte TYPE_BUNDLE = 0x06;
+
+    /**
+     * Frame type: Datagram protected by forward error correction.
+     */
+    public static final byte TYPE_FEC_DATA = 0x03;
+
+    /**
+     * Frame type: XOR parity of a group of FEC_DATA frames.
+     */
+    public static final byte TYPE_FEC_PARITY = 0x04;
+
+    /**
+     * Size of MAGIC and frame type.
+     */
+    public static final int FRAME_HEADER_SIZE = 2;
+
+    /**
+     * Room reserved for transport headers on top of the protocol payload.
+     */
+    public static final int HEADER_ROOM = 64;
+
+    /**
+     * Maximum size of datagram, which is used as the size of receiving buffers.
+     */
+    public static final int MAX_DATAGRAM_SIZE = ProtocolStrings.BUFFER_SIZE + HEADER_ROOM;
+
+    /**
+     * Determines whether the datagram is a transport frame.
+     *
+     * @param datagram The datagram.
+     * @return True if it is a transport frame.
+     */
+    public static boolean isTransportFrame(byte[] datagram) {
+        return datagram.length >= FRAME_HEADER_SIZE && datagram[0] == MAGIC;
+    }
+
+    /**
+     * Obtain the type of transport frame.
+     *
+     * @param frame The transport frame.
+     * @return Frame type.
+     */
+    public static byte typeOf(byte[] frame) {
+        return frame[1];
+    }
+}
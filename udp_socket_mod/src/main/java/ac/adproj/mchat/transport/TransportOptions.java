@@ -0,0 +1,336 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import ac.adproj.mchat.model.ProtocolStrings;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Options of transport layers, which are read from system properties.
+ *
+ * <p>Both client and server only use (offer or accept) the capabilities that are enabled here.</p>
+ *
+ * <ul>
+ *     <li>acmc.udp.reliable - Reliable delivery. (default: true)</li>
+ *     <li>acmc.udp.pacing - Per-destination send pacing of server. (default: true)</li>
+ *     <li>acmc.udp.pacing.initialRate - Initial sending rate, in messages per second. (default: 200)</li>
+ *     <li>acmc.udp.pacing.maxRate - Maximum sending rate, in messages per second. (default: 5000)</li>
+ *     <li>acmc.udp.queue.chatTtlMillis - Time after which a queued chat message is dropped. (default: 5000)</li>
+ *     <li>acmc.udp.frag - Fragmentation of large messages. (default: true)</li>
+ *     <li>acmc.udp.bundle - Coalescing of small frames. (default: true)</li>
+ *     <li>acmc.udp.bundle.delayMillis - Time to wait for more frames before sending a datagram. (default: 2)</li>
+ *     <li>acmc.udp.fec - Forward error correction of server datagrams. (default: false)</li>
+ *     <li>acmc.udp.fec.groupSize - Number of datagrams protected by one parity datagram. (default: 4)</li>
+ *     <li>acmc.udp.heartbeat - Client heartbeats and idle session expiry. (default: true)</li>
+ *     <li>acmc.udp.heartbeat.intervalMillis - Interval of client heartbeats. (default: 10000)</li>
+ *     <li>acmc.udp.heartbeat.timeoutMillis - Time without any datagram after which the server drops a client. (default: 35000)</li>
+ *     <li>acmc.udp.registerCookie - Server requires a stateless cookie before registering a user. (default: true)</li>
+ *     <li>acmc.udp.maxUsersPerHost - Users registered from one IP address (any port). (default: 16)</li>
+ *     <li>acmc.udp.rateLimit.datagrams - Datagrams per second accepted from one address by server, 0 to disable. (default: 400)</li>
+ *     <li>acmc.udp.rateLimit.datagramBurst - Burst of datagrams accepted from one address. (default: 800)</li>
+ *     <li>acmc.udp.rateLimit.chat - Chatting messages per second accepted from one address, 0 to disable. (default: 20)</li>
+ *     <li>acmc.udp.rateLimit.chatBurst - Burst of chatting messages accepted from one address. (default: 40)</li>
+ *     <li>acmc.udp.rateLimit.idleMillis - Time after which the state of a quiet address is dropped. (default: 60000)</li>
+ *     <li>acmc.udp.receiveBufferSize - Size of socket receiving buffer, in bytes. (default: 262144)</li>
+ *     <li>acmc.udp.statusIntervalMillis - Interval of server status reports (stages, drops), 0 to disable. (default: 60000)</li>
+ * </ul>
+ *
+ * @author Andy Cheung
+ */
+public final class TransportOptions {
+    private TransportOptions() {
+        throw new UnsupportedOperationException("No instance! ");
+    }
+
+    /**
+     * Whether reliable delivery is enabled.
+     *
+     * @return True if enabled.
+     */
+    public static boolean isReliableDeliveryEnabled() {
+        return Boolean.parseBoolean(System.getProperty("acmc.udp.reliable", "true"));
+    }
+
+    /**
+     * Whether per-destination send pacing is enabled.
+     *
+     * @return True if enabled.
+     */
+    public static boolean isPacingEnabled() {
+        return Boolean.parseBoolean(System.getProperty("acmc.udp.pacing", "true"));
+    }
+
+    /**
+     * Obtain the initial sending rate of pacing.
+     *
+     * @return Rate in messages per second.
+     */
+    public static double getPacingInitialRate() {
+        return Double.parseDouble(System.getProperty("acmc.udp.pacing.initialRate", "200"));
+    }
+
+    /**
+     * Obtain the maximum sending rate of pacing.
+     *
+     * @return Rate in messages per second.
+     */
+    public static double getPacingMaxRate() {
+        return Double.parseDouble(System.getProperty("acmc.udp.pacing.maxRate", "5000"));
+    }
+
+    /**
+     * Whether fragmentation of large messages is enabled.
+     *
+     * @return True if enabled.
+     */
+    public static boolean isFragmentationEnabled() {
+        return Boolean.parseBoolean(System.getProperty("acmc.udp.frag", "true"));
+    }
+
+    /**
+     * Whether coalescing of small frames is enabled.
+     *
+     * @return True if enabled.
+     */
+    public static boolean isBundlingEnabled() {
+        return Boolean.parseBoolean(System.getProperty("acmc.udp.bundle", "true"));
+    }
+
+    /**
+     * Obtain the time to wait for more frames before sending a coalesced datagram.
+     *
+     * @return Delay in milliseconds.
+     */
+    public static long getBundlingDelayMillis() {
+        return Long.getLong("acmc.udp.bundle.delayMillis", 2);
+    }
+
+    /**
+     * Whether forward error correction is enabled.
+     *
+     * @return True if enabled.
+     */
+    public static boolean isFecEnabled() {
+        return Boolean.parseBoolean(System.getProperty("acmc.udp.fec", "false"));
+    }
+
+    /**
+     * Obtain the number of datagrams protected by one parity datagram.
+     *
+     * @return Group size, between 2 and {@link FecTransport#MAX_GROUP_SIZE}.
+     */
+    public static int getFecGroupSize() {
+        return Math.max(2, Math.min(FecTransport.MAX_GROUP_SIZE, Integer.getInteger("acmc.udp.fec.groupSize", 4)));
+    }
+
+    /**
+     * Obtain the time after which a queued chat message is dropped.
+     *
+     * @return TTL in milliseconds.
+     */
+    public static long getChatTtlMillis() {
+        return Long.getLong("acmc.udp.queue.chatTtlMillis", 5000);
+    }
+
+    /**
+     * Whether heartbeats are enabled.
+     *
+     * @return True if enabled.
+     */
+    public static boolean isHeartbeatEnabled() {
+        return Boolean.parseBoolean(System.getProperty("acmc.udp.heartbeat", "true"));
+    }
+
+    /**
+     * Obtain the interval of client heartbeats.
+     *
+     * @return Interval in milliseconds.
+     */
+    public static long getHeartbeatIntervalMillis() {
+        return Math.max(100, Long.getLong("acmc.udp.heartbeat.intervalMillis", 10000));
+    }
+
+    /**
+     * Obtain the time without any datagram after which the server drops a client.
+     *
+     * @return Timeout in milliseconds.
+     */
+    public static long getHeartbeatTimeoutMillis() {
+        return Math.max(getHeartbeatIntervalMillis(), Long.getLong("acmc.udp.heartbeat.timeoutMillis", 35000));
+    }
+
+    /**
+     * Whether the server requires a registering cookie, which proves the client address is not spoofed.
+     *
+     * @return True if required.
+     */
+    public static boolean isRegistrationCookieRequired() {
+        return Boolean.parseBoolean(System.getProperty("acmc.udp.registerCookie", "true"));
+    }
+
+    /**
+     * Obtain the maximum number of users registered from one IP address.
+     *
+     * @return Number of users.
+     */
+    public static int getMaxUsersPerHost() {
+        return Math.max(1, Integer.getInteger("acmc.udp.maxUsersPerHost", 16));
+    }
+
+    /**
+     * Obtain the datagrams per second accepted from one address by server.
+     *
+     * @return The rate, 0 if unlimited.
+     */
+    public static double getDatagramRateLimit() {
+        return Math.max(0, Double.parseDouble(System.getProperty("acmc.udp.rateLimit.datagrams", "400")));
+    }
+
+    /**
+     * Obtain the burst of datagrams accepted from one address by server.
+     *
+     * @return Number of datagrams.
+     */
+    public static double getDatagramBurstLimit() {
+        return Math.max(1, Double.parseDouble(System.getProperty("acmc.udp.rateLimit.datagramBurst", "800")));
+    }
+
+    /**
+     * Obtain the chatting messages per second accepted from one address by server.
+     *
+     * @return The rate, 0 if unlimited.
+     */
+    public static double getChatRateLimit() {
+        return Math.max(0, Double.parseDouble(System.getProperty("acmc.udp.rateLimit.chat", "20")));
+    }
+
+    /**
+     * Obtain the burst of chatting messages accepted from one address by server.
+     *
+     * @return Number of messages.
+     */
+    public static double getChatBurstLimit() {
+        return Math.max(1, Double.parseDouble(System.getProperty("acmc.udp.rateLimit.chatBurst", "40")));
+    }
+
+    /**
+     * Obtain the time after which the rate limiting state of a quiet address is dropped.
+     *
+     * @return Time in milliseconds.
+     */
+    public static long getRateLimitIdleMillis() {
+        return Long.getLong("acmc.udp.rateLimit.idleMillis", 60000);
+    }
+
+    /**
+     * Obtain the size of socket receiving buffer.
+     *
+     * @return Size in bytes.
+     */
+    public static int getReceiveBufferSize() {
+        return Integer.getInteger("acmc.udp.receiveBufferSize", 256 * 1024);
+    }
+
+    /**
+     * Obtain the interval of server status reports.
+     *
+     * @return Time in milliseconds, 0 if disabled.
+     */
+    public static long getStatusReportIntervalMillis() {
+        return Math.max(0, Long.getLong("acmc.udp.statusIntervalMillis", 60000));
+    }
+
+    /**
+     * Obtain the capabilities that are enabled locally.
+     *
+     * @return Enabled capabilities.
+     */
+    public static Set<String> getEnabledCapabilities() {
+        Set<String> capabilities = new LinkedHashSet<>();
+
+        if (isReliableDeliveryEnabled()) {
+            capabilities.add(ProtocolStrings.CAPABILITY_RELIABLE_DELIVERY);
+        }
+
+        if (isFragmentationEnabled()) {
+            capabilities.add(ProtocolStrings.CAPABILITY_FRAGMENTATION);
+        }
+
+        if (isBundlingEnabled()) {
+            capabilities.add(ProtocolStrings.CAPABILITY_BUNDLING);
+        }
+
+        if (isFecEnabled()) {
+            capabilities.add(ProtocolStrings.CAPABILITY_FEC);
+        }
+
+        if (isHeartbeatEnabled()) {
+            capabilities.add(ProtocolStrings.CAPABILITY_HEARTBEAT);
+        }
+
+        return capabilities;
+    }
+
+    /**
+     * Parses capability list.
+     *
+     * @param capabilities Capability list in protocol message.
+     * @return The capabilities.
+     */
+    public static Set<String> parseCapabilities(String capabilities) {
+        Set<String> result = new LinkedHashSet<>();
+
+        if (capabilities == null || capabilities.isEmpty()) {
+            return result;
+        }
+
+        for (String capability : capabilities.split(ProtocolStrings.CAPABILITIES_SEPARATOR)) {
+            if (!capability.trim().isEmpty()) {
+                result.add(capability.trim());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Formats capability list.
+     *
+     * @param capabilities The capabilities.
+     * @return Capability list in protocol message.
+     */
+    public static String formatCapabilities(Collection<String> capabilities) {
+        return String.join(ProtocolStrings.CAPABILITIES_SEPARATOR, capabilities);
+    }
+
+    /**
+     * Selects the capabilities that both the peer offered and enabled locally.
+     *
+     * @param offered Capability list offered by peer.
+     * @return Accepted capabilities.
+     */
+    public static Set<String> negotiate(String offered) {
+        Set<String> accepted = parseCapabilities(offered);
+        accepted.retainAll(getEnabledCapabilities());
+
+        return accepted;
+    }
+}
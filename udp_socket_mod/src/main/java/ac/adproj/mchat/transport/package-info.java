@@ -0,0 +1,7 @@
+/**
+ * Datagram transport layers under the text protocol (reliable delivery etc.).
+ * 
+ * @author Andy Cheung
+ */
+
+package ac.adproj.mchat.transport;
@@ -0,0 +1,80 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.handler;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link RegistrationCookie}.
+ *
+ * @author Andy Cheung
+ */
+public class RegistrationCookieTest {
+    private static final SocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 10086);
+    private static final SocketAddress OTHER_PORT = new InetSocketAddress("127.0.0.1", 10087);
+    private static final String UUID = "6f1c5b0e-2a4d-4c8e-9f6a-1b2c3d4e5f60";
+    private static final String OTHER_UUID = "0a1b2c3d-4e5f-4a6b-8c7d-9e0f1a2b3c4d";
+
+    private final RegistrationCookie cookies = new RegistrationCookie();
+
+    @Test
+    public void testIssuedCookieIsAccepted() {
+        assertTrue(cookies.verify(cookies.issue(CLIENT, UUID), CLIENT, UUID));
+    }
+
+    @Test
+    public void testCookieIsBoundToAddress() {
+        assertFalse(cookies.verify(cookies.issue(CLIENT, UUID), OTHER_PORT, UUID));
+    }
+
+    @Test
+    public void testCookieIsBoundToUuid() {
+        String cookie = cookies.issue(CLIENT, UUID);
+
+        assertFalse(cookies.verify(cookie, CLIENT, OTHER_UUID));
+        assertFalse(cookies.verify(cookie, CLIENT, null));
+    }
+
+    @Test
+    public void testCookieOfOtherServerIsRejected() {
+        assertFalse(new RegistrationCookie().verify(cookies.issue(CLIENT, UUID), CLIENT, UUID));
+    }
+
+    @Test
+    public void testMalformedCookieIsRejected() {
+        assertFalse(cookies.verify(null, CLIENT, UUID));
+        assertFalse(cookies.verify("", CLIENT, UUID));
+        assertFalse(cookies.verify("abc", CLIENT, UUID));
+        assertFalse(cookies.verify(".AAAA", CLIENT, UUID));
+        assertFalse(cookies.verify("zz.!!!", CLIENT, UUID));
+    }
+
+    @Test
+    public void testExpiredCookieIsRejected() {
+        String cookie = cookies.issue(CLIENT, UUID);
+        String mac = cookie.substring(cookie.indexOf('.'));
+        long slot = Long.parseLong(cookie.substring(0, cookie.indexOf('.')), 36);
+
+        assertFalse(cookies.verify(Long.toString(slot - 2, 36) + mac, CLIENT, UUID));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static ac.adproj.mchat.transport.TransportFrames.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link CoalescingTransport}.
+ *
+ * @author Andy Cheung
+ */
+public class CoalescingTransportTest {
+    private static final SocketAddress PEER = new InetSocketAddress("127.0.0.1", 10086);
+    private static final SocketAddress STRANGER = new InetSocketAddress("127.0.0.1", 10087);
+
+    /**
+     * Long enough that nothing is flushed by the timer during a test.
+     */
+    private static final long DELAY_MILLIS = 60_000;
+
+    private final List<byte[]> sent = new ArrayList<>();
+    private final List<byte[]> delivered = new ArrayList<>();
+
+    private CoalescingTransport sender;
+    private CoalescingTransport receiver;
+
+    @Before
+    public void setUp() {
+        sender = new CoalescingTransport((datagram, target) -> sent.add(datagram), DELAY_MILLIS, "Coalescing sender");
+        receiver = new CoalescingTransport((datagram, target) -> fail("The receiver sends nothing."), DELAY_MILLIS,
+                                            "Coalescing receiver");
+
+        sender.enable(PEER);
+        receiver.accept(PEER);
+    }
+
+    @After
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void testBundleRoundTrip() throws Exception {
+        sender.send(frame(10), PEER);
+        sender.send(frame(20), PEER);
+        sender.disable(PEER);
+
+        assertEquals(1, sent.size());
+        assertEquals(TYPE_BUNDLE, typeOf(sent.get(0)));
+
+        receiver.receive(sent.get(0), PEER, delivered::add);
+
+        assertEquals(2, delivered.size());
+        assertArrayEquals(frame(10), delivered.get(0));
+        assertArrayEquals(frame(20), delivered.get(1));
+    }
+
+    @Test
+    public void testLoneFrameIsSentAsIs() throws Exception {
+        byte[] frame = frame(10);
+
+        sender.send(frame, PEER);
+        sender.disable(PEER);
+
+        assertEquals(1, sent.size());
+        assertSame(frame, sent.get(0));
+    }
+
+    @Test
+    public void testBundleIsLimitedInFrames() throws Exception {
+        for (int i = 0; i <= CoalescingTransport.MAX_BUNDLE_FRAMES; i++) {
+            sender.send(frame(1), PEER);
+        }
+
+        assertEquals(1, sent.size());
+
+        receiver.receive(sent.get(0), PEER, delivered::add);
+        assertEquals(CoalescingTransport.MAX_BUNDLE_FRAMES, delivered.size());
+    }
+
+    @Test
+    public void testBundleFromStrangerIsDropped() throws Exception {
+        receiver.receive(bundle(frame(10), frame(20)), STRANGER, delivered::add);
+
+        assertTrue(delivered.isEmpty());
+    }
+
+    @Test
+    public void testOtherDatagramsPassThrough() {
+        byte[] frame = frame(10);
+
+        receiver.receive(frame, STRANGER, delivered::add);
+
+        assertSame(frame, delivered.get(0));
+    }
+
+    @Test
+    public void testEmptyEntriesAreRejected() {
+        receiver.receive(bundle(frame(10), new byte[0], frame(20)), PEER, delivered::add);
+
+        assertTrue(delivered.isEmpty());
+    }
+
+    @Test
+    public void testTooManyFramesAreRejected() {
+        byte[][] frames = new byte[CoalescingTransport.MAX_BUNDLE_FRAMES + 1][];
+
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frame(1);
+        }
+
+        receiver.receive(bundle(frames), PEER, delivered::add);
+
+        assertTrue(delivered.isEmpty());
+    }
+
+    @Test
+    public void testTruncatedBundleIsRejected() {
+        byte[] bundle = bundle(frame(10), frame(20));
+
+        receiver.receive(Arrays.copyOf(bundle, bundle.length - 1), PEER, delivered::add);
+        receiver.receive(Arrays.copyOf(bundle, 2 + 2 + 10 + 1), PEER, delivered::add);
+
+        assertTrue(delivered.isEmpty());
+    }
+
+    private static byte[] frame(int length) {
+        byte[] frame = new byte[length];
+        Arrays.fill(frame, (byte) length);
+
+        return frame;
+    }
+
+    private static byte[] bundle(byte[]... frames) {
+        int size = FRAME_HEADER_SIZE;
+
+        for (byte[] f : frames) {
+            size += Short.BYTES + f.length;
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(size).put(MAGIC).put(TYPE_BUNDLE);
+
+        for (byte[] f : frames) {
+            bb.putShort((short) f.length).put(f);
+        }
+
+        return bb.array();
+    }
+}
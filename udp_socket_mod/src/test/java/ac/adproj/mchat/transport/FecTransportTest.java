@@ -0,0 +1,198 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static ac.adproj.mchat.transport.TransportFrames.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link FecTransport}.
+ *
+ * @author Andy Cheung
+ */
+public class FecTransportTest {
+    private static final SocketAddress PEER = new InetSocketAddress("127.0.0.1", 10086);
+    private static final SocketAddress STRANGER = new InetSocketAddress("127.0.0.1", 10087);
+    private static final int GROUP_SIZE = 4;
+
+    private final List<byte[]> sent = Collections.synchronizedList(new ArrayList<>());
+
+    private FecTransport encoder;
+    private FecTransport decoder;
+
+    @Before
+    public void setUp() {
+        encoder = new FecTransport((datagram, target) -> sent.add(datagram), GROUP_SIZE, "FEC encoder");
+        decoder = new FecTransport((datagram, target) -> fail("The decoder sends nothing."), GROUP_SIZE, "FEC decoder");
+
+        encoder.enableEncoding(PEER);
+        decoder.enableDecoding(PEER);
+    }
+
+    @After
+    public void tearDown() {
+        encoder.close();
+        decoder.close();
+    }
+
+    @Test
+    public void testGroupIsFollowedByParity() throws Exception {
+        sendGroup();
+
+        assertEquals(GROUP_SIZE + 1, sent.size());
+
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            assertEquals(TYPE_FEC_DATA, typeOf(sent.get(i)));
+        }
+
+        assertEquals(TYPE_FEC_PARITY, typeOf(sent.get(GROUP_SIZE)));
+    }
+
+    @Test
+    public void testUnprotectedDatagramsPassThrough() throws Exception {
+        byte[] ack = {MAGIC, TYPE_RELIABLE_ACK, 0, 0, 0, 0, 0};
+
+        encoder.send(ack, PEER);
+        encoder.send(text("plain"), STRANGER);
+
+        assertSame(ack, sent.get(0));
+        assertEquals("plain", new String(sent.get(1), StandardCharsets.UTF_8));
+
+        assertEquals(texts("plain"), receive(text("plain")));
+    }
+
+    @Test
+    public void testDeliveryWithoutLoss() throws Exception {
+        sendGroup();
+
+        assertEquals(texts("a", "bb", "ccc", "dddd"), receive(sent.toArray(new byte[0][])));
+        assertEquals(0, decoder.getRecoveredCount(PEER));
+    }
+
+    @Test
+    public void testSingleLossIsRebuilt() throws Exception {
+        sendGroup();
+
+        List<String> delivered = receive(sent.get(0), sent.get(1), sent.get(3), sent.get(4));
+
+        // Rebuilt with its own length, not the length of the longest datagram.
+        assertEquals(texts("a", "bb", "dddd", "ccc"), delivered);
+        assertEquals(1, decoder.getRecoveredCount(PEER));
+
+        // Late arrival of the rebuilt one is a duplicate.
+        assertTrue(receive(sent.get(2)).isEmpty());
+    }
+
+    @Test
+    public void testParityBeforeData() throws Exception {
+        sendGroup();
+
+        assertTrue(receive(sent.get(4)).isEmpty());
+        assertEquals(texts("bb", "ccc", "dddd", "a"), receive(sent.get(1), sent.get(2), sent.get(3)));
+    }
+
+    @Test
+    public void testTwoLossesWaitForLateArrival() throws Exception {
+        sendGroup();
+
+        assertEquals(texts("a", "bb"), receive(sent.get(0), sent.get(1), sent.get(4)));
+        assertEquals(0, decoder.getRecoveredCount(PEER));
+
+        assertEquals(texts("dddd", "ccc"), receive(sent.get(3)));
+        assertEquals(1, decoder.getRecoveredCount(PEER));
+    }
+
+    @Test
+    public void testDuplicatesAreDropped() throws Exception {
+        sendGroup();
+
+        assertEquals(texts("a"), receive(sent.get(0), sent.get(0)));
+    }
+
+    @Test
+    public void testUnknownPeerIsIgnored() throws Exception {
+        sendGroup();
+
+        List<String> delivered = new ArrayList<>();
+        decoder.receive(sent.get(0), STRANGER, d -> delivered.add(new String(d, StandardCharsets.UTF_8)));
+
+        assertTrue(delivered.isEmpty());
+    }
+
+    @Test
+    public void testMalformedFramesAreIgnored() {
+        assertTrue(receive(new byte[] {MAGIC, TYPE_FEC_DATA, 0, 0}).isEmpty());
+        assertTrue(receive(new byte[] {MAGIC, TYPE_FEC_PARITY, 0, 0, 0, 0}).isEmpty());
+
+        // Index out of any group.
+        assertTrue(receive(new byte[] {MAGIC, TYPE_FEC_DATA, 0, 0, 0, 0, (byte) FecTransport.MAX_GROUP_SIZE, 'x'}).isEmpty());
+    }
+
+    @Test
+    public void testPartialGroupIsFlushed() throws Exception {
+        encoder.send(text("a"), PEER);
+        encoder.send(text("bb"), PEER);
+
+        long deadline = System.currentTimeMillis() + 2000;
+
+        while (sent.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(FecTransport.FLUSH_MILLIS);
+        }
+
+        assertEquals(3, sent.size());
+        assertEquals(TYPE_FEC_PARITY, typeOf(sent.get(2)));
+
+        assertEquals(texts("a", "bb"), receive(sent.get(0), sent.get(2)));
+    }
+
+    private void sendGroup() throws Exception {
+        for (String s : texts("a", "bb", "ccc", "dddd")) {
+            encoder.send(text(s), PEER);
+        }
+    }
+
+    private List<String> receive(byte[]... datagrams) {
+        List<String> delivered = new ArrayList<>();
+
+        for (byte[] datagram : datagrams) {
+            decoder.receive(datagram, PEER, d -> delivered.add(new String(d, StandardCharsets.UTF_8)));
+        }
+
+        return delivered;
+    }
+
+    private static byte[] text(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> texts(String... s) {
+        return Arrays.asList(s);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import ac.adproj.mchat.model.ProtocolStrings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static ac.adproj.mchat.transport.TransportFrames.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link FragmentingTransport}.
+ *
+ * @author Andy Cheung
+ */
+public class FragmentingTransportTest {
+    private static final SocketAddress PEER = new InetSocketAddress("127.0.0.1", 10086);
+    private static final SocketAddress STRANGER = new InetSocketAddress("127.0.0.1", 10087);
+
+    private final List<byte[]> sent = new ArrayList<>();
+    private final List<byte[]> delivered = new ArrayList<>();
+
+    private FragmentingTransport sender;
+    private FragmentingTransport receiver;
+
+    @Before
+    public void setUp() {
+        sender = new FragmentingTransport((datagram, target) -> sent.add(datagram), "Fragmenting sender");
+        receiver = new FragmentingTransport((datagram, target) -> fail("The receiver sends nothing."),
+                                            "Fragmenting receiver");
+
+        sender.enable(PEER);
+        receiver.accept(PEER);
+    }
+
+    @After
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void testSmallMessagePassesThrough() throws Exception {
+        byte[] message = message(ProtocolStrings.BUFFER_SIZE);
+
+        sender.send(message, PEER);
+
+        assertEquals(1, sent.size());
+        assertSame(message, sent.get(0));
+
+        receive(sent.get(0));
+        assertSame(message, delivered.get(0));
+    }
+
+    @Test
+    public void testNotNegotiatedPassesThrough() throws Exception {
+        byte[] message = message(3 * ProtocolStrings.BUFFER_SIZE);
+
+        sender.send(message, STRANGER);
+
+        assertEquals(1, sent.size());
+        assertSame(message, sent.get(0));
+    }
+
+    @Test
+    public void testLargeMessageIsFragmented() throws Exception {
+        byte[] message = message(3 * ProtocolStrings.BUFFER_SIZE + 7);
+
+        sender.send(message, PEER);
+
+        assertEquals(4, sent.size());
+
+        for (byte[] fragment : sent) {
+            assertTrue(fragment.length <= ProtocolStrings.BUFFER_SIZE);
+            assertEquals(TYPE_FRAGMENT, typeOf(fragment));
+        }
+
+        sent.forEach(this::receive);
+
+        assertEquals(1, delivered.size());
+        assertArrayEquals(message, delivered.get(0));
+    }
+
+    @Test
+    public void testFragmentIndexOf() throws Exception {
+        sender.send(message(3 * FragmentingTransport.FRAGMENT_PAYLOAD_SIZE), PEER);
+
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(i, FragmentingTransport.fragmentIndexOf(sent.get(i), 0));
+
+            // Wrapped in a frame of a lower layer.
+            byte[] wrapped = new byte[10 + sent.get(i).length];
+            System.arraycopy(sent.get(i), 0, wrapped, 10, sent.get(i).length);
+
+            assertEquals(i, FragmentingTransport.fragmentIndexOf(wrapped, 10));
+        }
+
+        assertEquals(-1, FragmentingTransport.fragmentIndexOf(message(100), 0));
+        assertEquals(-1, FragmentingTransport.fragmentIndexOf(sent.get(0), 1));
+    }
+
+    @Test
+    public void testReassemblyInAnyOrder() throws Exception {
+        byte[] message = message(5 * FragmentingTransport.FRAGMENT_PAYLOAD_SIZE);
+
+        sender.send(message, PEER);
+        Collections.shuffle(sent, new Random(42));
+
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(i == sent.size() - 1 ? 1 : 0, receive(sent.get(i)));
+        }
+
+        assertArrayEquals(message, delivered.get(0));
+    }
+
+    @Test
+    public void testDuplicateFragmentIsIgnored() throws Exception {
+        sender.send(message(2 * FragmentingTransport.FRAGMENT_PAYLOAD_SIZE), PEER);
+
+        receive(sent.get(0));
+        receive(sent.get(0));
+
+        assertTrue(delivered.isEmpty());
+
+        receive(sent.get(1));
+        receive(sent.get(1));
+
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void testInterleavedMessages() throws Exception {
+        byte[] first = message(2 * FragmentingTransport.FRAGMENT_PAYLOAD_SIZE);
+        byte[] second = message(2 * FragmentingTransport.FRAGMENT_PAYLOAD_SIZE - 1);
+
+        sender.send(first, PEER);
+        sender.send(second, PEER);
+
+        receive(sent.get(2));
+        receive(sent.get(0));
+        receive(sent.get(3));
+        receive(sent.get(1));
+
+        assertEquals(2, delivered.size());
+        assertArrayEquals(second, delivered.get(0));
+        assertArrayEquals(first, delivered.get(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooLargeMessageIsRefused() throws Exception {
+        sender.send(message(FragmentingTransport.MAX_MESSAGE_SIZE + 1), PEER);
+    }
+
+    @Test
+    public void testMaximumMessage() throws Exception {
+        byte[] message = message(FragmentingTransport.MAX_MESSAGE_SIZE);
+
+        sender.send(message, PEER);
+
+        assertEquals(FragmentingTransport.MAX_FRAGMENTS, sent.size());
+
+        sent.forEach(this::receive);
+        assertArrayEquals(message, delivered.get(0));
+    }
+
+    @Test
+    public void testFragmentsFromUnknownPeerAreIgnored() throws Exception {
+        sender.send(message(2 * FragmentingTransport.FRAGMENT_PAYLOAD_SIZE), PEER);
+
+        for (byte[] fragment : sent) {
+            receiver.receive(fragment, STRANGER, delivered::add);
+        }
+
+        assertTrue(delivered.isEmpty());
+    }
+
+    @Test
+    public void testInvalidHeadersAreIgnored() {
+        assertEquals(0, receive(fragment(1, 0, 0)));
+        assertEquals(0, receive(fragment(1, 2, 2)));
+        assertEquals(0, receive(fragment(1, 0, FragmentingTransport.MAX_FRAGMENTS + 1)));
+        assertEquals(0, receive(new byte[] {MAGIC, TYPE_FRAGMENT, 0, 0}));
+
+        // Same message id with another fragment count.
+        assertEquals(0, receive(fragment(2, 0, 2)));
+        assertEquals(0, receive(fragment(2, 1, 3)));
+    }
+
+    @Test
+    public void testOldestIncompleteMessageIsDiscarded() throws Exception {
+        for (int i = 0; i <= FragmentingTransport.MAX_PENDING_MESSAGES; i++) {
+            sender.send(message(2 * FragmentingTransport.FRAGMENT_PAYLOAD_SIZE), PEER);
+        }
+
+        // First fragment of every message, one message more than the limit.
+        for (int i = 0; i < sent.size(); i += 2) {
+            receive(sent.get(i));
+        }
+
+        // The oldest one was discarded, its second fragment starts a new incomplete message.
+        assertEquals(0, receive(sent.get(1)));
+
+        // The newest one is still complete.
+        assertEquals(1, receive(sent.get(sent.size() - 1)));
+    }
+
+    private int receive(byte[] payload) {
+        int before = delivered.size();
+
+        receiver.receive(payload, PEER, delivered::add);
+
+        return delivered.size() - before;
+    }
+
+    private static byte[] fragment(int id, int index, int count) {
+        return ByteBuffer.allocate(FragmentingTransport.FRAGMENT_HEADER_SIZE + 1)
+                    .put(MAGIC).put(TYPE_FRAGMENT).putInt(id).putShort((short) index).putShort((short) count)
+                    .put((byte) 'x').array();
+    }
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        new Random(length).nextBytes(message);
+
+        // Not mistaken for a transport frame.
+        message[0] = '<';
+
+        return message;
+    }
+}
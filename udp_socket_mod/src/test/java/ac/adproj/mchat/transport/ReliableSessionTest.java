@@ -0,0 +1,343 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.transport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static ac.adproj.mchat.transport.TransportFrames.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link ReliableSession}.
+ *
+ * @author Andy Cheung
+ */
+public class ReliableSessionTest {
+    private static final SocketAddress PEER = new InetSocketAddress("127.0.0.1", 10086);
+
+    private ReliableSession sender;
+    private ReliableSession receiver;
+
+    @Before
+    public void setUp() {
+        sender = new ReliableSession(PEER, true);
+        receiver = new ReliableSession(PEER, true);
+    }
+
+    @Test
+    public void testSequenceNumbering() throws Exception {
+        List<byte[]> frames = sendAll(3, 0);
+
+        assertEquals(3, frames.size());
+
+        for (int i = 0; i < frames.size(); i++) {
+            assertTrue(isTransportFrame(frames.get(i)));
+            assertEquals(TYPE_RELIABLE_DATA, typeOf(frames.get(i)));
+            assertEquals(i, seqOf(frames.get(i)));
+            assertEquals(0, floorOf(frames.get(i)));
+        }
+    }
+
+    @Test
+    public void testInOrderDelivery() throws Exception {
+        List<byte[]> frames = sendAll(3, 0);
+
+        assertEquals(texts("m0", "m1", "m2"), deliverAll(frames));
+        assertFalse(receiver.hasGap());
+    }
+
+    @Test
+    public void testReordering() throws Exception {
+        List<byte[]> frames = sendAll(3, 0);
+
+        assertTrue(receiver.onData(frames.get(2)).isEmpty());
+        assertTrue(receiver.onData(frames.get(1)).isEmpty());
+        assertTrue(receiver.hasGap());
+
+        assertEquals(texts("m0", "m1", "m2"), texts(receiver.onData(frames.get(0))));
+        assertFalse(receiver.hasGap());
+    }
+
+    @Test
+    public void testDuplicateSuppression() throws Exception {
+        List<byte[]> frames = sendAll(2, 0);
+
+        assertEquals(texts("m0"), texts(receiver.onData(frames.get(0))));
+        assertNotNull(receiver.takeAck());
+
+        // Delivered once, but acknowledged again since the previous ACK may be lost.
+        assertTrue(receiver.onData(frames.get(0)).isEmpty());
+        assertNotNull(receiver.takeAck());
+
+        // Duplicate of a frame buffered after the gap.
+        byte[] early = sendAll(1, 0).get(0);
+
+        assertTrue(receiver.onData(early).isEmpty());
+        assertTrue(receiver.onData(early).isEmpty());
+
+        assertEquals(texts("m1", "m0"), texts(receiver.onData(frames.get(1))));
+    }
+
+    @Test
+    public void testAckIsTakenOnce() throws Exception {
+        assertNull(receiver.takeAck());
+
+        receiver.onData(sendAll(1, 0).get(0));
+
+        assertNotNull(receiver.takeAck());
+        assertNull(receiver.takeAck());
+    }
+
+    @Test
+    public void testSelectiveAcknowledgement() throws Exception {
+        List<byte[]> frames = sendAll(4, 0);
+
+        receiver.onData(frames.get(0));
+        receiver.onData(frames.get(2));
+        receiver.onData(frames.get(3));
+
+        ByteBuffer ack = ByteBuffer.wrap(receiver.takeAck());
+
+        assertEquals(MAGIC, ack.get());
+        assertEquals(TYPE_RELIABLE_ACK, ack.get());
+        assertEquals(1, ack.getInt());
+        assertEquals(2, ack.get());
+        assertEquals(2, ack.getInt());
+        assertEquals(3, ack.getInt());
+    }
+
+    @Test
+    public void testAckReleasesFrames() throws Exception {
+        List<byte[]> frames = sendAll(3, 0);
+
+        frames.forEach(receiver::onData);
+        assertTrue(sender.onAck(receiver.takeAck(), 10).isEmpty());
+
+        assertEquals(3, sender.takeAcknowledgedCount());
+        assertTrue(sender.isIdle());
+
+        // Nothing left to retransmit.
+        assertTrue(sender.collectRetransmissions(10 + ReliableSession.MAX_RTO_MILLIS).isEmpty());
+    }
+
+    @Test
+    public void testFastRetransmit() throws Exception {
+        List<byte[]> frames = sendAll(5, 0);
+
+        receiver.onData(frames.get(0));
+
+        List<byte[]> retransmitted = new ArrayList<>();
+
+        // Every ACK reports one more frame after the lost one.
+        for (int i = 2; i < 2 + ReliableSession.FAST_RETRANSMIT_THRESHOLD; i++) {
+            receiver.onData(frames.get(i));
+            retransmitted.addAll(sender.onAck(receiver.takeAck(), 1));
+        }
+
+        assertEquals(1, retransmitted.size());
+        assertEquals(1, seqOf(retransmitted.get(0)));
+        assertEquals(1, sender.takeLossCount());
+
+        assertEquals(texts("m1", "m2", "m3", "m4"), texts(receiver.onData(retransmitted.get(0))));
+    }
+
+    @Test
+    public void testRetransmissionTimeout() throws Exception {
+        sendAll(1, 0);
+
+        assertTrue(sender.collectRetransmissions(ReliableSession.INITIAL_RTO_MILLIS - 1).isEmpty());
+
+        List<byte[]> retransmitted = sender.collectRetransmissions(ReliableSession.INITIAL_RTO_MILLIS);
+
+        assertEquals(1, retransmitted.size());
+        assertEquals(0, seqOf(retransmitted.get(0)));
+        assertFalse(sender.isIdle());
+    }
+
+    @Test
+    public void testSenderFloorSkipsGivenUpFrames() throws Exception {
+        List<byte[]> frames = sendAll(2, 0);
+
+        // The first frame is lost for good, the second arrives and is acknowledged.
+        assertTrue(receiver.onData(frames.get(1)).isEmpty());
+        sender.onAck(receiver.takeAck(), 1);
+
+        long now = 0;
+
+        for (int i = 0; i <= ReliableSession.MAX_RETRIES; i++) {
+            now += ReliableSession.MAX_RTO_MILLIS;
+            sender.collectRetransmissions(now);
+        }
+
+        assertEquals(1, sender.takeGivenUpCount());
+        assertTrue(sender.isIdle());
+
+        byte[] next = sender.send(text("m2"), now, false).get(0);
+
+        assertEquals(2, floorOf(next));
+        assertEquals(texts("m1", "m2"), texts(receiver.onData(next)));
+        assertFalse(receiver.hasGap());
+    }
+
+    @Test
+    public void testSendWindow() throws Exception {
+        List<byte[]> frames = sendAll(ReliableSession.RECEIVE_WINDOW + 5, 0);
+
+        assertEquals(ReliableSession.RECEIVE_WINDOW, frames.size());
+
+        for (int i = 0; i < 5; i++) {
+            receiver.onData(frames.get(i));
+        }
+
+        List<byte[]> released = sender.onAck(receiver.takeAck(), 1);
+
+        assertEquals(5, released.size());
+        assertEquals(ReliableSession.RECEIVE_WINDOW, seqOf(released.get(0)));
+        assertEquals(ReliableSession.RECEIVE_WINDOW + 4, seqOf(released.get(4)));
+    }
+
+    @Test
+    public void testReceiveWindow() {
+        // Past the window of a receiver still waiting for the first frame: neither kept nor acknowledged.
+        assertTrue(receiver.onData(dataFrame(ReliableSession.RECEIVE_WINDOW, 0, "far")).isEmpty());
+        assertFalse(receiver.hasGap());
+        assertNull(receiver.takeAck());
+
+        // The last one inside the window is kept.
+        assertTrue(receiver.onData(dataFrame(ReliableSession.RECEIVE_WINDOW - 1, 0, "last")).isEmpty());
+        assertTrue(receiver.hasGap());
+        assertNotNull(receiver.takeAck());
+    }
+
+    @Test
+    public void testFullQueueRejectsWithoutDropping() throws Exception {
+        sendAll(ReliableSession.RECEIVE_WINDOW + ReliableSession.MAX_QUEUED, 0);
+
+        try {
+            sender.send(text("rejected"), 0, false);
+            fail("The queue is full.");
+        } catch (QueueFullException e) {
+            // Expected.
+        }
+
+        assertEquals(0, sender.takeGivenUpCount());
+    }
+
+    @Test
+    public void testControlIsNeverRejected() throws Exception {
+        sendAll(ReliableSession.RECEIVE_WINDOW + ReliableSession.MAX_QUEUED, 0);
+
+        assertTrue(sender.send(text("logoff"), 0, true).isEmpty());
+    }
+
+    @Test
+    public void testControlOvertakesQueuedChat() throws Exception {
+        List<byte[]> frames = sendAll(ReliableSession.RECEIVE_WINDOW + 10, 0);
+
+        assertTrue(sender.send(text("logoff"), 0, true).isEmpty());
+
+        frames.forEach(receiver::onData);
+
+        // The first free slot of the window goes to the control payload, before the 10 queued chat payloads.
+        List<byte[]> released = sender.onAck(receiver.takeAck(), 1);
+
+        assertEquals(11, released.size());
+        assertEquals(ReliableSession.RECEIVE_WINDOW, seqOf(released.get(0)));
+
+        List<String> delivered = deliverAll(released);
+
+        assertEquals("logoff", delivered.get(0));
+        assertEquals("m" + ReliableSession.RECEIVE_WINDOW, delivered.get(1));
+    }
+
+    @Test
+    public void testTruncatedFramesAreIgnored() {
+        assertTrue(receiver.onData(new byte[] {MAGIC, TYPE_RELIABLE_DATA, 0, 0}).isEmpty());
+        assertTrue(sender.onAck(new byte[] {MAGIC, TYPE_RELIABLE_ACK}, 0).isEmpty());
+        assertNull(receiver.takeAck());
+    }
+
+    @Test
+    public void testPlainMessagesAreNotTransportFrames() {
+        assertFalse(isTransportFrame(text("<< MESSAGE >>")));
+        assertFalse(isTransportFrame(new byte[] {MAGIC}));
+        assertTrue(isTransportFrame(new byte[] {MAGIC, TYPE_BUNDLE}));
+    }
+
+    private List<byte[]> sendAll(int count, long now) throws QueueFullException {
+        List<byte[]> frames = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            frames.addAll(sender.send(text("m" + i), now, false));
+        }
+
+        return frames;
+    }
+
+    private List<String> deliverAll(List<byte[]> frames) {
+        List<String> delivered = new ArrayList<>();
+
+        for (byte[] frame : frames) {
+            delivered.addAll(texts(receiver.onData(frame)));
+        }
+
+        return delivered;
+    }
+
+    private static byte[] dataFrame(int seq, int floor, String payload) {
+        byte[] bytes = text(payload);
+
+        return ByteBuffer.allocate(FRAME_HEADER_SIZE + 2 * Integer.BYTES + bytes.length)
+                    .put(MAGIC).put(TYPE_RELIABLE_DATA).putInt(seq).putInt(floor).put(bytes).array();
+    }
+
+    private static int seqOf(byte[] frame) {
+        return ByteBuffer.wrap(frame).getInt(FRAME_HEADER_SIZE);
+    }
+
+    private static int floorOf(byte[] frame) {
+        return ByteBuffer.wrap(frame).getInt(FRAME_HEADER_SIZE + Integer.BYTES);
+    }
+
+    private static byte[] text(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> texts(String... s) {
+        return Arrays.asList(s);
+    }
+
+    private static List<String> texts(List<byte[]> payloads) {
+        List<String> result = new ArrayList<>();
+
+        for (byte[] p : payloads) {
+            result.add(new String(p, StandardCharsets.UTF_8));
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+    Copyright (C) 2011-2020 Andy Cheung
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package ac.adproj.mchat.web;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Filter that makes the static resources of web client cache-friendly.
+ *
+ * <p>Since the extracted web client never changes under the same content hash,
+ * every resource (and every precompressed variant) gets a strong ETag derived from
+ * its own content, computed once. So the revalidation after a server restart is
+ * answered by 304 without serving the resource, and a new package only invalidates
+ * the resources that actually changed. Pages are revalidated on every load, other
+ * resources are marked immutable.</p>
+ *
+ * @author Andy Cheung
+ * @see ac.adproj.mchat.web.res.WebClientLoader
+ */
+public class StaticResourceCachingFilter implements Filter {
+    private static final String PAGE_CACHE_CONTROL = "no-cache";
+    private static final String ASSET_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final String WELCOME_FILE = "index.html";
+
+    /**
+     * Precompressed variants in the order of preference, which is the same as Jetty's configuration.
+     */
+    private static final String[][] ENCODINGS = {{"gzip", ".gz"}};
+
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+    private final Path base;
+
+    /**
+     * ETags of served files (originals and variants), which never change in a cache entry.
+     */
+    private final Map<Path, String> etags = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param base Directory of the extracted web client.
+     */
+    public StaticResourceCachingFilter(Path base) {
+        this.base = base;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        // Nothing to initialize.
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse resp = (HttpServletResponse) response;
+
+        String method = req.getMethod();
+        Path file = resolve(req);
+
+        if (file == null || !("GET".equals(method) || "HEAD".equals(method))) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String[] encoding = selectEncoding(req, file);
+        String etag;
+
+        try {
+            etag = etagOf(encoding == null ? file : file.resolveSibling(file.getFileName() + encoding[1]));
+        } catch (UncheckedIOException e) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Cache-Control", file.getFileName().toString().endsWith(".html")
+                                            ? PAGE_CACHE_CONTROL : ASSET_CACHE_CONTROL);
+
+        if (matches(req.getHeader("If-None-Match"), etag)) {
+            if (hasPrecompressedVariant(file)) {
+                // Jetty adds it for full responses only.
+                resp.setHeader("Vary", "Accept-Encoding");
+            }
+
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        chain.doFilter(request, response);
+    }
+
+    /**
+     * Resolve the requested static resource.
+     *
+     * @param req The request.
+     * @return The file, or null if the request isn't for an existing static resource.
+     */
+    private Path resolve(HttpServletRequest req) {
+        String path = req.getServletPath() + (req.getPathInfo() == null ? "" : req.getPathInfo());
+
+        if (path.endsWith("/")) {
+            path += WELCOME_FILE;
+        }
+
+        Path file = base.resolve(path.substring(1)).normalize();
+
+        if (!file.startsWith(base) || file.startsWith(base.resolve("WEB-INF"))
+                || file.startsWith(base.resolve("META-INF")) || !Files.isRegularFile(file)) {
+            return null;
+        }
+
+        return file;
+    }
+
+    private String[] selectEncoding(HttpServletRequest req, Path file) {
+        String accepted = req.getHeader("Accept-Encoding");
+
+        if (accepted == null) {
+            return null;
+        }
+
+        for (String[] encoding : ENCODINGS) {
+            if (accepted.contains(encoding[0])
+                    && Files.exists(file.resolveSibling(file.getFileName() + encoding[1]))) {
+                return encoding;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Obtain the strong ETag of the file: CRC-32 and size of its content.
+     *
+     * @param file The served file, either the original or a precompressed variant.
+     * @return The quoted ETag.
+     * @throws UncheckedIOException If the file can't be read.
+     */
+    private String etagOf(Path file) {
+        return etags.computeIfAbsent(file, f -> {
+            CRC32 crc = new CRC32();
+            long size = 0;
+
+            try (InputStream is = Files.newInputStream(f)) {
+                byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+                int length;
+
+                while ((length = is.read(buffer)) != -1) {
+                    crc.update(buffer, 0, length);
+                    size += length;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return String.format("\"%08x-%x\"", crc.getValue(), size);
+        });
+    }
+
+    private boolean hasPrecompressedVariant(Path file) {
+        for (String[] encoding : ENCODINGS) {
+            if (Files.exists(file.resolveSibling(file.getFileName() + encoding[1]))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+
+            if ("*".equals(trimmed) || etag.equals(trimmed)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public void destroy() {
+        // Nothing to release.
+    }
+}
@@ -20,6 +20,7 @@ package ac.adproj.mchat.web;
 import ac.adproj.mchat.service.CommonThreadPool;
 import ac.adproj.mchat.web.res.WebClientLoader;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
@@ -27,6 +28,10 @@ import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.DispatcherType;
+import java.nio.file.Path;
+import java.util.EnumSet;
+
 /**
  * WebSocket Server (Embedded Jetty Server) bootstrapper.
  * 
@@ -65,7 +70,24 @@ public class WebServerStarter implements AutoCloseable {
             
             WebAppContext webapp = new WebAppContext();
             webapp.setContextPath("/acmcs");
-            webapp.setWar(WebClientLoader.getWebappWarPath());
+            String resourceBase = WebClientLoader.getWebappResourceBase();
+            webapp.setResourceBase(resourceBase);
+
+            // The web client is either exploded in classpath or extracted into cache, serve it in place.
+            webapp.setExtractWAR(false);
+            webapp.setCopyWebDir(false);
+
+            // Serve the precompressed variants, validators are provided by StaticResourceCachingFilter.
+            webapp.setInitParameter("org.eclipse.jetty.servlet.Default.precompressed", "gzip=.gz");
+            webapp.setInitParameter("org.eclipse.jetty.servlet.Default.etags", "false");
+
+            Path cacheEntry = WebClientLoader.getCacheEntry(resourceBase);
+
+            if (cacheEntry != null) {
+                webapp.addFilter(new FilterHolder(new StaticResourceCachingFilter(cacheEntry)),
+                                "/*", EnumSet.of(DispatcherType.REQUEST));
+            }
+
             webapp.addServlet(new ServletHolder(new WebSocketHandlerFacade()), "/wshandler");
             
             server.setHandler(webapp);
@@ -20,14 +20,40 @@ package ac.adproj.mchat.web.res;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.*;
 
 /**
  * Loader of WebSocket client web application package.
- * 
+ *
+ * <p>The web application is resolved in the following order:</p>
+ * <ol>
+ *     <li>An exploded web client directory on the classpath, which is served in place.</li>
+ *     <li>The web client package, which is extracted once into a per-user cache directory keyed by its
+ *     content hash, and reused across restarts.</li>
+ * </ol>
+ *
+ * <p>When extracting, gzip variants (*.gz) of compressible resources are generated beside the originals,
+ * so that they can be served precompressed. There's no Brotli encoder in the JDK, so Brotli isn't offered.</p>
+ *
  * @author Andy Cheung
  * @since 2020/5/22
  */
@@ -41,37 +67,347 @@ public final class WebClientLoader {
     public static final String WAR_NAME_IN_RESOURCE_PATH = "webClient.war";
 
     /**
-     * Copy the web application package to temporary directory.
+     * Name of the exploded web client directory in resource path.
+     */
+    public static final String EXPLODED_DIR_NAME_IN_RESOURCE_PATH = "webClient/";
+
+    /**
+     * System property to override the directory of extracted web client cache.
+     */
+    public static final String CACHE_DIRECTORY_PROPERTY = "acmc.webclient.cacheDir";
+
+    /**
+     * Suffix of the marker file that indicates the extraction of a cache entry is completed.
+     * The marker is a sibling of the entry, so that it is never served.
+     */
+    private static final String EXTRACTION_COMPLETE_MARKER_SUFFIX = ".extracted";
+
+    /**
+     * Version of the layout of cache entries, part of the entry name. Bumped whenever the extraction
+     * produces different files (e.g. the precompressed variants), so old entries are never reused.
+     */
+    private static final String CACHE_LAYOUT_VERSION = "v2";
+
+    /**
+     * Permissions of the cache directory.
+     */
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Resources smaller than this size are not worth compressing.
+     */
+    private static final long PRECOMPRESS_MIN_SIZE = 512;
+
+    /**
+     * File extensions of compressible (text) resources.
+     */
+    private static final List<String> COMPRESSIBLE_EXTENSIONS = Arrays.asList(
+            ".html", ".htm", ".js", ".mjs", ".css", ".json", ".map", ".svg", ".txt", ".xml", ".ico");
+
+    /**
+     * Obtain the resource base of the web client, which can be passed to Jetty directly.
      *
-     * @return Destination of the web application package, or null when I/O error occurs.
+     * @return URL (or path) of the web application base, or null when the web client can't be loaded.
      */
-    public static String getWebappWarPath() {
-        FileOutputStream fos = null;
+    public static String getWebappResourceBase() {
+        URL exploded = getExplodedWebappUrl();
 
-        try (BufferedInputStream is = new BufferedInputStream(
-                WebClientLoader.class.getResourceAsStream(WAR_NAME_IN_RESOURCE_PATH))) {
-            
-            File f = File.createTempFile("acmc-webC-", ".war");
-            f.deleteOnExit();
-            fos = new FileOutputStream(f);
+        if (exploded != null) {
+            LOG.debug("Serving web client from classpath: {}", exploded);
+            return exploded.toExternalForm();
+        }
 
-            int dataBit;
-            while ((dataBit = is.read()) != -1) {
-                fos.write(dataBit);
-            }
+        URL war = WebClientLoader.class.getResource(WAR_NAME_IN_RESOURCE_PATH);
 
-            return f.getAbsolutePath();
+        if (war == null) {
+            LOG.error("Web client package ({}) is not found in resource path.", WAR_NAME_IN_RESOURCE_PATH);
+            return null;
+        }
+
+        try {
+            return extractToCache(war).toString();
         } catch (IOException e) {
             LOG.error("Error in loading web app file.", e);
-            
+
             return null;
+        }
+    }
+
+    /**
+     * Obtain the URL of exploded web client in the classpath.
+     *
+     * @return The URL, or null if there is no exploded web client.
+     */
+    public static URL getExplodedWebappUrl() {
+        return WebClientLoader.class.getResource(EXPLODED_DIR_NAME_IN_RESOURCE_PATH);
+    }
+
+    /**
+     * Obtain the root directory of extracted web client cache, which is per user:
+     * $XDG_CACHE_HOME/acmc/webClient, or ~/.cache/acmc/webClient.
+     *
+     * @return The cache directory.
+     */
+    public static Path getCacheDirectory() {
+        String configured = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+
+        if (configured != null && !configured.isEmpty()) {
+            return Paths.get(configured);
+        }
+
+        String xdgCacheHome = System.getenv("XDG_CACHE_HOME");
+        Path cacheHome = xdgCacheHome != null && Paths.get(xdgCacheHome).isAbsolute()
+                            ? Paths.get(xdgCacheHome) : Paths.get(System.getProperty("user.home"), ".cache");
+
+        return cacheHome.resolve("acmc").resolve("webClient");
+    }
+
+    /**
+     * Extract the web application package into the cache directory, or reuse the existing extraction.
+     *
+     * @param war URL of the web application package.
+     * @return Directory of the extracted web application.
+     * @throws IOException If I/O error occurs.
+     */
+    private static Path extractToCache(URL war) throws IOException {
+        Path cacheDirectory = createCacheDirectory();
+        Path target = cacheDirectory.resolve(CACHE_LAYOUT_VERSION + "-" + contentHash(war));
+        Path marker = markerOf(target);
+
+        if (Files.exists(marker)) {
+            LOG.debug("Reusing extracted web client: {}", target);
+            return target;
+        }
+
+        // Extract into a staging directory first, so that a half-extracted directory is never served.
+        Path staging = Files.createTempDirectory(cacheDirectory, target.getFileName() + "-");
+
+        try (ZipInputStream zis = new ZipInputStream(war.openStream())) {
+            ZipEntry entry;
+
+            while ((entry = zis.getNextEntry()) != null) {
+                Path file = staging.resolve(entry.getName()).normalize();
+
+                if (!file.startsWith(staging)) {
+                    throw new IOException("Illegal entry in web client package: " + entry.getName());
+                }
+
+                if (entry.isDirectory()) {
+                    Files.createDirectories(file);
+                } else {
+                    Files.createDirectories(file.getParent());
+                    Files.copy(zis, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            precompress(staging);
+
+            // The entry only ever appears by this atomic move, so an existing one is complete,
+            // even without its marker yet (another server instance is about to create it), and is never deleted.
+            try {
+                Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+                LOG.info("Extracted web client into {}", target);
+            } catch (IOException e) {
+                if (!Files.isDirectory(target)) {
+                    throw e;
+                }
+
+                LOG.debug("Web client was extracted concurrently: {}", target);
+            }
+
+            try {
+                Files.createFile(marker);
+            } catch (FileAlreadyExistsException e) {
+                // Created concurrently.
+            }
         } finally {
+            deleteRecursively(staging);
+        }
+
+        return target;
+    }
+
+    /**
+     * Create the cache directory accessible by the owner only, and verify that it is owned by the current user,
+     * so that other local users can't plant or alter the web client served.
+     *
+     * @return The cache directory.
+     * @throws IOException If I/O error occurs, or the directory is owned by another user.
+     */
+    private static Path createCacheDirectory() throws IOException {
+        Path cacheDirectory = getCacheDirectory();
+        boolean posix = cacheDirectory.getFileSystem().supportedFileAttributeViews().contains("posix");
+
+        if (!Files.isDirectory(cacheDirectory)) {
+            Files.createDirectories(cacheDirectory.getParent());
+
             try {
-                if (fos != null) {
-                    fos.close();
+                if (posix) {
+                    Files.createDirectory(cacheDirectory,
+                            PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                } else {
+                    Files.createDirectory(cacheDirectory);
                 }
-            } catch (IOException e) {
-                // ignore
+            } catch (FileAlreadyExistsException e) {
+                // Created concurrently, verified below.
+            }
+        }
+
+        if (!posix) {
+            // e.g. Windows, where the default directory is in the profile of the user already.
+            return cacheDirectory;
+        }
+
+        UserPrincipal currentUser = cacheDirectory.getFileSystem().getUserPrincipalLookupService()
+                                        .lookupPrincipalByName(System.getProperty("user.name"));
+
+        if (!currentUser.equals(Files.getOwner(cacheDirectory, LinkOption.NOFOLLOW_LINKS))) {
+            throw new IOException("Web client cache directory is not owned by the current user: " + cacheDirectory);
+        }
+
+        if (!Files.getPosixFilePermissions(cacheDirectory).equals(OWNER_ONLY)) {
+            Files.setPosixFilePermissions(cacheDirectory, OWNER_ONLY);
+        }
+
+        return cacheDirectory;
+    }
+
+    /**
+     * Obtain the cache entry that the resource base points to.
+     *
+     * @param resourceBase Resource base returned by {@link #getWebappResourceBase()}.
+     * @return The directory of cache entry, or null if the resource base isn't served from cache.
+     */
+    public static Path getCacheEntry(String resourceBase) {
+        if (resourceBase == null) {
+            return null;
+        }
+
+        try {
+            Path path = Paths.get(resourceBase);
+
+            if (getCacheDirectory().equals(path.getParent()) && Files.exists(markerOf(path))) {
+                return path;
+            }
+        } catch (InvalidPathException e) {
+            // URL of classpath resources.
+        }
+
+        return null;
+    }
+
+    private static Path markerOf(Path cacheEntry) {
+        return cacheEntry.resolveSibling(cacheEntry.getFileName() + EXTRACTION_COMPLETE_MARKER_SUFFIX);
+    }
+
+    /**
+     * Generate gzip variants of compressible resources in the directory.
+     *
+     * @param directory The directory of extracted web application.
+     * @throws IOException If I/O error occurs.
+     * @implNote The variant is kept only when it is actually smaller, and existing variants
+     *           (e.g. shipped by the web client build) are left untouched.
+     */
+    private static void precompress(Path directory) throws IOException {
+        List<Path> candidates;
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            candidates = files.filter(Files::isRegularFile)
+                    .filter(f -> isCompressible(directory.relativize(f)))
+                    .collect(Collectors.toList());
+        }
+
+        for (Path file : candidates) {
+            Path gzipped = file.resolveSibling(file.getFileName() + ".gz");
+            long size = Files.size(file);
+
+            if (size < PRECOMPRESS_MIN_SIZE || Files.exists(gzipped)) {
+                continue;
+            }
+
+            try (OutputStream os = new BestCompressionGzipOutputStream(Files.newOutputStream(gzipped))) {
+                Files.copy(file, os);
+            }
+
+            if (Files.size(gzipped) >= size) {
+                Files.delete(gzipped);
+            }
+        }
+    }
+
+    private static boolean isCompressible(Path relativePath) {
+        String name = relativePath.getFileName().toString().toLowerCase(Locale.ROOT);
+
+        return !relativePath.startsWith("WEB-INF")
+                && COMPRESSIBLE_EXTENSIONS.stream().anyMatch(name::endsWith);
+    }
+
+    /**
+     * GZIP output stream that uses the best compression level, since the output is generated only once.
+     */
+    private static final class BestCompressionGzipOutputStream extends GZIPOutputStream {
+        BestCompressionGzipOutputStream(OutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+
+    /**
+     * Calculate the content hash of the web application package.
+     *
+     * @param war URL of the web application package.
+     * @return Hexadecimal content hash, which is part of the name of cache entry.
+     * @throws IOException If I/O error occurs.
+     * @implNote If the package is stored in a JAR file, the CRC-32 recorded in the JAR entry is used,
+     *           so the package doesn't need to be read at all.
+     */
+    private static String contentHash(URL war) throws IOException {
+        URLConnection connection = war.openConnection();
+
+        if (connection instanceof JarURLConnection) {
+            JarURLConnection jarConnection = (JarURLConnection) connection;
+
+            // Not shared with the class loader, so the JAR file can be closed after reading the entry.
+            jarConnection.setUseCaches(false);
+
+            try (JarFile jar = jarConnection.getJarFile()) {
+                JarEntry entry = jar.getJarEntry(jarConnection.getEntryName());
+
+                if (entry != null && entry.getCrc() != -1 && entry.getSize() != -1) {
+                    return String.format("%08x-%x", entry.getCrc(), entry.getSize());
+                }
+            }
+
+            connection = war.openConnection();
+            connection.setUseCaches(false);
+        }
+
+        CRC32 crc = new CRC32();
+        long size = 0;
+
+        try (InputStream is = connection.getInputStream()) {
+            byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+            int length;
+
+            while ((length = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, length);
+                size += length;
+            }
+        }
+
+        return String.format("%08x-%x", crc.getValue(), size);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
             }
         }
     }